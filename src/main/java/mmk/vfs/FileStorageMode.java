@@ -0,0 +1,17 @@
+package mmk.vfs;
+
+/**
+ * Way contents of file are kept in storage, chosen when file is created.
+ */
+public enum FileStorageMode {
+    /**
+     * File contents are stored as is.
+     */
+    PLAIN,
+    /**
+     * File contents are stored compressed in independent chunks, which are decompressed on read. Takes fewer blocks
+     * for compressible data (ex. text), at the cost of CPU time and of rewriting following chunks when file is modified
+     * in the middle. Requires directory records version supporting compression.
+     */
+    COMPRESSED
+}
@@ -1,6 +1,7 @@
 package mmk.vfs;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Opened file handle in VFS. Allows reading and (if opened for write) - writing of contents into this file.
@@ -43,4 +44,26 @@ public interface VFSFile extends VFSEntry {
      * @throws IOException I/O exception happened during operation
      */
     void write(byte[] buffer, int bufferOffset, int length) throws IOException;
+
+    /**
+     * Read block of data from file into buffer. Read operation starts from current pointer in file, then pointer
+     * advances to next byte after last successfully read byte. At most buffer.remaining() bytes are read and buffer
+     * position is advanced by count of read bytes. Direct buffers are filled without intermediate copies where
+     * underlying storage allows it.
+     *
+     * @param buffer destination buffer to read into
+     * @return amount of successfully read bytes, -1 if there are no more bytes left in file
+     * @throws IOException I/O exception happened during operation
+     */
+    int read(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Write all remaining bytes of buffer to file, expanding it if necessary. Write operation starts from current
+     * pointer in file, then pointer advances to next byte after last successfully written byte. Buffer position is
+     * advanced to its limit. File must be opened for write for this method to succeed.
+     *
+     * @param buffer source buffer to read bytes from
+     * @throws IOException I/O exception happened during operation
+     */
+    void write(ByteBuffer buffer) throws IOException;
 }
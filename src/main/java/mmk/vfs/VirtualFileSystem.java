@@ -59,6 +59,21 @@ public interface VirtualFileSystem extends AutoCloseable {
      */
     void createFile(String path) throws IOException;
 
+    /**
+     * Create new file at specified path with specified storage mode. Method is not recursive, so parent directory must
+     * already exist.
+     *
+     * @param path        path to create file at
+     * @param storageMode way file contents are kept in storage, see {@link FileStorageMode} for details
+     * @throws VFSClosedException                 if this instance of VFS was already closed
+     * @throws RootDirectoryModificationException if trying to create file at path '/'
+     * @throws FileNotFoundException              if parent directory of required path does not exist
+     * @throws UnsupportedOperationException      if storage mode is not supported by directory records of this VFS
+     * @throws InterruptedIOException             if thread was interrupted
+     * @throws IOException                        other I/O exceptions possible from underlying directory writer and file storage manager
+     */
+    void createFile(String path, FileStorageMode storageMode) throws IOException;
+
     /**
      * Open file to read or read-and-write.
      *
@@ -86,6 +101,15 @@ public interface VirtualFileSystem extends AutoCloseable {
      */
     void delete(String path) throws IOException;
 
+    /**
+     * Force all data written to files and directories so far to underlying storage device. Required to guarantee
+     * durability when underlying storage does not force every write by itself.
+     *
+     * @throws VFSClosedException if this instance of VFS was already closed
+     * @throws IOException        I/O exception happened while forcing data
+     */
+    void sync() throws IOException;
+
     /**
      * Close this instance of VFS. Closes all opened files and directories, then closes underlying storage.
      */
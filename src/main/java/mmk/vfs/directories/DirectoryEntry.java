@@ -18,6 +18,10 @@ public class DirectoryEntry {
      * File length if type is FILE.
      */
     private int mFileLength;
+    /**
+     * Whether contents of this file are stored compressed, if type is FILE.
+     */
+    private boolean mCompressed;
     /**
      * StorageFile index where contents of this file start
      */
@@ -54,6 +58,14 @@ public class DirectoryEntry {
         this.mFileLength = mFileLength;
     }
 
+    public boolean isCompressed() {
+        return mCompressed;
+    }
+
+    public void setCompressed(boolean compressed) {
+        mCompressed = compressed;
+    }
+
     public int getStorageStartIdx() {
         return mStorageStartIdx;
     }
@@ -77,6 +89,7 @@ public class DirectoryEntry {
             return Objects.equals(mEntryName, other.mEntryName) &&
                    Objects.equals(mFileType, other.mFileType) &&
                    mFileLength == other.mFileLength &&
+                   mCompressed == other.mCompressed &&
                    mStorageStartIdx == other.mStorageStartIdx &&
                    mParentDirectoryIndex == other.mParentDirectoryIndex;
         }
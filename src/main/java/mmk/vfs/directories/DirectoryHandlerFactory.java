@@ -22,4 +22,12 @@ public interface DirectoryHandlerFactory {
      */
     int getNoStorageFileIndex();
 
+    /**
+     * Check whether directory handlers of this factory are able to store compressed file entries.
+     *
+     * @return true if entries can be marked as compressed
+     */
+    default boolean isCompressionSupported() {
+        return false;
+    }
 }
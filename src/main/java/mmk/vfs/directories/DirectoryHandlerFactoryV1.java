@@ -19,7 +19,7 @@ public class DirectoryHandlerFactoryV1 implements DirectoryHandlerFactory {
         return -1;
     }
 
-    private static class DirectoryHandlerV1 implements DirectoryHandler {
+    static class DirectoryHandlerV1 implements DirectoryHandler {
         // byte 0     - type
         // byte 1-3   - reserved
         // byte 4-7   - file storage index
@@ -39,7 +39,7 @@ public class DirectoryHandlerFactoryV1 implements DirectoryHandlerFactory {
         private final StorageFile mStorageFile;
         private int mNextRecordReadId;
 
-        public DirectoryHandlerV1(StorageFile storageFile) {
+        DirectoryHandlerV1(StorageFile storageFile) {
             this.mStorageFile = storageFile;
 
             rewind();
@@ -98,6 +98,7 @@ public class DirectoryHandlerFactoryV1 implements DirectoryHandlerFactory {
             ByteBuffer mainEntryByteBufferWrap = ByteBuffer.allocate(ENTRY_LENGTH);
             if (DirectoryEntryType.FILE == entry.getFileType()) {
                 mainEntryByteBufferWrap.put(0, TYPE_FILE);
+                mainEntryByteBufferWrap.put(1, encodeFileFlags(entry));
                 mainEntryByteBufferWrap.putInt(8, entry.getFileLength());
             }
             else if (DirectoryEntryType.DIRECTORY == entry.getFileType()) {
@@ -162,6 +163,28 @@ public class DirectoryHandlerFactoryV1 implements DirectoryHandlerFactory {
             return true;
         }
 
+        /**
+         * Get value of byte 1 of file entry. This version has no flags, so only plain files can be written.
+         *
+         * @param entry file entry
+         * @return value of flags byte
+         */
+        byte encodeFileFlags(DirectoryEntry entry) {
+            if (entry.isCompressed()) {
+                throw new IllegalArgumentException("Directory records version 1 does not support compressed files");
+            }
+            return 0;
+        }
+
+        /**
+         * Apply value of byte 1 of file entry to read entry. This version has no flags, byte is reserved.
+         *
+         * @param entry file entry
+         * @param flags value of flags byte
+         */
+        void decodeFileFlags(DirectoryEntry entry, byte flags) {
+        }
+
         @Override
         public synchronized DirectoryEntry readEntry(int entryPosition) throws IOException {
             return doReadEntry(entryPosition, true);
@@ -205,6 +228,7 @@ public class DirectoryHandlerFactoryV1 implements DirectoryHandlerFactory {
             else {
                 entry.setFileType(DirectoryEntryType.FILE);
                 entry.setFileLength(mainEntryByteBufferWrap.getInt(8));
+                decodeFileFlags(entry, mainEntryByteBufferWrap.get(1));
             }
 
             entry.setStorageStartIdx(mainEntryByteBufferWrap.getInt(4));
@@ -0,0 +1,37 @@
+package mmk.vfs.directories;
+
+import mmk.vfs.storage.file.StorageFile;
+
+/**
+ * Directory records of version 2. Layout of entries is same as in version 1, but byte 1 of file entry holds flags:
+ * bit 0 is set if file contents are stored compressed. Entries written by version 1 are read as plain files.
+ */
+public class DirectoryHandlerFactoryV2 extends DirectoryHandlerFactoryV1 {
+    @Override
+    public DirectoryHandler createNewHandler(StorageFile storageFile) {
+        return new DirectoryHandlerV2(storageFile);
+    }
+
+    @Override
+    public boolean isCompressionSupported() {
+        return true;
+    }
+
+    private static class DirectoryHandlerV2 extends DirectoryHandlerV1 {
+        private static final byte FLAG_COMPRESSED = 0x01;
+
+        DirectoryHandlerV2(StorageFile storageFile) {
+            super(storageFile);
+        }
+
+        @Override
+        byte encodeFileFlags(DirectoryEntry entry) {
+            return entry.isCompressed() ? FLAG_COMPRESSED : 0;
+        }
+
+        @Override
+        void decodeFileFlags(DirectoryEntry entry, byte flags) {
+            entry.setCompressed((flags & FLAG_COMPRESSED) != 0);
+        }
+    }
+}
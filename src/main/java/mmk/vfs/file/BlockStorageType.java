@@ -0,0 +1,20 @@
+package mmk.vfs.file;
+
+/**
+ * Type of block storage used to access contents of VFS backing file.
+ */
+public enum BlockStorageType {
+    /**
+     * Blocks are read and written with FileChannel positional I/O, one system call per block access.
+     */
+    FILE_CHANNEL,
+    /**
+     * File is memory-mapped in segments, blocks are accessed as memory copies. Preferable for read-heavy workloads.
+     */
+    MEMORY_MAPPED,
+    /**
+     * Blocks are read and written with AsynchronousFileChannel, several operations can be in flight at once.
+     * Preferable for many concurrent readers on devices with deep command queues.
+     */
+    ASYNC_FILE_CHANNEL
+}
@@ -0,0 +1,152 @@
+package mmk.vfs.file;
+
+import mmk.vfs.impl.VirtualFileSystemImpl;
+import mmk.vfs.storage.blocks.AsyncFileBlockStorageManager;
+import mmk.vfs.storage.blocks.DurabilityPolicy;
+import mmk.vfs.storage.blocks.ExtentGrowthPolicy;
+import mmk.vfs.storage.blocks.MappedBlockStorageManager;
+import mmk.vfs.storage.file.BlockAllocationMode;
+
+/**
+ * Options for opening File-based Virtual File System.
+ * Options describing container format (ex. block size) are only used when new container is created.
+ */
+public class FileBasedVFSOptions {
+    /**
+     * Size of allocation blocks used to store files inside VFS.
+     */
+    private int mBlockSize = VirtualFileSystemImpl.DEFAULT_BLOCK_SIZE;
+    /**
+     * Layout of Storage Files inside of container.
+     */
+    private StorageLayout mStorageLayout = StorageLayout.LINKED_BLOCKS;
+    /**
+     * Type of storage used to access backing file.
+     */
+    private BlockStorageType mBlockStorageType = BlockStorageType.FILE_CHANNEL;
+    /**
+     * Size of each mapped segment if storage type is MEMORY_MAPPED.
+     */
+    private int mMappedSegmentSize = MappedBlockStorageManager.DEFAULT_SEGMENT_SIZE;
+    /**
+     * Policy of forcing written data to storage device.
+     */
+    private DurabilityPolicy mDurabilityPolicy = DurabilityPolicy.ALWAYS;
+    /**
+     * Memory budget of block cache in bytes, 0 disables cache. Blocks ahead of sequential reads are loaded into cache in
+     * background when it is enabled, otherwise each opened file reads them into its own buffer on read.
+     */
+    private long mBlockCacheSize = 0;
+    /**
+     * Maximal amount of block cache contents not yet written to backing file in bytes, 0 makes cache write-through.
+     */
+    private long mBlockCacheDirtyLimit = 0;
+    /**
+     * Policy of extending backing file when storage type is FILE_CHANNEL.
+     */
+    private ExtentGrowthPolicy mExtentGrowthPolicy = ExtentGrowthPolicy.EXACT;
+    /**
+     * Maximal count of block operations in flight if storage type is ASYNC_FILE_CHANNEL.
+     */
+    private int mMaxOperationsInFlight = AsyncFileBlockStorageManager.DEFAULT_MAX_IN_FLIGHT;
+    /**
+     * Mode of choosing groups blocks of files are allocated from, used only with linked blocks layout.
+     */
+    private BlockAllocationMode mBlockAllocationMode = BlockAllocationMode.SHARED;
+    /**
+     * Whether files with compressed contents can be created. Such container uses directory records V02, which older
+     * versions of VFS can't read, so it is used only when this is enabled.
+     */
+    private boolean mCompressedFilesEnabled = false;
+
+    public FileBasedVFSOptions() {
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public void setBlockSize(int blockSize) {
+        mBlockSize = blockSize;
+    }
+
+    public StorageLayout getStorageLayout() {
+        return mStorageLayout;
+    }
+
+    public void setStorageLayout(StorageLayout storageLayout) {
+        mStorageLayout = storageLayout;
+    }
+
+    public BlockStorageType getBlockStorageType() {
+        return mBlockStorageType;
+    }
+
+    public void setBlockStorageType(BlockStorageType blockStorageType) {
+        mBlockStorageType = blockStorageType;
+    }
+
+    public int getMappedSegmentSize() {
+        return mMappedSegmentSize;
+    }
+
+    public void setMappedSegmentSize(int mappedSegmentSize) {
+        mMappedSegmentSize = mappedSegmentSize;
+    }
+
+    public DurabilityPolicy getDurabilityPolicy() {
+        return mDurabilityPolicy;
+    }
+
+    public void setDurabilityPolicy(DurabilityPolicy durabilityPolicy) {
+        mDurabilityPolicy = durabilityPolicy;
+    }
+
+    public long getBlockCacheSize() {
+        return mBlockCacheSize;
+    }
+
+    public void setBlockCacheSize(long blockCacheSize) {
+        mBlockCacheSize = blockCacheSize;
+    }
+
+    public long getBlockCacheDirtyLimit() {
+        return mBlockCacheDirtyLimit;
+    }
+
+    public void setBlockCacheDirtyLimit(long blockCacheDirtyLimit) {
+        mBlockCacheDirtyLimit = blockCacheDirtyLimit;
+    }
+
+    public ExtentGrowthPolicy getExtentGrowthPolicy() {
+        return mExtentGrowthPolicy;
+    }
+
+    public void setExtentGrowthPolicy(ExtentGrowthPolicy extentGrowthPolicy) {
+        mExtentGrowthPolicy = extentGrowthPolicy;
+    }
+
+    public int getMaxOperationsInFlight() {
+        return mMaxOperationsInFlight;
+    }
+
+    public void setMaxOperationsInFlight(int maxOperationsInFlight) {
+        mMaxOperationsInFlight = maxOperationsInFlight;
+    }
+
+    public BlockAllocationMode getBlockAllocationMode() {
+        return mBlockAllocationMode;
+    }
+
+    public void setBlockAllocationMode(BlockAllocationMode blockAllocationMode) {
+        mBlockAllocationMode = blockAllocationMode;
+    }
+
+    public boolean isCompressedFilesEnabled() {
+        return mCompressedFilesEnabled;
+    }
+
+    public void setCompressedFilesEnabled(boolean compressedFilesEnabled) {
+        mCompressedFilesEnabled = compressedFilesEnabled;
+    }
+}
@@ -3,22 +3,31 @@ package mmk.vfs.file;
 import mmk.vfs.VirtualFileSystem;
 import mmk.vfs.directories.DirectoryHandlerFactory;
 import mmk.vfs.directories.DirectoryHandlerFactoryV1;
+import mmk.vfs.directories.DirectoryHandlerFactoryV2;
 import mmk.vfs.file.headers.ContainerStorageHeader;
 import mmk.vfs.file.headers.ContainerStorageHeaderV1;
 import mmk.vfs.file.headers.DirectoryHandlerHeader;
 import mmk.vfs.file.headers.DirectoryHandlerHeaderV1;
 import mmk.vfs.impl.VirtualFileSystemImpl;
+import mmk.vfs.storage.blocks.AsyncFileBlockStorageManager;
 import mmk.vfs.storage.blocks.BlockStorageManager;
+import mmk.vfs.storage.blocks.CachingBlockStorageManager;
 import mmk.vfs.storage.blocks.FileBlockStorageManager;
+import mmk.vfs.storage.blocks.MappedBlockStorageManager;
+import mmk.vfs.storage.blocks.StripedBlockStorageManager;
 import mmk.vfs.storage.file.StorageFileManager;
 import mmk.vfs.storage.file.StorageFileManagerV1;
+import mmk.vfs.storage.file.StorageFileManagerV2;
 import mmk.vfs.util.HeaderUtil;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.FileChannel;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Utility class for creation of Virtual File System using file for data storage.
@@ -28,7 +37,11 @@ public final class FileBasedVirtualFileSystem {
 
     private static final byte HEADER_IMPLEMENTATION_VERSION_1 = 1;
     private static final byte STORAGE_IMPLEMENTATION_VERSION_1 = 1;
+    private static final byte STORAGE_IMPLEMENTATION_VERSION_2 = 2;
     private static final byte DIRECTORY_IMPLEMENTATION_VERSION_1 = 1;
+    private static final byte DIRECTORY_IMPLEMENTATION_VERSION_2 = 2;
+    private static final byte[] STRIPE_HEADER_MAGIC = new byte[]{(byte) 'V', (byte) 'F', (byte) 'S', (byte) 'S'};
+    private static final int MAX_STRIPE_COUNT = 255;
 
     /**
      * Open File-based Virtual File System.
@@ -50,35 +63,82 @@ public final class FileBasedVirtualFileSystem {
      * @throws IOException I/O exception happened while opening VFS
      */
     public static VirtualFileSystem open(File backingFile, int blockSize) throws IOException {
+        FileBasedVFSOptions options = new FileBasedVFSOptions();
+        options.setBlockSize(blockSize);
+        return open(backingFile, options);
+    }
+
+    /**
+     * Open File-based Virtual File System.
+     *
+     * @param backingFile file where VFS should store its contents
+     * @param options     options of created VFS and of its underlying storage
+     * @return opened VFS
+     * @throws IOException I/O exception happened while opening VFS
+     */
+    public static VirtualFileSystem open(File backingFile, FileBasedVFSOptions options) throws IOException {
+        return openStriped(new File[]{backingFile}, options);
+    }
+
+    /**
+     * Open File-based Virtual File System striped across several files. Blocks are distributed round-robin between
+     * files, so placing files on different devices lets large reads and writes use all devices at once.
+     * First file contains VFS headers, other files contain only stripe header. Same files in same order must be provided
+     * every time container is opened.
+     *
+     * @param backingFiles files where VFS should store its contents
+     * @param options      options of created VFS and of its underlying storage
+     * @return opened VFS
+     * @throws IOException I/O exception happened while opening VFS
+     */
+    public static VirtualFileSystem openStriped(File[] backingFiles, FileBasedVFSOptions options) throws IOException {
+        int blockSize = options.getBlockSize();
         if (blockSize < VirtualFileSystemImpl.MIN_BLOCK_SIZE) {
             throw new IllegalArgumentException("Block Size must not be less than " + VirtualFileSystemImpl.MIN_BLOCK_SIZE);
         }
         else if (blockSize > VirtualFileSystemImpl.MAX_BLOCK_SIZE) {
             throw new IllegalArgumentException("Block Size must not be less than " + VirtualFileSystemImpl.MAX_BLOCK_SIZE);
         }
-        if (backingFile.isDirectory()) {
-            throw new IllegalArgumentException("File provided is a directory, can't be used");
+        if (backingFiles.length == 0 || backingFiles.length > MAX_STRIPE_COUNT) {
+            throw new IllegalArgumentException("Count of files must be between 1 and " + MAX_STRIPE_COUNT);
+        }
+        for (File backingFile : backingFiles) {
+            if (backingFile.isDirectory()) {
+                throw new IllegalArgumentException("File provided is a directory, can't be used");
+            }
         }
 
-        FileChannel fileChannel = FileChannel.open(backingFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
-
+        List<FileChannel> fileChannels = new ArrayList<>();
+        BlockStorageManager[] stripes = new BlockStorageManager[backingFiles.length];
+        BlockStorageManager blockStorageManager = null;
         StorageFileManager storage = null;
         DirectoryHandlerFactory directoryHandlerFactory = null;
         try {
+            FileChannel fileChannel = FileChannel.open(backingFiles[0].toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            fileChannels.add(fileChannel);
+
             VfsHeader vfsHeader = new VfsHeader();
             HeaderUtil.readOrCreateHeader(
                     fileChannel, 0, 8,
                     () -> {
                         vfsHeader.mVersion = HEADER_IMPLEMENTATION_VERSION_1;
-                        vfsHeader.mStorageVersion = STORAGE_IMPLEMENTATION_VERSION_1;
-                        vfsHeader.mDirectoryVersion = DIRECTORY_IMPLEMENTATION_VERSION_1;
+                        vfsHeader.mStorageVersion = options.getStorageLayout() == StorageLayout.EXTENTS
+                                ? STORAGE_IMPLEMENTATION_VERSION_2
+                                : STORAGE_IMPLEMENTATION_VERSION_1;
+                        vfsHeader.mDirectoryVersion = options.isCompressedFilesEnabled()
+                                ? DIRECTORY_IMPLEMENTATION_VERSION_2
+                                : DIRECTORY_IMPLEMENTATION_VERSION_1;
+                        vfsHeader.mStripeCount = backingFiles.length;
                     },
                     vfsHeader::read,
                     vfsHeader::write
             );
+            if (vfsHeader.mStripeCount != backingFiles.length) {
+                throw new IllegalArgumentException("Container consists of " + vfsHeader.mStripeCount + " files, but " + backingFiles.length + " provided");
+            }
 
             ContainerStorageHeader storageHeader = getStorageImplementationHeader(vfsHeader.mStorageVersion);
-            DirectoryHandlerHeader directoryHeader = getDirectoryHandlerImplementationHeader(vfsHeader.mStorageVersion);
+            DirectoryHandlerHeader directoryHeader = getDirectoryHandlerImplementationHeader(vfsHeader.mDirectoryVersion);
 
             int totalHeadersLength = 8 + storageHeader.getLength() + directoryHeader.getLength();
 
@@ -104,16 +164,58 @@ public final class FileBasedVirtualFileSystem {
                     directoryHeader::write
             );
 
-            BlockStorageManager blockStorageManager = new FileBlockStorageManager(fileChannel, storageHeader.mFileStartOffset, storageHeader.mBlockSize);
-            storage = getStorageImplementation(vfsHeader.mStorageVersion, blockStorageManager);
+            stripes[0] = getBlockStorageImplementation(options, backingFiles[0], fileChannel, storageHeader.mFileStartOffset, storageHeader.mBlockSize);
+            for (int i = 1; i < backingFiles.length; ++i) {
+                FileChannel stripeChannel = FileChannel.open(backingFiles[i].toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                fileChannels.add(stripeChannel);
+
+                StripeHeader stripeHeader = new StripeHeader();
+                int stripeIndex = i;
+                HeaderUtil.readOrCreateHeader(
+                        stripeChannel, 0, 8,
+                        () -> {
+                            stripeHeader.mStripeIndex = stripeIndex;
+                            stripeHeader.mStripeCount = backingFiles.length;
+                        },
+                        stripeHeader::read,
+                        stripeHeader::write
+                );
+                if (stripeHeader.mStripeIndex != stripeIndex || stripeHeader.mStripeCount != backingFiles.length) {
+                    throw HeaderUtil.getMalformedFileException("File " + backingFiles[i] + " is stripe " + stripeHeader.mStripeIndex
+                                                               + " of " + stripeHeader.mStripeCount + ", but used as stripe " + stripeIndex
+                                                               + " of " + backingFiles.length);
+                }
+
+                // data of stripe is padded to block size, same as data of first file
+                int stripeDataOffset = (8 + storageHeader.mBlockSize - 1) / storageHeader.mBlockSize * storageHeader.mBlockSize;
+                stripes[i] = getBlockStorageImplementation(options, backingFiles[i], stripeChannel, stripeDataOffset, storageHeader.mBlockSize);
+            }
+
+            blockStorageManager = stripes.length == 1 ? stripes[0] : new StripedBlockStorageManager(stripes);
+            if (options.getBlockCacheSize() > 0) {
+                blockStorageManager = new CachingBlockStorageManager(blockStorageManager, options.getBlockCacheSize(), options.getBlockCacheDirtyLimit());
+            }
+            storage = getStorageImplementation(options, vfsHeader.mStorageVersion, blockStorageManager);
             directoryHandlerFactory = getDirectoryHandlerImplementation(vfsHeader.mDirectoryVersion);
-        } catch (IOException exc) {
+        } catch (IOException | RuntimeException exc) {
             if (storage != null) {
                 storage.close();
             }
-            try {
-                fileChannel.close();
-            } catch (Exception ignored) {
+            else if (blockStorageManager != null) {
+                blockStorageManager.close();
+            }
+            else {
+                for (BlockStorageManager stripe : stripes) {
+                    if (stripe != null) {
+                        stripe.close();
+                    }
+                }
+            }
+            for (FileChannel fileChannel : fileChannels) {
+                try {
+                    fileChannel.close();
+                } catch (Exception ignored) {
+                }
             }
             throw exc;
         }
@@ -121,8 +223,32 @@ public final class FileBasedVirtualFileSystem {
         return new VirtualFileSystemImpl(storage, directoryHandlerFactory);
     }
 
+    private static BlockStorageManager getBlockStorageImplementation(FileBasedVFSOptions options, File backingFile, FileChannel fileChannel, int dataStartOffset, int blockSize) throws IOException {
+        if (options.getBlockStorageType() == BlockStorageType.ASYNC_FILE_CHANNEL) {
+            // headers are handled through regular channel, storage itself needs asynchronous one
+            fileChannel.close();
+            AsynchronousFileChannel asyncFileChannel = AsynchronousFileChannel.open(backingFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                return new AsyncFileBlockStorageManager(asyncFileChannel, dataStartOffset, blockSize,
+                                                        options.getMaxOperationsInFlight(), options.getDurabilityPolicy());
+            } catch (IOException | RuntimeException e) {
+                asyncFileChannel.close();
+                throw e;
+            }
+        }
+        else if (options.getBlockStorageType() == BlockStorageType.MEMORY_MAPPED) {
+            return new MappedBlockStorageManager(fileChannel, dataStartOffset, blockSize,
+                                                 options.getMappedSegmentSize(), options.getDurabilityPolicy());
+        }
+        else {
+            return new FileBlockStorageManager(fileChannel, dataStartOffset, blockSize,
+                                               options.getDurabilityPolicy(), options.getExtentGrowthPolicy());
+        }
+    }
+
     private static ContainerStorageHeader getStorageImplementationHeader(byte version) {
-        if (version == STORAGE_IMPLEMENTATION_VERSION_1) {
+        if (version == STORAGE_IMPLEMENTATION_VERSION_1 || version == STORAGE_IMPLEMENTATION_VERSION_2) {
+            // V02 changes only layout of blocks, its header is same as V01
             return new ContainerStorageHeaderV1();
         }
         else {
@@ -130,9 +256,12 @@ public final class FileBasedVirtualFileSystem {
         }
     }
 
-    private static StorageFileManager getStorageImplementation(byte version, BlockStorageManager blockStorageManager) throws IOException {
+    private static StorageFileManager getStorageImplementation(FileBasedVFSOptions options, byte version, BlockStorageManager blockStorageManager) throws IOException {
         if (version == STORAGE_IMPLEMENTATION_VERSION_1) {
-            return new StorageFileManagerV1(blockStorageManager);
+            return new StorageFileManagerV1(blockStorageManager, options.getBlockAllocationMode());
+        }
+        else if (version == STORAGE_IMPLEMENTATION_VERSION_2) {
+            return new StorageFileManagerV2(blockStorageManager);
         }
         else {
             throw getUnsupportedVersionException("Content storage version " + Integer.toHexString(version & 0xFF));
@@ -140,7 +269,8 @@ public final class FileBasedVirtualFileSystem {
     }
 
     private static DirectoryHandlerHeader getDirectoryHandlerImplementationHeader(byte version) {
-        if (version == DIRECTORY_IMPLEMENTATION_VERSION_1) {
+        if (version == DIRECTORY_IMPLEMENTATION_VERSION_1 || version == DIRECTORY_IMPLEMENTATION_VERSION_2) {
+            // V02 adds only flags to entries, its header is same as V01
             return new DirectoryHandlerHeaderV1();
         }
         else {
@@ -149,11 +279,14 @@ public final class FileBasedVirtualFileSystem {
     }
 
     private static DirectoryHandlerFactory getDirectoryHandlerImplementation(byte version) throws IOException {
-        if (version == STORAGE_IMPLEMENTATION_VERSION_1) {
+        if (version == DIRECTORY_IMPLEMENTATION_VERSION_1) {
             return new DirectoryHandlerFactoryV1();
         }
+        else if (version == DIRECTORY_IMPLEMENTATION_VERSION_2) {
+            return new DirectoryHandlerFactoryV2();
+        }
         else {
-            throw getUnsupportedVersionException("Content storage version " + Integer.toHexString(version & 0xFF));
+            throw getUnsupportedVersionException("Directory records version " + Integer.toHexString(version & 0xFF));
         }
     }
 
@@ -165,6 +298,7 @@ public final class FileBasedVirtualFileSystem {
         byte mVersion;
         byte mStorageVersion;
         byte mDirectoryVersion;
+        int mStripeCount;
 
         void read(ByteBuffer buffer) throws IOException {
             byte[] bufferArray = buffer.array();
@@ -178,6 +312,8 @@ public final class FileBasedVirtualFileSystem {
             mVersion = bufferArray[4];
             mStorageVersion = bufferArray[5];
             mDirectoryVersion = bufferArray[6];
+            // single-file containers were created with zero in this byte
+            mStripeCount = Math.max(1, bufferArray[7] & 0xFF);
         }
 
         void write(ByteBuffer buffer) {
@@ -186,7 +322,31 @@ public final class FileBasedVirtualFileSystem {
             bufferArray[4] = mVersion;
             bufferArray[5] = mStorageVersion;
             bufferArray[6] = mDirectoryVersion;
-            bufferArray[7] = 0;
+            bufferArray[7] = (byte) (mStripeCount == 1 ? 0 : mStripeCount);
+        }
+    }
+
+    private static class StripeHeader {
+        int mStripeIndex;
+        int mStripeCount;
+
+        void read(ByteBuffer buffer) throws IOException {
+            byte[] bufferArray = buffer.array();
+
+            for (int i = 0; i < 4; ++i) {
+                if (bufferArray[i] != STRIPE_HEADER_MAGIC[i]) {
+                    throw HeaderUtil.getMalformedFileException("Incorrect stripe header magic sequence");
+                }
+            }
+
+            mStripeIndex = buffer.getShort(4) & 0xFFFF;
+            mStripeCount = buffer.getShort(6) & 0xFFFF;
+        }
+
+        void write(ByteBuffer buffer) {
+            System.arraycopy(STRIPE_HEADER_MAGIC, 0, buffer.array(), 0, 4);
+            buffer.putShort(4, (short) mStripeIndex);
+            buffer.putShort(6, (short) mStripeCount);
         }
     }
 }
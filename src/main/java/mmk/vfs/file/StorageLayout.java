@@ -0,0 +1,16 @@
+package mmk.vfs.file;
+
+/**
+ * Layout of Storage Files inside of VFS container, used only when new container is created.
+ */
+public enum StorageLayout {
+    /**
+     * Storage Files are chains of blocks linked through Block Allocation Tables (Storage V01).
+     */
+    LINKED_BLOCKS,
+    /**
+     * Storage Files are lists of extents of adjacent blocks (Storage V02). Preferable for large files, which are read
+     * sequentially or accessed at random offsets.
+     */
+    EXTENTS
+}
@@ -0,0 +1,431 @@
+package mmk.vfs.impl;
+
+import mmk.vfs.exceptions.StorageCorrupted;
+import mmk.vfs.locks.LockType;
+import mmk.vfs.storage.file.StorageFile;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Storage File, which keeps contents of underlying Storage File compressed. File contents are split into chunks of
+ * CHUNK_SIZE bytes, each chunk is compressed independently, so reads only decompress chunks they touch.
+ * <p>
+ * Layout of underlying file:
+ * <ul>
+ * <li>bytes 0-3 - chunk size</li>
+ * <li>bytes 4-7 - length of uncompressed contents</li>
+ * <li>bytes 8-11 - offset of chunk table</li>
+ * <li>anywhere after header - chunk table, 8 bytes per chunk: offset of stored chunk and its length, highest bit of
+ * length is set if chunk is stored uncompressed</li>
+ * <li>anywhere after header - stored chunks</li>
+ * </ul>
+ * Modified chunks are kept in memory and written by {@link #flush()}. Only modified chunks are written, each into
+ * space not used by the chunk table currently stored in header, followed by new chunk table; header is written last,
+ * so interrupted flush leaves previous contents readable. Space of replaced chunks and table is reused by next flushes.
+ * <p>
+ * Instance belongs to single opened VFS file, which guarantees there is no concurrent writer.
+ */
+class CompressedStorageFile implements StorageFile {
+    static final int CHUNK_SIZE = 1 << 15;
+    private static final int HEADER_LENGTH = 12;
+    private static final int CHUNK_TABLE_ENTRY_LENGTH = 8;
+    private static final int MAX_DIRTY_CHUNKS = 8;
+    private static final int STORED_UNCOMPRESSED_FLAG = 0x80000000;
+
+    private final StorageFile mStorageFile;
+
+    private int mLength;
+    private int[] mChunkOffsets;
+    private int[] mChunkTable;
+    // count of chunks described by chunk table in underlying file
+    private int mStoredChunkCount;
+    private int mTableOffset;
+    private StorageSpace mStorageSpace;
+    private boolean mIsLoaded;
+
+    private final TreeMap<Integer, byte[]> mDirtyChunks = new TreeMap<>();
+    private int mCachedChunkIndex = -1;
+    private byte[] mCachedChunk;
+
+    /**
+     * Constructor.
+     *
+     * @param storageFile underlying storage file
+     * @param fileLength  length of file contents known to directory, 0 means underlying file was never written
+     */
+    CompressedStorageFile(StorageFile storageFile, int fileLength) {
+        mStorageFile = storageFile;
+        if (fileLength == 0) {
+            // storage of new file may contain leftovers of deleted files, so its header must not be read
+            mLength = 0;
+            mChunkOffsets = new int[0];
+            mChunkTable = new int[0];
+            mStoredChunkCount = 0;
+            mTableOffset = HEADER_LENGTH;
+            mStorageSpace = new StorageSpace(HEADER_LENGTH);
+            mIsLoaded = true;
+        }
+    }
+
+    @Override
+    public int getStorageStartIdx() {
+        return mStorageFile.getStorageStartIdx();
+    }
+
+    @Override
+    public void claimLock(LockType lockType) throws InterruptedIOException {
+        mStorageFile.claimLock(lockType);
+    }
+
+    @Override
+    public void releaseLock() {
+        mStorageFile.releaseLock();
+    }
+
+    @Override
+    public synchronized int getCurrentCapacity() throws IOException {
+        ensureLoaded();
+        return getChunkCount(mLength) * CHUNK_SIZE;
+    }
+
+    @Override
+    public synchronized int readBlock(int fileOffset, byte[] readBuffer, int bufferOffset, int length) throws IOException {
+        ensureLoaded();
+        if (fileOffset >= mLength) {
+            return -1;
+        }
+
+        int chunkIndex = fileOffset / CHUNK_SIZE;
+        int chunkOffset = fileOffset % CHUNK_SIZE;
+        int read = Math.min(length, Math.min(CHUNK_SIZE - chunkOffset, mLength - fileOffset));
+        System.arraycopy(getChunk(chunkIndex), chunkOffset, readBuffer, bufferOffset, read);
+        return read;
+    }
+
+    @Override
+    public synchronized void writeBlock(int fileOffset, byte[] writeBuffer, int bufferOffset, int length) throws IOException {
+        ensureLoaded();
+
+        int written = 0;
+        while (written < length) {
+            int offset = fileOffset + written;
+            int chunkIndex = offset / CHUNK_SIZE;
+            int chunkOffset = offset % CHUNK_SIZE;
+            int chunkWrite = Math.min(length - written, CHUNK_SIZE - chunkOffset);
+
+            byte[] chunk = mDirtyChunks.get(chunkIndex);
+            if (chunk == null) {
+                chunk = getChunk(chunkIndex).clone();
+                mDirtyChunks.put(chunkIndex, chunk);
+            }
+            System.arraycopy(writeBuffer, bufferOffset + written, chunk, chunkOffset, chunkWrite);
+            written += chunkWrite;
+            mLength = Math.max(mLength, offset + chunkWrite);
+        }
+
+        if (mDirtyChunks.size() > MAX_DIRTY_CHUNKS) {
+            flush();
+        }
+    }
+
+    /**
+     * Compress modified chunks and write them together with new chunk table to unused space of underlying file, then
+     * switch header to new chunk table.
+     *
+     * @throws IOException I/O exception happened during write operation, previously flushed contents stay intact
+     */
+    synchronized void flush() throws IOException {
+        if (mDirtyChunks.isEmpty()) {
+            return;
+        }
+
+        int chunkCount = getChunkCount(mLength);
+        int[] chunkOffsets = Arrays.copyOf(mChunkOffsets, chunkCount);
+        int[] chunkTable = Arrays.copyOf(mChunkTable, chunkCount);
+        // space referenced by stored chunk table is released only after header points to new table
+        StorageSpace storageSpace = new StorageSpace(mStorageSpace);
+        List<int[]> replacedRanges = new ArrayList<>();
+        Deflater deflater = new Deflater();
+        try {
+            for (Map.Entry<Integer, byte[]> dirtyChunk : mDirtyChunks.entrySet()) {
+                int i = dirtyChunk.getKey();
+                int chunkLength = Math.min(CHUNK_SIZE, mLength - i * CHUNK_SIZE);
+                byte[] storedChunk = compressChunk(deflater, dirtyChunk.getValue(), chunkLength);
+                int tableEntry;
+                if (storedChunk != null) {
+                    tableEntry = storedChunk.length;
+                }
+                else {
+                    storedChunk = Arrays.copyOf(dirtyChunk.getValue(), chunkLength);
+                    tableEntry = chunkLength | STORED_UNCOMPRESSED_FLAG;
+                }
+
+                int offset = storageSpace.allocate(storedChunk.length);
+                mStorageFile.writeBlock(offset, storedChunk, 0, storedChunk.length);
+                if (i < mStoredChunkCount) {
+                    replacedRanges.add(new int[]{mChunkOffsets[i], getStoredLength(mChunkTable[i])});
+                }
+                chunkOffsets[i] = offset;
+                chunkTable[i] = tableEntry;
+            }
+        } finally {
+            deflater.end();
+        }
+
+        // chunks skipped by seek past end of file are not stored and read as zeroes
+        ByteBuffer table = ByteBuffer.allocate(chunkCount * CHUNK_TABLE_ENTRY_LENGTH);
+        for (int i = 0; i < chunkCount; ++i) {
+            table.putInt(chunkOffsets[i]);
+            table.putInt(chunkTable[i]);
+        }
+        int tableOffset = storageSpace.allocate(table.capacity());
+        mStorageFile.writeBlock(tableOffset, table.array(), 0, table.capacity());
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(CHUNK_SIZE);
+        header.putInt(mLength);
+        header.putInt(tableOffset);
+        mStorageFile.writeBlock(0, header.array(), 0, header.capacity());
+
+        for (int[] replacedRange : replacedRanges) {
+            storageSpace.release(replacedRange[0], replacedRange[1]);
+        }
+        storageSpace.release(mTableOffset, mStoredChunkCount * CHUNK_TABLE_ENTRY_LENGTH);
+
+        mChunkOffsets = chunkOffsets;
+        mChunkTable = chunkTable;
+        mStoredChunkCount = chunkCount;
+        mTableOffset = tableOffset;
+        mStorageSpace = storageSpace;
+        mDirtyChunks.clear();
+        mCachedChunkIndex = -1;
+        mCachedChunk = null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mStorageFile.close();
+        }
+    }
+
+    private void ensureLoaded() throws IOException {
+        if (mIsLoaded) {
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(0, header.array(), 0, HEADER_LENGTH);
+        int chunkSize = header.getInt(0);
+        mLength = header.getInt(4);
+        mTableOffset = header.getInt(8);
+        if (chunkSize != CHUNK_SIZE) {
+            throw new StorageCorrupted("Unsupported compressed chunk size " + chunkSize);
+        }
+        if (mLength < 0 || mTableOffset < HEADER_LENGTH) {
+            throw new StorageCorrupted("Malformed compressed file header");
+        }
+
+        mStoredChunkCount = getChunkCount(mLength);
+        ByteBuffer table = ByteBuffer.allocate(mStoredChunkCount * CHUNK_TABLE_ENTRY_LENGTH);
+        readFully(mTableOffset, table.array(), 0, table.capacity());
+        mChunkOffsets = new int[mStoredChunkCount];
+        mChunkTable = new int[mStoredChunkCount];
+        // every byte not referenced by header, chunk table or stored chunks can be reused by next flush
+        TreeMap<Integer, Integer> usedRanges = new TreeMap<>();
+        usedRanges.put(mTableOffset, table.capacity());
+        for (int i = 0; i < mStoredChunkCount; ++i) {
+            mChunkOffsets[i] = table.getInt();
+            mChunkTable[i] = table.getInt();
+            int storedLength = getStoredLength(mChunkTable[i]);
+            if (storedLength > 0) {
+                if (mChunkOffsets[i] < HEADER_LENGTH) {
+                    throw new StorageCorrupted("Malformed compressed file chunk table");
+                }
+                usedRanges.put(mChunkOffsets[i], storedLength);
+            }
+        }
+        List<int[]> freeRanges = new ArrayList<>();
+        int position = HEADER_LENGTH;
+        for (Map.Entry<Integer, Integer> usedRange : usedRanges.entrySet()) {
+            if (usedRange.getKey() < position) {
+                throw new StorageCorrupted("Stored chunks of compressed file overlap");
+            }
+            freeRanges.add(new int[]{position, usedRange.getKey() - position});
+            position = usedRange.getKey() + usedRange.getValue();
+        }
+        mStorageSpace = new StorageSpace(position);
+        for (int[] freeRange : freeRanges) {
+            mStorageSpace.release(freeRange[0], freeRange[1]);
+        }
+        mIsLoaded = true;
+    }
+
+    private byte[] getChunk(int chunkIndex) throws IOException {
+        byte[] chunk = mDirtyChunks.get(chunkIndex);
+        if (chunk != null) {
+            return chunk;
+        }
+        if (chunkIndex == mCachedChunkIndex) {
+            return mCachedChunk;
+        }
+
+        chunk = new byte[CHUNK_SIZE];
+        if (chunkIndex < mStoredChunkCount) {
+            byte[] storedChunk = readStoredChunk(chunkIndex);
+            if ((mChunkTable[chunkIndex] & STORED_UNCOMPRESSED_FLAG) != 0) {
+                System.arraycopy(storedChunk, 0, chunk, 0, storedChunk.length);
+            }
+            else if (storedChunk.length > 0) {
+                decompressChunk(storedChunk, chunk);
+            }
+        }
+        mCachedChunkIndex = chunkIndex;
+        mCachedChunk = chunk;
+        return chunk;
+    }
+
+    private byte[] readStoredChunk(int chunkIndex) throws IOException {
+        byte[] storedChunk = new byte[getStoredLength(mChunkTable[chunkIndex])];
+        readFully(mChunkOffsets[chunkIndex], storedChunk, 0, storedChunk.length);
+        return storedChunk;
+    }
+
+    /**
+     * Compress chunk contents.
+     *
+     * @return compressed bytes, null if compression does not make chunk smaller
+     */
+    private static byte[] compressChunk(Deflater deflater, byte[] chunk, int length) {
+        deflater.reset();
+        deflater.setInput(chunk, 0, length);
+        deflater.finish();
+        byte[] compressed = new byte[length];
+        int compressedLength = 0;
+        while (!deflater.finished() && compressedLength < compressed.length) {
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+        if (!deflater.finished() || compressedLength >= length) {
+            return null;
+        }
+        return Arrays.copyOf(compressed, compressedLength);
+    }
+
+    private static void decompressChunk(byte[] storedChunk, byte[] chunk) throws StorageCorrupted {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(storedChunk);
+            int length = 0;
+            while (!inflater.finished() && length < chunk.length) {
+                int inflated = inflater.inflate(chunk, length, chunk.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new StorageCorrupted("Compressed chunk is truncated");
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new StorageCorrupted("Compressed chunk is malformed: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void readFully(int fileOffset, byte[] buffer, int bufferOffset, int length) throws IOException {
+        int totalRead = 0;
+        while (totalRead < length) {
+            int read = mStorageFile.readBlock(fileOffset + totalRead, buffer, bufferOffset + totalRead, length - totalRead);
+            if (read <= 0) {
+                throw new StorageCorrupted("Compressed file is shorter than its chunk table");
+            }
+            totalRead += read;
+        }
+    }
+
+    private static int getStoredLength(int chunkTableEntry) {
+        return chunkTableEntry & ~STORED_UNCOMPRESSED_FLAG;
+    }
+
+    private static int getChunkCount(int length) {
+        return (int) (((long) length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /**
+     * Space of underlying file available for stored chunks and chunk table: ranges released by previous flushes and
+     * everything after the end of used space.
+     */
+    private static class StorageSpace {
+        // start of free range to its length, adjacent ranges are merged
+        private final TreeMap<Integer, Integer> mFreeRanges;
+        private int mEnd;
+
+        StorageSpace(int end) {
+            mFreeRanges = new TreeMap<>();
+            mEnd = end;
+        }
+
+        StorageSpace(StorageSpace storageSpace) {
+            mFreeRanges = new TreeMap<>(storageSpace.mFreeRanges);
+            mEnd = storageSpace.mEnd;
+        }
+
+        /**
+         * Take space for bytes, first free range large enough is used, otherwise space is taken at the end.
+         *
+         * @param length count of bytes
+         * @return offset of taken space
+         */
+        int allocate(int length) {
+            if (length == 0) {
+                return mEnd;
+            }
+            for (Map.Entry<Integer, Integer> freeRange : mFreeRanges.entrySet()) {
+                int offset = freeRange.getKey();
+                int freeLength = freeRange.getValue();
+                if (freeLength >= length) {
+                    mFreeRanges.remove(offset);
+                    if (freeLength > length) {
+                        mFreeRanges.put(offset + length, freeLength - length);
+                    }
+                    return offset;
+                }
+            }
+            int offset = mEnd;
+            mEnd += length;
+            return offset;
+        }
+
+        void release(int offset, int length) {
+            if (length == 0) {
+                return;
+            }
+            Map.Entry<Integer, Integer> previousRange = mFreeRanges.floorEntry(offset);
+            if (previousRange != null && previousRange.getKey() + previousRange.getValue() == offset) {
+                mFreeRanges.remove(previousRange.getKey());
+                offset = previousRange.getKey();
+                length += previousRange.getValue();
+            }
+            Integer nextRangeLength = mFreeRanges.remove(offset + length);
+            if (nextRangeLength != null) {
+                length += nextRangeLength;
+            }
+            if (offset + length == mEnd) {
+                mEnd = offset;
+            }
+            else {
+                mFreeRanges.put(offset, length);
+            }
+        }
+    }
+}
@@ -8,8 +8,16 @@ import mmk.vfs.storage.file.StorageFile;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class StorageFileImpl implements StorageFile {
+    private static final int READ_AHEAD_INITIAL_WINDOW = 4;
+    private static final int READ_AHEAD_MAX_WINDOW = 64;
+    private static final int READ_AHEAD_MAX_BUFFER_SIZE = 1 << 18;
+    private static final int BLOCK_INDEX_INITIAL_INTERVAL = 16;
+    private static final int BLOCK_INDEX_MAX_ENTRIES = 1024;
+
     private final StorageFileManagerInternalApi mFileStorage;
     private final int mStorageIndex;
     private final AccessController mLockContainer;
@@ -18,11 +26,31 @@ public class StorageFileImpl implements StorageFile {
     private int mBlockSequence;
     private int mCurrentBlockSequenceStorageId;
 
+    // read-ahead state: window grows while reads continue where previous read ended and shrinks otherwise
+    private int mReadAheadWindow = 0;
+    private int mExpectedReadOffset = -1;
+    private int mLastReadSequence = -1;
+    private int mPrefetchedSequence = -1;
+    private int mPrefetchedStorageId;
+    // storage does not prefetch, so blocks ahead are read by this file into its own buffer, which is valid until file
+    // is written or its lock is released
+    private boolean mReadAheadBuffered = false;
+    private ByteBuffer mReadAheadBuffer = null;
+    private int mReadAheadFirstSequence = -1;
+    private int mReadAheadLength = 0;
+
+    // sampled index of block sequence: entry N is storage id of block with sequence N * mBlockIndexInterval,
+    // filled while sequence is walked, interval is doubled when index is full to keep its size bounded
+    private int[] mBlockIndex = new int[16];
+    private int mBlockIndexCount = 0;
+    private int mBlockIndexInterval = BLOCK_INDEX_INITIAL_INTERVAL;
+
     public StorageFileImpl(StorageFileManagerInternalApi fileStorage, int storageIndex) {
         mFileStorage = fileStorage;
         mStorageIndex = storageIndex;
         mBlockSequence = 0;
         mLockContainer = new AccessController(fileStorage.getLockManager().getLockerForPath(mStorageIndex));
+        recordBlockIndex(0, storageIndex);
     }
 
     @Override
@@ -37,6 +65,8 @@ public class StorageFileImpl implements StorageFile {
 
     @Override
     public synchronized void releaseLock() {
+        // another handle of the same file may write once lock is released
+        mReadAheadFirstSequence = -1;
         mLockContainer.releaseLock();
     }
 
@@ -47,77 +77,460 @@ public class StorageFileImpl implements StorageFile {
 
     @Override
     public synchronized int readBlock(int fileOffset, byte[] readBuffer, int bufferOffset, int length) throws IOException {
+        return readBlock(fileOffset, ByteBuffer.wrap(readBuffer, bufferOffset, length));
+    }
+
+    @Override
+    public synchronized int readBlock(int fileOffset, ByteBuffer readBuffer) throws IOException {
         int totalRead;
 
-        int sequenceId = getBlockSequenceForFileOffset(fileOffset);
-        if (mBlockSequence != sequenceId || mCurrentStorageBlock == null) {
-            changeStorageBlock(sequenceId, false);
-        }
-        if (mBlockSequence < sequenceId) {
+        if (!moveToFileOffset(fileOffset, false)) {
             return -1;
         }
 
         int blockOffset = getBlockOffsetForFileOffset(fileOffset);
-        int blockReadLength = Math.min(mFileStorage.getBlockSize() - blockOffset, length);
-        mCurrentStorageBlock.claim(LockType.READ_LOCK);
-        try {
-            totalRead = mCurrentStorageBlock.read(blockOffset, readBuffer, bufferOffset, blockReadLength);
-        } finally {
-            mCurrentStorageBlock.release();
+        if (readBuffer.remaining() > mFileStorage.getBlockSize() - blockOffset) {
+            totalRead = readBlockRuns(blockOffset, readBuffer);
+        }
+        else if ((totalRead = readFromReadAheadBuffer(blockOffset, readBuffer)) < 0) {
+            // block read is limited by block boundary itself
+            mCurrentStorageBlock.claim(LockType.READ_LOCK);
+            try {
+                totalRead = mCurrentStorageBlock.read(blockOffset, readBuffer);
+            } finally {
+                mCurrentStorageBlock.release();
+            }
         }
 
+        updateReadAhead(fileOffset, totalRead);
         return totalRead;
     }
 
+    /**
+     * Detect sequential reads and hint storage to prefetch blocks following current one. Window of prefetched blocks
+     * grows each time sequential read reaches next block and shrinks on every non-sequential read. If storage does not
+     * prefetch (there is no block cache), blocks of window are read into buffer of this file instead.
+     *
+     * @param fileOffset offset read started at
+     * @param read       count of bytes read
+     * @throws IOException I/O exception happened while walking sequence of blocks
+     */
+    // called from synchronized code
+    private void updateReadAhead(int fileOffset, int read) throws IOException {
+        if (fileOffset == mExpectedReadOffset) {
+            if (mBlockSequence > mLastReadSequence) {
+                mReadAheadWindow = mReadAheadWindow == 0 ? READ_AHEAD_INITIAL_WINDOW : Math.min(mReadAheadWindow * 2, READ_AHEAD_MAX_WINDOW);
+            }
+        }
+        else if (mExpectedReadOffset != -1) {
+            mReadAheadWindow /= 2;
+            mPrefetchedSequence = -1;
+        }
+        mExpectedReadOffset = read > 0 ? fileOffset + read : -1;
+        mLastReadSequence = mBlockSequence;
+
+        if (read > 0 && mReadAheadWindow > 0) {
+            if (mReadAheadBuffered) {
+                readAhead();
+            }
+            else {
+                prefetchAhead();
+            }
+        }
+    }
+
+    // called from synchronized code
+    private void prefetchAhead() throws IOException {
+        int sequence = mBlockSequence;
+        int storageId = mCurrentBlockSequenceStorageId;
+        if (mPrefetchedSequence > sequence) {
+            // continue from where previous hint ended instead of walking already hinted blocks again
+            sequence = mPrefetchedSequence;
+            storageId = mPrefetchedStorageId;
+        }
+        int targetSequence = mBlockSequence + mReadAheadWindow;
+        // hints are given in batches of at least half of window
+        if (targetSequence - sequence < (mReadAheadWindow + 1) / 2) {
+            return;
+        }
+
+        int runStartStorageId = -1;
+        int runBlockCount = 0;
+        while (sequence < targetSequence) {
+            int nextStorageBlockId = mFileStorage.getNextStorageBlockIndex(storageId);
+            if (!mFileStorage.isLastBlockId(nextStorageBlockId)) {
+                break;
+            }
+            ++sequence;
+            storageId = nextStorageBlockId;
+
+            if (runBlockCount > 0 && nextStorageBlockId == runStartStorageId + runBlockCount) {
+                ++runBlockCount;
+                continue;
+            }
+            if (runBlockCount > 0 && !mFileStorage.prefetchStorageBlocks(runStartStorageId, runBlockCount)) {
+                mReadAheadBuffered = true;
+                return;
+            }
+            runStartStorageId = nextStorageBlockId;
+            runBlockCount = 1;
+        }
+        if (runBlockCount > 0 && !mFileStorage.prefetchStorageBlocks(runStartStorageId, runBlockCount)) {
+            mReadAheadBuffered = true;
+            return;
+        }
+        mPrefetchedSequence = sequence;
+        mPrefetchedStorageId = storageId;
+    }
+
+    /**
+     * Read blocks of read-ahead window following current block into read-ahead buffer, physically adjacent blocks are
+     * read as single run. Nothing is done while block following current one is still buffered.
+     *
+     * @throws IOException I/O exception happened while walking sequence of blocks or reading them
+     */
+    // called from synchronized code
+    private void readAhead() throws IOException {
+        int blockSize = mFileStorage.getBlockSize();
+        int nextSequence = mBlockSequence + 1;
+        if (mReadAheadFirstSequence >= 0 && nextSequence >= mReadAheadFirstSequence
+                && (long) (nextSequence - mReadAheadFirstSequence) * blockSize < mReadAheadLength) {
+            return;
+        }
+
+        int windowBlocks = Math.max(1, Math.min(mReadAheadWindow, READ_AHEAD_MAX_BUFFER_SIZE / blockSize));
+        if (mReadAheadBuffer == null || mReadAheadBuffer.capacity() < windowBlocks * blockSize) {
+            mReadAheadBuffer = ByteBuffer.allocate(Math.max(windowBlocks, READ_AHEAD_INITIAL_WINDOW) * blockSize);
+        }
+        mReadAheadFirstSequence = -1;
+        mReadAheadBuffer.clear();
+
+        int storageId = mCurrentBlockSequenceStorageId;
+        int runStartStorageId = -1;
+        int runBlockCount = 0;
+        for (int i = 0; i <= windowBlocks; ++i) {
+            int nextStorageBlockId = -1;
+            if (i < windowBlocks) {
+                nextStorageBlockId = mFileStorage.getNextStorageBlockIndex(storageId);
+            }
+            boolean lastRun = i == windowBlocks || !mFileStorage.isLastBlockId(nextStorageBlockId);
+            if (!lastRun && runBlockCount > 0 && nextStorageBlockId == runStartStorageId + runBlockCount) {
+                ++runBlockCount;
+            }
+            else {
+                if (runBlockCount > 0) {
+                    int runLength = runBlockCount * blockSize;
+                    mReadAheadBuffer.limit(mReadAheadBuffer.position() + runLength);
+                    int read = mFileStorage.readStorageBlocks(runStartStorageId, runBlockCount, 0, mReadAheadBuffer);
+                    if (read < runLength) {
+                        break;
+                    }
+                }
+                if (lastRun) {
+                    break;
+                }
+                runStartStorageId = nextStorageBlockId;
+                runBlockCount = 1;
+            }
+            storageId = nextStorageBlockId;
+        }
+
+        mReadAheadLength = mReadAheadBuffer.position();
+        if (mReadAheadLength > 0) {
+            mReadAheadFirstSequence = nextSequence;
+        }
+    }
+
+    /**
+     * Read bytes of current block from read-ahead buffer.
+     *
+     * @param blockOffset offset in current block to start reading from
+     * @param readBuffer  buffer to read into, must not have more bytes remaining than rest of block
+     * @return count of bytes read, -1 if current block is not buffered
+     */
+    // called from synchronized code
+    private int readFromReadAheadBuffer(int blockOffset, ByteBuffer readBuffer) {
+        if (mReadAheadFirstSequence < 0 || mBlockSequence < mReadAheadFirstSequence) {
+            return -1;
+        }
+        long bufferOffset = (long) (mBlockSequence - mReadAheadFirstSequence) * mFileStorage.getBlockSize() + blockOffset;
+        if (bufferOffset >= mReadAheadLength) {
+            return -1;
+        }
+
+        int length = (int) Math.min(readBuffer.remaining(), mReadAheadLength - bufferOffset);
+        ByteBuffer bufferedBytes = mReadAheadBuffer.duplicate();
+        bufferedBytes.limit((int) bufferOffset + length);
+        bufferedBytes.position((int) bufferOffset);
+        readBuffer.put(bufferedBytes);
+        return length;
+    }
+
+    /**
+     * Read range spanning several blocks, starting from current block. Sequence of blocks covering the range is
+     * resolved first, then physically adjacent blocks are read as single run. Current block is moved to last block
+     * reached by read.
+     *
+     * @param blockOffset offset in current block to start reading from
+     * @param readBuffer  buffer to read into
+     * @return count of bytes which were actually read
+     * @throws IOException I/O exception happened during read operation
+     */
+    // called from synchronized code
+    private int readBlockRuns(int blockOffset, ByteBuffer readBuffer) throws IOException {
+        int blockSize = mFileStorage.getBlockSize();
+        int bytesToRead = readBuffer.remaining();
+
+        int runStartStorageId = mCurrentBlockSequenceStorageId;
+        int runBlockCount = 1;
+        int runStartOffset = blockOffset;
+        int runEndSequence = mBlockSequence;
+        int runEndStorageId = mCurrentBlockSequenceStorageId;
+        int bytesInRuns = blockSize - blockOffset;
+
+        int totalRead = 0;
+        boolean lastRun = false;
+        while (!lastRun) {
+            int nextStorageBlockId = -1;
+            if (bytesInRuns < bytesToRead) {
+                nextStorageBlockId = mFileStorage.getNextStorageBlockIndex(runEndStorageId);
+            }
+            lastRun = bytesInRuns >= bytesToRead || !mFileStorage.isLastBlockId(nextStorageBlockId);
+
+            if (!lastRun && nextStorageBlockId == runStartStorageId + runBlockCount) {
+                ++runBlockCount;
+            }
+            else {
+                int runLength = Math.min(runBlockCount * blockSize - runStartOffset, bytesToRead - totalRead);
+                int limit = readBuffer.limit();
+                readBuffer.limit(readBuffer.position() + runLength);
+                int read;
+                try {
+                    read = mFileStorage.readStorageBlocks(runStartStorageId, runBlockCount, runStartOffset, readBuffer);
+                } finally {
+                    readBuffer.limit(limit);
+                }
+                if (read > 0) {
+                    totalRead += read;
+                }
+                if (read < runLength) {
+                    // storage returned less than requested, current block is left unchanged
+                    break;
+                }
+
+                runStartStorageId = nextStorageBlockId;
+                runBlockCount = 1;
+                runStartOffset = 0;
+            }
+            if (!lastRun) {
+                runEndStorageId = nextStorageBlockId;
+                ++runEndSequence;
+                recordBlockIndex(runEndSequence, runEndStorageId);
+                bytesInRuns += blockSize;
+            }
+            else {
+                setCurrentStorageBlock(runEndSequence, runEndStorageId);
+            }
+        }
+
+        return totalRead == 0 ? -1 : totalRead;
+    }
+
     @Override
     public synchronized void writeBlock(int fileOffset, byte[] writeBuffer, int bufferOffset, int length) throws IOException {
+        writeBlock(fileOffset, ByteBuffer.wrap(writeBuffer, bufferOffset, length));
+    }
+
+    @Override
+    public synchronized void writeBlock(int fileOffset, ByteBuffer writeBuffer) throws IOException {
+        if (!writeBuffer.hasRemaining()) {
+            return;
+        }
+        mReadAheadFirstSequence = -1;
+
+        moveToFileOffset(fileOffset, true);
+
+        int blockOffset = getBlockOffsetForFileOffset(fileOffset);
+        if (writeBuffer.remaining() > mFileStorage.getBlockSize() - blockOffset) {
+            writeBlockRuns(blockOffset, writeBuffer);
+            return;
+        }
+
+        mCurrentStorageBlock.claim(LockType.WRITE_LOCK);
+        try {
+            mCurrentStorageBlock.write(blockOffset, writeBuffer);
+        } finally {
+            mCurrentStorageBlock.release();
+        }
+    }
+
+    /**
+     * Write range spanning several blocks, starting from current block. File is extended as needed while sequence of
+     * blocks covering the range is resolved, physically adjacent blocks are written as single run. Current block is
+     * moved to last block reached by write.
+     *
+     * @param blockOffset offset in current block to start writing at
+     * @param writeBuffer buffer to write from
+     * @throws IOException I/O exception happened during write operation
+     */
+    // called from synchronized code
+    private void writeBlockRuns(int blockOffset, ByteBuffer writeBuffer) throws IOException {
+        int blockSize = mFileStorage.getBlockSize();
+        int bytesToWrite = writeBuffer.remaining();
+
+        int runStartStorageId = mCurrentBlockSequenceStorageId;
+        int runBlockCount = 1;
+        int runStartOffset = blockOffset;
+        int runEndSequence = mBlockSequence;
+        int runEndStorageId = mCurrentBlockSequenceStorageId;
+        int bytesInRuns = blockSize - blockOffset;
+
+        // blocks allocated for the rest of write once end of file was reached
+        int[] newStorageBlockIds = new int[0];
+        int newStorageBlockIndex = 0;
+
         int totalWrite = 0;
-        while (totalWrite < length) {
-            int offset = fileOffset + totalWrite;
-            int sequenceId = getBlockSequenceForFileOffset(offset);
-            if (mBlockSequence != sequenceId || mCurrentStorageBlock == null) {
-                changeStorageBlock(sequenceId, true);
-            }
-            int blockOffset = getBlockOffsetForFileOffset(offset);
-            int blockWriteLength = Math.min(mFileStorage.getBlockSize() - blockOffset, length - totalWrite);
-            mCurrentStorageBlock.claim(LockType.WRITE_LOCK);
-            try {
-                //mCurrentStorageBlock.ensureCapacity(); // this is expected to be done on new block allocation, maybe remove this line
-                mCurrentStorageBlock.write(blockOffset, writeBuffer, bufferOffset + totalWrite, blockWriteLength);
-            } finally {
-                mCurrentStorageBlock.release();
+        while (true) {
+            boolean lastRun = bytesInRuns >= bytesToWrite;
+            int nextStorageBlockId = -1;
+            if (!lastRun && newStorageBlockIndex < newStorageBlockIds.length) {
+                nextStorageBlockId = newStorageBlockIds[newStorageBlockIndex++];
+            }
+            else if (!lastRun) {
+                nextStorageBlockId = mFileStorage.getNextStorageBlockIndex(runEndStorageId);
+                if (!mFileStorage.isLastBlockId(nextStorageBlockId)) {
+                    int missingBlocks = (bytesToWrite - bytesInRuns + blockSize - 1) / blockSize;
+                    newStorageBlockIds = mFileStorage.extendFileFromBlock(mStorageIndex, runEndStorageId, missingBlocks);
+                    newStorageBlockIndex = 0;
+                    nextStorageBlockId = newStorageBlockIds[newStorageBlockIndex++];
+                }
             }
-            totalWrite += blockWriteLength;
+
+            if (!lastRun && nextStorageBlockId == runStartStorageId + runBlockCount) {
+                ++runBlockCount;
+            }
+            else {
+                int runLength = Math.min(runBlockCount * blockSize - runStartOffset, bytesToWrite - totalWrite);
+                int limit = writeBuffer.limit();
+                writeBuffer.limit(writeBuffer.position() + runLength);
+                try {
+                    mFileStorage.writeStorageBlocks(runStartStorageId, runBlockCount, runStartOffset, writeBuffer);
+                } finally {
+                    writeBuffer.limit(limit);
+                }
+                totalWrite += runLength;
+                if (lastRun) {
+                    break;
+                }
+
+                runStartStorageId = nextStorageBlockId;
+                runBlockCount = 1;
+                runStartOffset = 0;
+            }
+            runEndStorageId = nextStorageBlockId;
+            ++runEndSequence;
+            recordBlockIndex(runEndSequence, runEndStorageId);
+            bytesInRuns += blockSize;
         }
+        setCurrentStorageBlock(runEndSequence, runEndStorageId);
+    }
+
+    /**
+     * Make block, which contains provided file offset, current block.
+     *
+     * @param fileOffset offset in file
+     * @param canCreate  whether file can be extended to reach this offset
+     * @return true if current block contains offset, false if file is shorter and can't be extended
+     * @throws IOException I/O exception happened while walking sequence of blocks
+     */
+    // called from synchronized code
+    private boolean moveToFileOffset(int fileOffset, boolean canCreate) throws IOException {
+        int sequenceId = getBlockSequenceForFileOffset(fileOffset);
+        if (mBlockSequence != sequenceId || mCurrentStorageBlock == null) {
+            changeStorageBlock(sequenceId, canCreate);
+        }
+        return mBlockSequence >= sequenceId;
     }
 
     // called from synchronized code
     private void changeStorageBlock(int sequenceId, boolean canCreate) throws IOException {
-        if (sequenceId < mBlockSequence || mCurrentStorageBlock == null) {
-            mBlockSequence = 0;
-            mCurrentBlockSequenceStorageId = mStorageIndex;
+        // walk starts from closest indexed block unless current block is closer
+        int indexEntry = Math.min(sequenceId / mBlockIndexInterval, mBlockIndexCount - 1);
+        int indexedSequence = indexEntry * mBlockIndexInterval;
+        if (sequenceId < mBlockSequence || mCurrentStorageBlock == null || indexedSequence > mBlockSequence) {
+            mBlockSequence = indexedSequence;
+            mCurrentBlockSequenceStorageId = mBlockIndex[indexEntry];
+        }
+        if (sequenceId - mBlockSequence > 1) {
+            // appends and seeks near end of file start from last block of sequence
+            int lastSequence = mFileStorage.getCurrentCapacity(mStorageIndex) / mFileStorage.getBlockSize() - 1;
+            if (lastSequence > mBlockSequence && lastSequence <= sequenceId) {
+                mBlockSequence = lastSequence;
+                mCurrentBlockSequenceStorageId = mFileStorage.getLastStorageBlockIndex(mStorageIndex);
+            }
         }
         while (mBlockSequence < sequenceId) {
             int nextStorageBlockIndex = mFileStorage.getNextStorageBlockIndex(mCurrentBlockSequenceStorageId);
             if (!mFileStorage.isLastBlockId(nextStorageBlockIndex)) {
-                if (canCreate) {
-                    nextStorageBlockIndex = mFileStorage.extendFileFromBlock(mCurrentBlockSequenceStorageId);
+                if (!canCreate) {
+                    break;
                 }
-                else {
-                    return;
+                // all blocks up to requested one are allocated at once
+                for (int newStorageBlockId : mFileStorage.extendFileFromBlock(mStorageIndex, mCurrentBlockSequenceStorageId, sequenceId - mBlockSequence)) {
+                    mCurrentBlockSequenceStorageId = newStorageBlockId;
+                    ++mBlockSequence;
+                    recordBlockIndex(mBlockSequence, mCurrentBlockSequenceStorageId);
                 }
+                break;
             }
             mCurrentBlockSequenceStorageId = nextStorageBlockIndex;
             ++mBlockSequence;
+            recordBlockIndex(mBlockSequence, mCurrentBlockSequenceStorageId);
         }
+        setCurrentStorageBlock(mBlockSequence, mCurrentBlockSequenceStorageId);
+    }
+
+    /**
+     * Add block to sampled index if it is next block to be indexed. Blocks are only appended to sequence, so
+     * indexed blocks stay valid while file is open.
+     *
+     * @param sequenceId     sequence of block in file
+     * @param storageBlockId storage id of block
+     */
+    // called from synchronized code
+    private void recordBlockIndex(int sequenceId, int storageBlockId) {
+        if (sequenceId != mBlockIndexCount * mBlockIndexInterval) {
+            return;
+        }
+        if (mBlockIndexCount == BLOCK_INDEX_MAX_ENTRIES) {
+            // keep every other entry, sequence being indexed is still next entry with doubled interval
+            mBlockIndexCount = (mBlockIndexCount + 1) / 2;
+            for (int i = 1; i < mBlockIndexCount; ++i) {
+                mBlockIndex[i] = mBlockIndex[2 * i];
+            }
+            mBlockIndexInterval *= 2;
+        }
+        if (mBlockIndexCount == mBlockIndex.length) {
+            mBlockIndex = Arrays.copyOf(mBlockIndex, mBlockIndex.length * 2);
+        }
+        mBlockIndex[mBlockIndexCount++] = storageBlockId;
+    }
+
+    // called from synchronized code
+    private void setCurrentStorageBlock(int sequenceId, int storageBlockId) throws IOException {
         if (mCurrentStorageBlock != null) {
             mCurrentStorageBlock.close();
+            mCurrentStorageBlock = null;
         }
-        mCurrentStorageBlock = mFileStorage.getStorageBlock(mCurrentBlockSequenceStorageId);
+        mBlockSequence = sequenceId;
+        mCurrentBlockSequenceStorageId = storageBlockId;
+        mCurrentStorageBlock = mFileStorage.getStorageBlock(storageBlockId);
     }
 
     @Override
     public synchronized void close() {
+        mReadAheadFirstSequence = -1;
+        mReadAheadBuffer = null;
         if (mCurrentStorageBlock != null) {
             mCurrentStorageBlock.close();
             mCurrentStorageBlock = null;
@@ -146,6 +559,17 @@ public class StorageFileImpl implements StorageFile {
          */
         int getCurrentCapacity(int storageFileId) throws IOException;
 
+        /**
+         * Get index of last StorageBlock of file.
+         * <p>
+         * This API method MUST NOT be used outside of StorageFile implementation.
+         *
+         * @param storageFileId StorageFile index
+         * @return index of last storage block of file
+         * @throws IOException I/O exception happened during operation
+         */
+        int getLastStorageBlockIndex(int storageFileId) throws IOException;
+
         /**
          * Open handle for storage block by storage block index.
          * <p>
@@ -168,6 +592,44 @@ public class StorageFileImpl implements StorageFile {
          */
         int getNextStorageBlockIndex(int storageBlockId) throws IOException;
 
+        /**
+         * Read run of physically adjacent storage blocks at once.
+         * <p>
+         * This API method MUST NOT be used outside of StorageFile implementation.
+         *
+         * @param firstStorageBlockId index of first storage block in run
+         * @param blockCount          count of blocks in run
+         * @param firstBlockOffset    offset in first block to start reading from
+         * @param buffer              buffer to read into, at most remaining bytes are read
+         * @return count of bytes which were actually read, -1 if there is nothing to read
+         * @throws IOException I/O exception happened during operation
+         */
+        int readStorageBlocks(int firstStorageBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException;
+
+        /**
+         * Write run of physically adjacent storage blocks at once.
+         * <p>
+         * This API method MUST NOT be used outside of StorageFile implementation.
+         *
+         * @param firstStorageBlockId index of first storage block in run
+         * @param blockCount          count of blocks in run
+         * @param firstBlockOffset    offset in first block to start writing at
+         * @param buffer              buffer to write from, all remaining bytes are written
+         * @throws IOException I/O exception happened during operation
+         */
+        void writeStorageBlocks(int firstStorageBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException;
+
+        /**
+         * Hint that run of physically adjacent storage blocks is going to be read soon.
+         * <p>
+         * This API method MUST NOT be used outside of StorageFile implementation.
+         *
+         * @param firstStorageBlockId index of first storage block in run
+         * @param blockCount          count of blocks in run
+         * @return false if underlying storage does not support prefetching
+         */
+        boolean prefetchStorageBlocks(int firstStorageBlockId, int blockCount);
+
         /**
          * Get block size of underlying block storage.
          * <p>
@@ -188,16 +650,19 @@ public class StorageFileImpl implements StorageFile {
         boolean isLastBlockId(int storageBlockId);
 
         /**
-         * Acquire new storage block to extend file from provided storage block.
+         * Acquire new storage blocks to extend file from provided storage block. All blocks are allocated and linked
+         * at once, adjacent blocks are preferred.
          * Provided StorageBlock index MUST point to last block of StorageFile sequence.
          * <p>
          * This API method MUST NOT be used outside of StorageFile implementation.
          *
+         * @param storageFileId  index of StorageFile
          * @param storageBlockId index of last block in StorageFile's Block sequence
-         * @return index of newly allocated StorageBlock
+         * @param blockCount     count of blocks to allocate
+         * @return indexes of newly allocated StorageBlocks in order of sequence
          * @throws IOException I/O exception happened during operation
          */
-        int extendFileFromBlock(int storageBlockId) throws IOException;
+        int[] extendFileFromBlock(int storageFileId, int storageBlockId, int blockCount) throws IOException;
 
         /**
          * Get lock manager for controlling access to StorageFiles.
@@ -89,7 +89,8 @@ public class VFSEntryImpl implements VFSEntry {
         }
 
         if (entryStorageStartIdx != mVfs.getDirectoryHandlerFactory().getNoStorageFileIndex()) {
-            mVfs.getStorage().freeStorage(entryStorageStartIdx);
+            // blocks of removed entry are reclaimed in background, so deletion of large file does not stall VFS
+            mVfs.getStorage().scheduleFreeStorage(entryStorageStartIdx);
         }
     }
 }
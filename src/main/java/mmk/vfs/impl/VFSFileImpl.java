@@ -7,6 +7,7 @@ import mmk.vfs.storage.file.StorageFile;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class VFSFileImpl extends VFSEntryImpl implements VFSFile {
     private int mCurrentFileOffset = 0;
@@ -76,6 +77,55 @@ public class VFSFileImpl extends VFSEntryImpl implements VFSFile {
         mCurrentFileLength = Math.max(getLength(), mCurrentFileOffset);
     }
 
+    @Override
+    public synchronized int read(ByteBuffer buffer) throws IOException {
+        if (mIsClosed) throw new IllegalStateException("Already closed");
+        if (!mLockContainer.isReadLocked()) {
+            throw new IOException("File is not opened for read");
+        }
+
+        prepareStorageContainer(false);
+
+        int fileLength = getLength();
+        if (mCurrentFileOffset >= fileLength) {
+            return -1;
+        }
+        int length = Math.min(buffer.remaining(), fileLength - mCurrentFileOffset);
+        if (length == 0) {
+            return 0;
+        }
+
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + length);
+        int read;
+        try {
+            read = mStorageFile.readBlock(mCurrentFileOffset, buffer);
+        } finally {
+            buffer.limit(limit);
+        }
+        if (read > 0) {
+            mCurrentFileOffset += read;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized void write(ByteBuffer buffer) throws IOException {
+        if (mIsClosed) throw new IllegalStateException("Already closed");
+        if (!mLockContainer.isWriteLocked()) {
+            throw new IOException("File is not opened for writing");
+        }
+
+        int length = buffer.remaining();
+        if (length <= 0) return;
+        prepareStorageContainer(true);
+
+        mStorageFile.writeBlock(mCurrentFileOffset, buffer);
+        mCurrentFileOffset += length;
+
+        mCurrentFileLength = Math.max(getLength(), mCurrentFileOffset);
+    }
+
     private void updateFileLength() throws IOException {
         StorageFile storageFile = mVfs.getStorage().getStorageFile(mParentDirectoryId);
         try (DirectoryHandler directoryHandler = mVfs.getDirectoryHandlerFactory().createNewHandler(storageFile)) {
@@ -101,6 +151,9 @@ public class VFSFileImpl extends VFSEntryImpl implements VFSFile {
                 }
             }
             mStorageFile = mVfs.getStorage().getStorageFile(storageContainerId);
+            if (mVfs.isCompressedFile(this)) {
+                mStorageFile = new CompressedStorageFile(mStorageFile, getLength());
+            }
         }
     }
 
@@ -111,6 +164,10 @@ public class VFSFileImpl extends VFSEntryImpl implements VFSFile {
     }
 
     private synchronized void flush() throws IOException {
+        if (mStorageFile instanceof CompressedStorageFile) {
+            // chunk table must describe written data before entry length does
+            ((CompressedStorageFile) mStorageFile).flush();
+        }
         if (mCurrentFileLength > -1) {
             updateFileLength();
         }
@@ -26,6 +26,8 @@ public class VirtualFileSystemImpl implements VirtualFileSystem {
     public static final int DEFAULT_BLOCK_SIZE = 1 << 8;
 
     private boolean mIsClosed = false;
+    // set while quiesced action runs, file tree modifications and opening files for write wait until it is reset
+    private boolean mIsQuiesced = false;
 
     private final Object mFileTreeModificationLock = new Object();
 
@@ -34,6 +36,14 @@ public class VirtualFileSystemImpl implements VirtualFileSystem {
 
     private final AccessProviderManager<String> mAccessProviderManager;
     private final Set<VFSEntry> mOpenedEntries = new HashSet<>();
+    private final Set<VFSEntry> mOpenedWriters = new HashSet<>();
+
+    /**
+     * Action run while VFS is quiesced, see {@link #runQuiesced(QuiescedAction)}.
+     */
+    public interface QuiescedAction {
+        void run() throws IOException;
+    }
 
     public VirtualFileSystemImpl(StorageFileManager storage, DirectoryHandlerFactory directoryHandlerFactory) {
         mStorage = storage;
@@ -146,6 +156,7 @@ public class VirtualFileSystemImpl implements VirtualFileSystem {
 
         synchronized (mFileTreeModificationLock) {
             if (mIsClosed) throw new VFSClosedException();
+            waitWhileQuiesced();
 
             VFSDirectoryImpl dirEntry = findDirEntry(parsedPath, parsedPath.length - 1);
             if (dirEntry == null) {
@@ -189,12 +200,20 @@ public class VirtualFileSystemImpl implements VirtualFileSystem {
     }
 
     public void createFile(String path) throws IOException {
+        createFile(path, FileStorageMode.PLAIN);
+    }
+
+    public void createFile(String path, FileStorageMode storageMode) throws IOException {
         String[] parsedPath = parsePath(path);
         if (parsedPath.length == 0)
             throw new RootDirectoryModificationException("Can't create file in place of root directory");
+        if (FileStorageMode.COMPRESSED == storageMode && !mDirectoryHandlerFactory.isCompressionSupported()) {
+            throw new UnsupportedOperationException("Directory records of this VFS do not support compressed files");
+        }
 
         synchronized (mFileTreeModificationLock) {
             if (mIsClosed) throw new VFSClosedException();
+            waitWhileQuiesced();
 
             VFSDirectoryImpl dirEntry = findDirEntry(parsedPath, parsedPath.length - 1);
             if (dirEntry == null) {
@@ -206,6 +225,7 @@ public class VirtualFileSystemImpl implements VirtualFileSystem {
                 newDirectoryEntry.setStorageStartIdx(mDirectoryHandlerFactory.getNoStorageFileIndex());
                 newDirectoryEntry.setEntryName(parsedPath[parsedPath.length - 1]);
                 newDirectoryEntry.setFileType(DirectoryEntryType.FILE);
+                newDirectoryEntry.setCompressed(FileStorageMode.COMPRESSED == storageMode);
 
                 dirEntry.lock(LockType.READ_LOCK);
                 VFSEntry nextEntry;
@@ -238,10 +258,14 @@ public class VirtualFileSystemImpl implements VirtualFileSystem {
             }
             else if (FileOpenMode.READ_WRITE == fileOpenMode) {
                 lockTypeFromFileOpenType = LockType.WRITE_LOCK;
+                waitWhileQuiesced();
             }
 
             entry.lock(lockTypeFromFileOpenType);
             mOpenedEntries.add(entry);
+            if (LockType.WRITE_LOCK == lockTypeFromFileOpenType) {
+                mOpenedWriters.add(entry);
+            }
             return entry;
         }
     }
@@ -252,6 +276,7 @@ public class VirtualFileSystemImpl implements VirtualFileSystem {
 
         synchronized (mFileTreeModificationLock) {
             if (mIsClosed) throw new VFSClosedException();
+            waitWhileQuiesced();
 
             VFSDirectoryImpl parentDirectory = findDirEntry(parsedPath, parsedPath.length - 1);
             if (parentDirectory == null) throw new FileNotFoundException("Directory not found");
@@ -285,10 +310,65 @@ public class VirtualFileSystemImpl implements VirtualFileSystem {
         }
     }
 
+    public void sync() throws IOException {
+        synchronized (mFileTreeModificationLock) {
+            if (mIsClosed) throw new VFSClosedException();
+        }
+        mStorage.sync();
+    }
+
+    /**
+     * Run action while file tree is not modified: waits until files opened for write are closed and storage finishes
+     * background work, then runs action, while creating, deleting and opening files for write waits.
+     * Files must not be opened for write by current thread, as such call would never return.
+     *
+     * @param action action to run, ex. writing image of underlying storage
+     * @throws VFSClosedException     if this instance of VFS was already closed or was closed while waiting
+     * @throws InterruptedIOException if thread was interrupted while waiting
+     * @throws IOException            I/O exception thrown by action or by storage
+     */
+    public void runQuiesced(QuiescedAction action) throws IOException {
+        synchronized (mFileTreeModificationLock) {
+            if (mIsClosed) throw new VFSClosedException();
+            waitWhileQuiesced();
+
+            mIsQuiesced = true;
+            try {
+                while (!mOpenedWriters.isEmpty()) {
+                    waitForTreeChange();
+                }
+                mStorage.awaitPendingReclamation();
+                action.run();
+            } finally {
+                mIsQuiesced = false;
+                mFileTreeModificationLock.notifyAll();
+            }
+        }
+    }
+
+    // called from synchronized code
+    private void waitWhileQuiesced() throws IOException {
+        while (mIsQuiesced) {
+            waitForTreeChange();
+        }
+    }
+
+    // called from synchronized code
+    private void waitForTreeChange() throws IOException {
+        try {
+            mFileTreeModificationLock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Waiting for quiesced VFS interrupted");
+        }
+        if (mIsClosed) throw new VFSClosedException();
+    }
+
     public void close() {
         synchronized (mFileTreeModificationLock) {
             if (!mIsClosed) {
                 mIsClosed = true;
+                mFileTreeModificationLock.notifyAll();
 
                 for (VFSEntry entry : new ArrayList<>(mOpenedEntries)) {
                     try {
@@ -348,9 +428,19 @@ public class VirtualFileSystemImpl implements VirtualFileSystem {
         }
     }
 
+    boolean isCompressedFile(VFSFileImpl file) throws IOException {
+        try (DirectoryHandler handler = mDirectoryHandlerFactory.createNewHandler(mStorage.getStorageFile(file.mParentDirectoryId))) {
+            DirectoryEntry dirEntry = handler.readEntry(file.mParentDirectoryOffset);
+            return dirEntry.isCompressed();
+        }
+    }
+
     void entryClosed(VFSEntryImpl vfsEntry) {
         synchronized (mFileTreeModificationLock) {
             mOpenedEntries.remove(vfsEntry);
+            if (mOpenedWriters.remove(vfsEntry)) {
+                mFileTreeModificationLock.notifyAll();
+            }
         }
     }
 
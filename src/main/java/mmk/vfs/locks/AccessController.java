@@ -6,7 +6,7 @@ import java.io.InterruptedIOException;
  * Utility class for wrapping lock claiming, storage and release to lessen code redundancy in other files.
  */
 public class AccessController {
-    private final AccessProvider mLocker;
+    private AccessProvider mLocker;
     private boolean mClosed;
     private transient Lock mLock;
 
@@ -16,6 +16,20 @@ public class AccessController {
         mLocker.addReference();
     }
 
+    /**
+     * Reuse closed controller for another access provider, so controller objects can be pooled together with
+     * objects owning them.
+     *
+     * @param locker access provider to attach this controller to
+     */
+    public synchronized void reopen(AccessProvider locker) {
+        if (!mClosed) throw new IllegalStateException("Lock is still open");
+
+        mLocker = locker;
+        mClosed = false;
+        mLocker.addReference();
+    }
+
     public synchronized boolean claimLock(LockType lockType) throws InterruptedIOException {
         if (mClosed) throw new IllegalStateException("Lock already closed");
 
@@ -0,0 +1,79 @@
+package mmk.vfs.memory;
+
+import mmk.vfs.VirtualFileSystem;
+import mmk.vfs.exceptions.VFSClosedException;
+import mmk.vfs.directories.DirectoryHandlerFactoryV2;
+import mmk.vfs.impl.VirtualFileSystemImpl;
+import mmk.vfs.storage.blocks.OffHeapBlockStorageManager;
+import mmk.vfs.storage.file.StorageFileManager;
+import mmk.vfs.storage.file.StorageFileManagerV1;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Utility class for creation of Virtual File System using off-heap memory for data storage.
+ * Contents of such VFS are lost when it is closed, unless snapshot of its storage was written with
+ * {@link #writeSnapshot(VirtualFileSystem, OffHeapBlockStorageManager, File)}.
+ */
+public final class InMemoryVirtualFileSystem {
+    private InMemoryVirtualFileSystem() {
+    }
+
+    /**
+     * Create empty in-memory storage.
+     *
+     * @param blockSize size of allocation blocks used to store files inside VFS
+     * @return new storage, to be passed to {@link #open(OffHeapBlockStorageManager)}
+     */
+    public static OffHeapBlockStorageManager createStorage(int blockSize) {
+        if (blockSize < VirtualFileSystemImpl.MIN_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block Size must not be less than " + VirtualFileSystemImpl.MIN_BLOCK_SIZE);
+        }
+        else if (blockSize > VirtualFileSystemImpl.MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block Size must not be greater than " + VirtualFileSystemImpl.MAX_BLOCK_SIZE);
+        }
+        return new OffHeapBlockStorageManager(blockSize);
+    }
+
+    /**
+     * Open in-memory Virtual File System on top of storage. Storage is closed together with VFS.
+     *
+     * @param storage storage to keep VFS contents in, either new or loaded from snapshot
+     * @return opened VFS
+     * @throws IOException I/O exception happened while opening VFS
+     */
+    public static VirtualFileSystem open(OffHeapBlockStorageManager storage) throws IOException {
+        StorageFileManager storageFileManager = new StorageFileManagerV1(storage);
+        return new VirtualFileSystemImpl(storageFileManager, new DirectoryHandlerFactoryV2());
+    }
+
+    /**
+     * Write snapshot image of VFS storage, which contains consistent file tree. Waits until all files opened for write
+     * are closed and deleted files are freed, creating, deleting and opening files for write waits until image is
+     * written. Files opened for read stay usable. Current thread must not have files opened for write.
+     *
+     * @param vfs          VFS opened with {@link #open(OffHeapBlockStorageManager)}
+     * @param storage      storage VFS was opened on
+     * @param snapshotFile file to write image to, replaced if exists
+     * @throws VFSClosedException if VFS was already closed or was closed while waiting
+     * @throws IOException        I/O exception happened while writing image or waiting was interrupted
+     */
+    public static void writeSnapshot(VirtualFileSystem vfs, OffHeapBlockStorageManager storage, File snapshotFile) throws IOException {
+        if (!(vfs instanceof VirtualFileSystemImpl)) {
+            throw new IllegalArgumentException("VFS was not opened by InMemoryVirtualFileSystem");
+        }
+        ((VirtualFileSystemImpl) vfs).runQuiesced(() -> storage.writeSnapshot(snapshotFile));
+    }
+
+    /**
+     * Create new empty in-memory Virtual File System.
+     *
+     * @param blockSize size of allocation blocks used to store files inside VFS
+     * @return opened VFS
+     * @throws IOException I/O exception happened while opening VFS
+     */
+    public static VirtualFileSystem create(int blockSize) throws IOException {
+        return open(createStorage(blockSize));
+    }
+}
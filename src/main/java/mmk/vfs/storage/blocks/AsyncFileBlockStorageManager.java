@@ -0,0 +1,398 @@
+package mmk.vfs.storage.blocks;
+
+import mmk.vfs.exceptions.ObjectClosedException;
+import mmk.vfs.locks.AccessController;
+import mmk.vfs.locks.AccessProviderManager;
+import mmk.vfs.locks.LockType;
+import mmk.vfs.locks.ReadWriteAccessProvider;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * File-based storage using asynchronous file channel. Reads and writes of blocks are submitted to the channel without
+ * holding any storage-wide lock, so many operations can be queued to storage device at once. Count of operations
+ * in flight is bounded, starting operation waits while limit is reached.
+ */
+public class AsyncFileBlockStorageManager implements BlockStorageManager {
+    /**
+     * Default limit of operations in flight.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    private final AsynchronousFileChannel mFileChannel;
+    private final FileLock mFileLock;
+
+    private volatile boolean mIsClosed = false;
+    private final long mDataStartOffset;
+    private final int mBlockSize;
+    private final int mMaxInFlight;
+    private final Semaphore mInFlightPermits;
+    private final AccessProviderManager<Integer> mLockManager = new AccessProviderManager<>(ReadWriteAccessProvider::new);
+    private final Set<StorageBlock> mOpenedStorageBlocks = new HashSet<>();
+    // guards only growth of backing file
+    private final Object mCapacityLock = new Object();
+    private final DurabilityController mDurabilityController;
+
+    /**
+     * Constructor.
+     *
+     * @param fileChannel     file to use as storage
+     * @param dataStartOffset offset in file where storage actually starts
+     * @param blockSize       size of each block
+     * @throws IOException I/O exception trying to acquire lock on file
+     */
+    public AsyncFileBlockStorageManager(AsynchronousFileChannel fileChannel, long dataStartOffset, int blockSize) throws IOException {
+        this(fileChannel, dataStartOffset, blockSize, DEFAULT_MAX_IN_FLIGHT, DurabilityPolicy.ALWAYS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param fileChannel      file to use as storage
+     * @param dataStartOffset  offset in file where storage actually starts
+     * @param blockSize        size of each block
+     * @param maxInFlight      maximal count of operations submitted to channel at once
+     * @param durabilityPolicy policy of forcing written blocks to storage device
+     * @throws IOException I/O exception trying to acquire lock on file
+     */
+    public AsyncFileBlockStorageManager(AsynchronousFileChannel fileChannel, long dataStartOffset, int blockSize, int maxInFlight, DurabilityPolicy durabilityPolicy) throws IOException {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("Count of operations in flight must be positive");
+        }
+        mFileChannel = fileChannel;
+        mFileLock = await(fileChannel.lock());
+        mDataStartOffset = dataStartOffset;
+        mBlockSize = blockSize;
+        mMaxInFlight = maxInFlight;
+        mInFlightPermits = new Semaphore(maxInFlight);
+        mDurabilityController = new DurabilityController(durabilityPolicy, () -> mFileChannel.force(false));
+    }
+
+    /**
+     * Wait for completion of future, unwrapping exception it was completed with.
+     *
+     * @param future future to wait for
+     * @param <T>    type of future result
+     * @return result of future
+     * @throws IOException exception future was completed with
+     */
+    public static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    @Override
+    public StorageBlock getStorageBlock(int blockId) throws ObjectClosedException {
+        return getAsyncStorageBlock(blockId);
+    }
+
+    /**
+     * Get block with asynchronous read and write operations.
+     *
+     * @param blockId index of block
+     * @return block, which must be closed after use
+     * @throws ObjectClosedException if storage was already closed
+     */
+    public synchronized AsyncStorageBlock getAsyncStorageBlock(int blockId) throws ObjectClosedException {
+        if (mIsClosed) throw new ObjectClosedException();
+
+        AsyncFileBlock block = new AsyncFileBlock(blockId);
+        mOpenedStorageBlocks.add(block);
+        return block;
+    }
+
+    @Override
+    public int readBlocks(int firstBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+        return await(readBlocksAsync(firstBlockId, blockCount, firstBlockOffset, buffer));
+    }
+
+    /**
+     * Start read of several consecutive blocks as single operation. Read locks of blocks are claimed before operation is
+     * started and released when it completes.
+     *
+     * @param firstBlockId     index of first block to read
+     * @param blockCount       count of consecutive blocks to read
+     * @param firstBlockOffset offset in first block to start reading at
+     * @param buffer           buffer to read into, must not be accessed until returned future is completed
+     * @return future completed with count of bytes read, -1 if nothing was read
+     * @throws IOException operation could not be started
+     */
+    public CompletableFuture<Integer> readBlocksAsync(int firstBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+        if (mIsClosed) throw new ObjectClosedException();
+
+        long runLength = (long) blockCount * mBlockSize - firstBlockOffset;
+        if (runLength <= 0) {
+            return CompletableFuture.completedFuture(-1);
+        }
+
+        // claimed in ascending order, same as any other multi-block lock, so this can't deadlock
+        AccessController[] blockLocks = new AccessController[blockCount];
+        boolean started = false;
+        try {
+            for (int i = 0; i < blockCount; ++i) {
+                blockLocks[i] = new AccessController(mLockManager.getLockerForPath(firstBlockId + i));
+                blockLocks[i].claimLock(LockType.READ_LOCK);
+            }
+
+            long fileOffset = (long) firstBlockOffset + getRawBlockOffset(firstBlockId) + mDataStartOffset;
+            CompletableFuture<Integer> future = submitRead(buffer, (int) Math.min(Integer.MAX_VALUE, runLength), fileOffset);
+            started = true;
+            return future.whenComplete((read, exc) -> closeLocks(blockLocks));
+        } finally {
+            if (!started) {
+                closeLocks(blockLocks);
+            }
+        }
+    }
+
+    private static void closeLocks(AccessController[] blockLocks) {
+        for (AccessController blockLock : blockLocks) {
+            if (blockLock != null) {
+                blockLock.close();
+            }
+        }
+    }
+
+    /**
+     * Submit read of at most maxLength bytes to channel, limit of buffer is restored when read completes.
+     */
+    private CompletableFuture<Integer> submitRead(ByteBuffer buffer, int maxLength, long fileOffset) throws IOException {
+        acquireInFlightPermit();
+
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + Math.min(buffer.remaining(), maxLength));
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        try {
+            mFileChannel.read(buffer, fileOffset, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer result, Void attachment) {
+                    buffer.limit(limit);
+                    mInFlightPermits.release();
+                    future.complete(result);
+                }
+
+                @Override
+                public void failed(Throwable exc, Void attachment) {
+                    buffer.limit(limit);
+                    mInFlightPermits.release();
+                    future.completeExceptionally(exc);
+                }
+            });
+        } catch (RuntimeException e) {
+            buffer.limit(limit);
+            mInFlightPermits.release();
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Submit write of all remaining bytes of buffer to channel, partial writes are continued from completion handler.
+     */
+    private CompletableFuture<Void> submitWrite(ByteBuffer buffer, long fileOffset) throws IOException {
+        acquireInFlightPermit();
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        CompletionHandler<Integer, Long> handler = new CompletionHandler<Integer, Long>() {
+            @Override
+            public void completed(Integer result, Long writeOffset) {
+                if (buffer.hasRemaining()) {
+                    long nextOffset = writeOffset + result;
+                    try {
+                        mFileChannel.write(buffer, nextOffset, nextOffset, this);
+                    } catch (RuntimeException e) {
+                        failed(e, nextOffset);
+                    }
+                    return;
+                }
+                mInFlightPermits.release();
+                try {
+                    mDurabilityController.onWrite();
+                    future.complete(null);
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Long writeOffset) {
+                mInFlightPermits.release();
+                future.completeExceptionally(exc);
+            }
+        };
+        try {
+            mFileChannel.write(buffer, fileOffset, fileOffset, handler);
+        } catch (RuntimeException e) {
+            mInFlightPermits.release();
+            throw e;
+        }
+        return future;
+    }
+
+    private void acquireInFlightPermit() throws IOException {
+        if (mIsClosed) throw new ObjectClosedException();
+        try {
+            mInFlightPermits.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        mDurabilityController.sync();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mIsClosed) {
+                return;
+            }
+            mIsClosed = true;
+            for (StorageBlock block : new ArrayList<>(mOpenedStorageBlocks)) {
+                block.close();
+            }
+        }
+
+        // wait until all operations in flight are finished
+        mInFlightPermits.acquireUninterruptibly(mMaxInFlight);
+        mInFlightPermits.release(mMaxInFlight);
+
+        try {
+            mDurabilityController.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (mFileLock != null) {
+            try {
+                mFileLock.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        try {
+            mFileChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private long getRawBlockOffset(int blockIndex) {
+        if (blockIndex < 0) {
+            throw new IllegalArgumentException("Block index out of range: " + blockIndex);
+        }
+        return (long) blockIndex * mBlockSize;
+    }
+
+    class AsyncFileBlock implements AsyncStorageBlock {
+        private final long mBlockStartOffset;
+        private final AccessController mLockContainer;
+
+        public AsyncFileBlock(int blockId) {
+            mBlockStartOffset = getRawBlockOffset(blockId);
+            mLockContainer = new AccessController(mLockManager.getLockerForPath(blockId));
+        }
+
+        @Override
+        public synchronized void claim(LockType lockType) throws InterruptedIOException {
+            mLockContainer.claimLock(lockType);
+        }
+
+        @Override
+        public synchronized void release() {
+            mLockContainer.releaseLock();
+        }
+
+        @Override
+        public int read(int blockOffset, byte[] buffer, int bufferOffset, int length) throws IOException {
+            return read(blockOffset, ByteBuffer.wrap(buffer, bufferOffset, length));
+        }
+
+        @Override
+        public int read(int blockOffset, ByteBuffer buffer) throws IOException {
+            return await(readAsync(blockOffset, buffer));
+        }
+
+        @Override
+        public CompletableFuture<Integer> readAsync(int blockOffset, ByteBuffer buffer) throws IOException {
+            if (!mLockContainer.isReadLocked()) throw new IllegalStateException("Read lock not claimed");
+
+            if (blockOffset >= mBlockSize) {
+                return CompletableFuture.completedFuture(-1);
+            }
+            return submitRead(buffer, mBlockSize - blockOffset, blockOffset + mBlockStartOffset + mDataStartOffset);
+        }
+
+        @Override
+        public void write(int blockOffset, byte[] buffer, int bufferOffset, int length) throws IOException {
+            write(blockOffset, ByteBuffer.wrap(buffer, bufferOffset, length));
+        }
+
+        @Override
+        public void write(int blockOffset, ByteBuffer buffer) throws IOException {
+            await(writeAsync(blockOffset, buffer));
+        }
+
+        @Override
+        public CompletableFuture<Void> writeAsync(int blockOffset, ByteBuffer buffer) throws IOException {
+            if (!mLockContainer.isWriteLocked()) throw new IllegalStateException("Write lock not claimed");
+
+            if (blockOffset + buffer.remaining() > mBlockSize) {
+                throw new IOException("Writing after block boundary");
+            }
+            return submitWrite(buffer, blockOffset + mBlockStartOffset + mDataStartOffset);
+        }
+
+        @Override
+        public synchronized void close() {
+            release();
+            mLockContainer.close();
+            synchronized (AsyncFileBlockStorageManager.this) {
+                mOpenedStorageBlocks.remove(this);
+            }
+        }
+
+        @Override
+        public void ensureCapacity() throws IOException {
+            long minFileSize = mBlockStartOffset + mBlockSize + mDataStartOffset;
+            synchronized (mCapacityLock) {
+                if (mFileChannel.size() < minFileSize) {
+                    // single byte at the new end extends file, sparse where file system supports it
+                    await(submitWrite(ByteBuffer.allocate(1), minFileSize - 1));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package mmk.vfs.storage.blocks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Storage Block which is able to perform reads and writes without blocking calling thread.
+ * Lock must be claimed before operation is started and must be held until returned future is completed.
+ * Buffer passed to operation must not be accessed until returned future is completed.
+ */
+public interface AsyncStorageBlock extends StorageBlock {
+    /**
+     * Start read of block contents into buffer. Requires READ lock to be claimed first.
+     * Reads at most buffer.remaining() bytes and advances buffer position by count of read bytes.
+     *
+     * @param blockOffset offset from the start of this block
+     * @param buffer      buffer to read into
+     * @return future completed with count of bytes which were actually read, -1 if there is nothing to read at this offset
+     * @throws IOException operation could not be started
+     */
+    CompletableFuture<Integer> readAsync(int blockOffset, ByteBuffer buffer) throws IOException;
+
+    /**
+     * Start write of buffer contents to block. Requires WRITE lock to be claimed first.
+     * Writes all remaining bytes of buffer and advances buffer position to its limit.
+     *
+     * @param blockOffset offset from the start of this block
+     * @param buffer      buffer to write from
+     * @return future completed when all bytes are written
+     * @throws IOException operation could not be started
+     */
+    CompletableFuture<Void> writeAsync(int blockOffset, ByteBuffer buffer) throws IOException;
+}
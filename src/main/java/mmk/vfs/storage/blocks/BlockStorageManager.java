@@ -1,6 +1,9 @@
 package mmk.vfs.storage.blocks;
 
+import mmk.vfs.locks.LockType;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Manager for handling access to Storage Blocks. Allows getting size of each block and getting each block by its index.
@@ -22,6 +25,101 @@ public interface BlockStorageManager extends AutoCloseable {
      */
     StorageBlock getStorageBlock(int blockId) throws IOException;
 
+    /**
+     * Read contents of run of physically adjacent Storage Blocks. READ lock of every block in run is claimed for
+     * the duration of read. Reads at most buffer.remaining() bytes and advances buffer position by count of read bytes.
+     * Can return before all bytes are read based on implementation details.
+     *
+     * @param firstBlockId     index of first block in run
+     * @param blockCount       count of blocks in run
+     * @param firstBlockOffset offset from the start of first block
+     * @param buffer           buffer to read into
+     * @return count of bytes which were actually read, -1 if there is nothing to read at this offset
+     * @throws IOException I/O exception happened during read operation
+     */
+    default int readBlocks(int firstBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+        int blockSize = getBlockSize();
+        int totalRead = 0;
+        int blockOffset = firstBlockOffset;
+        int limit = buffer.limit();
+        try {
+            for (int i = 0; i < blockCount && buffer.position() < limit; ++i, blockOffset = 0) {
+                int blockReadLength = Math.min(limit - buffer.position(), blockSize - blockOffset);
+                buffer.limit(buffer.position() + blockReadLength);
+
+                int blockRead = 0;
+                try (StorageBlock block = getStorageBlock(firstBlockId + i)) {
+                    block.claim(LockType.READ_LOCK);
+                    while (blockRead < blockReadLength) {
+                        int read = block.read(blockOffset + blockRead, buffer);
+                        if (read <= 0) break;
+                        blockRead += read;
+                    }
+                }
+                totalRead += blockRead;
+                if (blockRead < blockReadLength) {
+                    break;
+                }
+            }
+        } finally {
+            buffer.limit(limit);
+        }
+        return totalRead == 0 && blockCount > 0 && limit > buffer.position() ? -1 : totalRead;
+    }
+
+    /**
+     * Write contents to run of physically adjacent Storage Blocks. WRITE lock of each block is claimed while it is
+     * written. Writes all remaining bytes of buffer and advances buffer position to its limit.
+     *
+     * @param firstBlockId     index of first block in run
+     * @param blockCount       count of blocks in run
+     * @param firstBlockOffset offset from the start of first block
+     * @param buffer           buffer to write from, must not have more bytes remaining than run can hold
+     * @throws IOException I/O exception happened during write operation
+     */
+    default void writeBlocks(int firstBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+        int blockSize = getBlockSize();
+        if (buffer.remaining() > (long) blockCount * blockSize - firstBlockOffset) {
+            throw new IOException("Writing after block boundary");
+        }
+
+        int blockOffset = firstBlockOffset;
+        int limit = buffer.limit();
+        try {
+            for (int i = 0; i < blockCount && buffer.position() < limit; ++i, blockOffset = 0) {
+                buffer.limit(buffer.position() + Math.min(limit - buffer.position(), blockSize - blockOffset));
+                try (StorageBlock block = getStorageBlock(firstBlockId + i)) {
+                    block.claim(LockType.WRITE_LOCK);
+                    block.write(blockOffset, buffer);
+                }
+                buffer.limit(limit);
+            }
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+
+    /**
+     * Hint storage that run of physically adjacent Storage Blocks is going to be read soon. Storage may start loading
+     * these blocks in background. Hint does not claim any locks and returns without waiting for blocks to be loaded.
+     *
+     * @param firstBlockId index of first block in run
+     * @param blockCount   count of blocks in run
+     * @return false if storage does not support prefetching, so there is no point in giving further hints
+     */
+    default boolean prefetch(int firstBlockId, int blockCount) {
+        return false;
+    }
+
+    /**
+     * Force all data written into Storage Blocks so far to underlying storage device.
+     * Storages which are not backed by any device might do nothing.
+     *
+     * @throws IOException I/O exception happened while forcing data
+     */
+    default void sync() throws IOException {
+    }
+
     /**
      * Close this storage manager, preventing further access to storage blocks and freeing underlying storage.
      */
@@ -0,0 +1,634 @@
+package mmk.vfs.storage.blocks;
+
+import mmk.vfs.exceptions.ObjectClosedException;
+import mmk.vfs.locks.LockType;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Block Storage Manager decorator, which keeps bounded cache of whole Storage Blocks in memory. Cached pages are evicted
+ * using CLOCK (second chance) algorithm.
+ * <p>
+ * Cache stays coherent by relying on Storage Block locks: pages are filled only while READ lock of the block is held and
+ * updated only while WRITE lock is held. Therefore underlying storage must not be accessed bypassing this cache while
+ * cache is in use.
+ * <p>
+ * By default writes go through to underlying storage. In write-back mode writes only update cached page and mark it
+ * dirty; dirty pages are written by background flusher in runs of adjacent blocks sorted by block index once half of
+ * dirty limit is reached, and by {@link #sync()} and {@link #close()}. Dirty pages are never evicted. While dirty limit
+ * is reached, writes of clean blocks go through to underlying storage again.
+ * <p>
+ * Failure of background flush is reported once, flusher does not retry until next {@link #sync()}, which rethrows
+ * it. If final flush of {@link #close()} fails, underlying storage is left opened with dirty pages still cached, so
+ * {@link #sync()} can write them later and close can be retried. Callers, which need failure of final flush as
+ * exception, should call {@link #sync()} before close.
+ */
+public class CachingBlockStorageManager implements BlockStorageManager {
+    private static final int NO_BLOCK = -1;
+    private static final int PREFETCH_THREADS = 2;
+
+    private final BlockStorageManager mStorage;
+    private final int mBlockSize;
+
+    // guarded by mPageTable
+    private final Map<Integer, Integer> mPageTable = new HashMap<>();
+    private final int[] mPageBlockIds;
+    private final byte[][] mPages;
+    private final boolean[] mPageReferenced;
+    private final boolean[] mPageDirty;
+    // incremented on every modification of dirty page, so flush can tell whether page was changed after it was copied
+    private final long[] mPageVersions;
+    private int mDirtyPageCount = 0;
+    private int mClockHand = 0;
+
+    private final int mMaxDirtyPages;
+    private final int mFlushThreshold;
+    private final Thread mFlusherThread;
+    // flushes are serialized, so older copy of page is never written after newer one
+    private final Object mFlushLock = new Object();
+    // failure of background flush, not yet reported by sync, guarded by mPageTable
+    private Exception mFlushError = null;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mPrefetchCount = new AtomicLong();
+    private volatile boolean mIsClosed = false;
+    // set when final flush of close failed, underlying storage is still opened then, guarded by mPageTable
+    private boolean mIsCloseIncomplete = false;
+
+    // blocks queued for prefetch, so repeated hints for the same block do not queue it again
+    private final Set<Integer> mPrefetchQueued = ConcurrentHashMap.newKeySet();
+    private final ExecutorService mPrefetchExecutor = Executors.newFixedThreadPool(PREFETCH_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "VFS read-ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor of write-through cache.
+     *
+     * @param storage      underlying storage
+     * @param memoryBudget maximal amount of memory for cached block contents in bytes
+     */
+    public CachingBlockStorageManager(BlockStorageManager storage, long memoryBudget) {
+        this(storage, memoryBudget, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param storage         underlying storage
+     * @param memoryBudget    maximal amount of memory for cached block contents in bytes
+     * @param dirtyBytesLimit maximal amount of cached block contents not yet written to underlying storage in bytes,
+     *                        0 makes cache write-through; limited to all pages except one
+     */
+    public CachingBlockStorageManager(BlockStorageManager storage, long memoryBudget, long dirtyBytesLimit) {
+        if (dirtyBytesLimit < 0) {
+            throw new IllegalArgumentException("Dirty bytes limit must not be negative");
+        }
+        mStorage = storage;
+        mBlockSize = storage.getBlockSize();
+
+        long pageCount = memoryBudget / mBlockSize;
+        if (pageCount < 1) {
+            throw new IllegalArgumentException("Memory budget must fit at least one block");
+        }
+        int capacity = (int) Math.min(pageCount, Integer.MAX_VALUE - 8);
+        mPageBlockIds = new int[capacity];
+        Arrays.fill(mPageBlockIds, NO_BLOCK);
+        mPages = new byte[capacity][];
+        mPageReferenced = new boolean[capacity];
+        mPageDirty = new boolean[capacity];
+        mPageVersions = new long[capacity];
+
+        // at least one page must stay clean, otherwise eviction would have no victim
+        mMaxDirtyPages = (int) Math.min(dirtyBytesLimit / mBlockSize, capacity - 1);
+        mFlushThreshold = Math.max(1, mMaxDirtyPages / 2);
+        if (mMaxDirtyPages > 0) {
+            mFlusherThread = new Thread(this::runFlusher, "VFS write-back");
+            mFlusherThread.setDaemon(true);
+            mFlusherThread.start();
+        }
+        else {
+            mFlusherThread = null;
+        }
+    }
+
+    @Override
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    @Override
+    public StorageBlock getStorageBlock(int blockId) throws IOException {
+        if (mIsClosed) throw new ObjectClosedException();
+
+        return new CachedBlock(blockId, mStorage.getStorageBlock(blockId));
+    }
+
+    @Override
+    public boolean prefetch(int firstBlockId, int blockCount) {
+        if (mIsClosed) {
+            return false;
+        }
+        for (int i = 0; i < blockCount; ++i) {
+            int blockId = firstBlockId + i;
+            if (isCached(blockId) || !mPrefetchQueued.add(blockId)) {
+                continue;
+            }
+            try {
+                mPrefetchExecutor.execute(() -> {
+                    try {
+                        prefetchBlock(blockId);
+                    } finally {
+                        mPrefetchQueued.remove(blockId);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // storage is being closed
+                mPrefetchQueued.remove(blockId);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void prefetchBlock(int blockId) {
+        if (mIsClosed || isCached(blockId)) {
+            return;
+        }
+        try (StorageBlock block = mStorage.getStorageBlock(blockId)) {
+            // page is put while READ lock is held, same as on regular miss, so no write can be lost
+            block.claim(LockType.READ_LOCK);
+            if (isCached(blockId)) {
+                return;
+            }
+            byte[] page = new byte[mBlockSize];
+            if (block.readFully(0, page, 0, mBlockSize) == mBlockSize) {
+                putPage(blockId, page);
+                mPrefetchCount.incrementAndGet();
+            }
+        } catch (IOException | IllegalStateException ignored) {
+            // prefetch is only a hint, block will be read on demand
+        }
+    }
+
+    /**
+     * Write all dirty pages to underlying storage and sync it.
+     *
+     * @throws IOException I/O exception happened while flushing, or background flush failed since previous sync,
+     *                     even if pages it failed to write were written now
+     */
+    @Override
+    public void sync() throws IOException {
+        Exception flushError;
+        synchronized (mPageTable) {
+            if (mIsClosed && !mIsCloseIncomplete) throw new ObjectClosedException();
+
+            flushError = mFlushError;
+            mFlushError = null;
+            // flusher waits after failure, so wake it up to resume
+            mPageTable.notifyAll();
+        }
+        flushDirtyPages();
+        mStorage.sync();
+        if (flushError != null) {
+            throw new IOException("Background flush of dirty pages failed", flushError);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (mPageTable) {
+            if (mIsClosed && !mIsCloseIncomplete) {
+                return;
+            }
+            mIsClosed = true;
+            mPageTable.notifyAll();
+        }
+        mPrefetchExecutor.shutdownNow();
+        if (mFlusherThread != null) {
+            try {
+                mFlusherThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            flushDirtyPages();
+        } catch (IOException | RuntimeException e) {
+            // underlying storage stays opened, so dirty pages can still be written by sync and close retried
+            e.printStackTrace();
+            synchronized (mPageTable) {
+                mIsCloseIncomplete = true;
+            }
+            return;
+        }
+        synchronized (mPageTable) {
+            mIsCloseIncomplete = false;
+            mPageTable.clear();
+            Arrays.fill(mPageBlockIds, NO_BLOCK);
+            Arrays.fill(mPages, null);
+        }
+        mStorage.close();
+    }
+
+    /**
+     * Get count of block reads served from cache.
+     *
+     * @return count of cache hits
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Get count of block reads, which required reading underlying storage.
+     *
+     * @return count of cache misses
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Get count of blocks loaded into cache in background by prefetch hints.
+     *
+     * @return count of prefetched blocks
+     */
+    public long getPrefetchCount() {
+        return mPrefetchCount.get();
+    }
+
+    /**
+     * Get count of cached blocks, which were modified, but not yet written to underlying storage.
+     *
+     * @return count of dirty blocks
+     */
+    public int getDirtyBlockCount() {
+        synchronized (mPageTable) {
+            return mDirtyPageCount;
+        }
+    }
+
+    /**
+     * Get maximal count of blocks which can be cached at once.
+     *
+     * @return capacity of cache in blocks
+     */
+    public int getCapacity() {
+        return mPages.length;
+    }
+
+    private byte[] getCachedPage(int blockId) {
+        synchronized (mPageTable) {
+            Integer slot = mPageTable.get(blockId);
+            if (slot == null) {
+                return null;
+            }
+            mPageReferenced[slot] = true;
+            return mPages[slot];
+        }
+    }
+
+    private boolean isCached(int blockId) {
+        synchronized (mPageTable) {
+            return mPageTable.containsKey(blockId);
+        }
+    }
+
+    private void putPage(int blockId, byte[] page) {
+        synchronized (mPageTable) {
+            if (mIsClosed) {
+                return;
+            }
+
+            Integer existingSlot = mPageTable.get(blockId);
+            if (existingSlot != null) {
+                // dirty page is newer than contents of underlying storage
+                if (!mPageDirty[existingSlot]) {
+                    mPages[existingSlot] = page;
+                }
+                mPageReferenced[existingSlot] = true;
+                return;
+            }
+
+            insertPage(blockId, page);
+        }
+    }
+
+    // called with mPageTable locked
+    private int insertPage(int blockId, byte[] page) {
+        int slot = findVictimSlot();
+        if (mPageBlockIds[slot] != NO_BLOCK) {
+            mPageTable.remove(mPageBlockIds[slot]);
+        }
+        mPageBlockIds[slot] = blockId;
+        // page arrays are never reused, so readers which got evicted page before still copy consistent contents
+        mPages[slot] = page;
+        mPageReferenced[slot] = false;
+        mPageTable.put(blockId, slot);
+        return slot;
+    }
+
+    private void invalidatePage(int blockId) {
+        synchronized (mPageTable) {
+            Integer slot = mPageTable.get(blockId);
+            // dirty page holds the only copy of written contents
+            if (slot != null && !mPageDirty[slot]) {
+                mPageTable.remove(blockId);
+                mPageBlockIds[slot] = NO_BLOCK;
+                mPages[slot] = null;
+                mPageReferenced[slot] = false;
+            }
+        }
+    }
+
+    /**
+     * Write bytes into cached page and mark it dirty.
+     *
+     * @param blockId     index of block
+     * @param loadedPage  full contents of block to cache if block is not cached, might be null
+     * @param blockOffset offset from the start of block
+     * @param buffer      bytes to write
+     * @return false if bytes were not written, because page is not cached or dirty limit is reached
+     */
+    private boolean writeDirtyPage(int blockId, byte[] loadedPage, int blockOffset, ByteBuffer buffer) {
+        synchronized (mPageTable) {
+            if (mIsClosed) {
+                return false;
+            }
+
+            Integer slot = mPageTable.get(blockId);
+            boolean wasDirty = slot != null && mPageDirty[slot];
+            if (!wasDirty && mDirtyPageCount >= mMaxDirtyPages) {
+                mPageTable.notifyAll();
+                return false;
+            }
+            if (slot == null) {
+                if (loadedPage == null) {
+                    return false;
+                }
+                slot = insertPage(blockId, loadedPage);
+            }
+
+            buffer.get(mPages[slot], blockOffset, buffer.remaining());
+            mPageReferenced[slot] = true;
+            ++mPageVersions[slot];
+            if (!wasDirty) {
+                mPageDirty[slot] = true;
+                if (++mDirtyPageCount >= mFlushThreshold) {
+                    mPageTable.notifyAll();
+                }
+            }
+            return true;
+        }
+    }
+
+    private void runFlusher() {
+        while (true) {
+            synchronized (mPageTable) {
+                while (!mIsClosed && (mDirtyPageCount < mFlushThreshold || mFlushError != null)) {
+                    try {
+                        mPageTable.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mIsClosed) {
+                    // remaining pages are flushed by close
+                    return;
+                }
+            }
+
+            try {
+                flushDirtyPages();
+            } catch (IOException | RuntimeException e) {
+                // retrying would most likely fail the same way, so flusher waits until sync reports failure
+                e.printStackTrace();
+                synchronized (mPageTable) {
+                    mFlushError = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write all dirty pages to underlying storage. Copies of dirty pages are sorted by block index and adjacent blocks
+     * are written as single run. Page stays dirty if it was modified after it was copied.
+     *
+     * @throws IOException I/O exception happened during write, pages which were not written stay dirty
+     */
+    private void flushDirtyPages() throws IOException {
+        synchronized (mFlushLock) {
+            List<DirtyPage> dirtyPages = new ArrayList<>();
+            synchronized (mPageTable) {
+                if (mDirtyPageCount == 0) {
+                    return;
+                }
+                for (int slot = 0; slot < mPageBlockIds.length; ++slot) {
+                    if (mPageDirty[slot]) {
+                        dirtyPages.add(new DirtyPage(mPageBlockIds[slot], mPages[slot].clone(), mPageVersions[slot]));
+                    }
+                }
+            }
+            dirtyPages.sort(Comparator.comparingInt(dirtyPage -> dirtyPage.mBlockId));
+
+            int runStart = 0;
+            while (runStart < dirtyPages.size()) {
+                int runEnd = runStart + 1;
+                while (runEnd < dirtyPages.size() && dirtyPages.get(runEnd).mBlockId == dirtyPages.get(runEnd - 1).mBlockId + 1) {
+                    ++runEnd;
+                }
+
+                ByteBuffer runBuffer = ByteBuffer.allocate((runEnd - runStart) * mBlockSize);
+                for (int i = runStart; i < runEnd; ++i) {
+                    runBuffer.put(dirtyPages.get(i).mContents);
+                }
+                runBuffer.flip();
+                mStorage.writeBlocks(dirtyPages.get(runStart).mBlockId, runEnd - runStart, 0, runBuffer);
+                markClean(dirtyPages.subList(runStart, runEnd));
+                runStart = runEnd;
+            }
+        }
+    }
+
+    private void markClean(List<DirtyPage> writtenPages) {
+        synchronized (mPageTable) {
+            for (DirtyPage writtenPage : writtenPages) {
+                Integer slot = mPageTable.get(writtenPage.mBlockId);
+                if (slot != null && mPageDirty[slot] && mPageVersions[slot] == writtenPage.mVersion) {
+                    mPageDirty[slot] = false;
+                    --mDirtyPageCount;
+                }
+            }
+        }
+    }
+
+    // called with mPageTable locked
+    private int findVictimSlot() {
+        while (true) {
+            int slot = mClockHand;
+            mClockHand = (mClockHand + 1) % mPageBlockIds.length;
+
+            if (mPageBlockIds[slot] == NO_BLOCK || !mPageReferenced[slot] && !mPageDirty[slot]) {
+                return slot;
+            }
+            mPageReferenced[slot] = false;
+        }
+    }
+
+    private static class DirtyPage {
+        private final int mBlockId;
+        private final byte[] mContents;
+        private final long mVersion;
+
+        private DirtyPage(int blockId, byte[] contents, long version) {
+            mBlockId = blockId;
+            mContents = contents;
+            mVersion = version;
+        }
+    }
+
+    class CachedBlock implements StorageBlock {
+        private final int mBlockId;
+        private final StorageBlock mStorageBlock;
+        private LockType mClaimedLockType = null;
+        private boolean mIsClosed = false;
+
+        CachedBlock(int blockId, StorageBlock storageBlock) {
+            mBlockId = blockId;
+            mStorageBlock = storageBlock;
+        }
+
+        @Override
+        public synchronized void claim(LockType lockType) throws InterruptedIOException {
+            mStorageBlock.claim(lockType);
+            mClaimedLockType = lockType;
+        }
+
+        @Override
+        public synchronized void release() {
+            mClaimedLockType = null;
+            mStorageBlock.release();
+        }
+
+        @Override
+        public int read(int blockOffset, byte[] buffer, int bufferOffset, int length) throws IOException {
+            return read(blockOffset, ByteBuffer.wrap(buffer, bufferOffset, length));
+        }
+
+        @Override
+        public synchronized int read(int blockOffset, ByteBuffer buffer) throws IOException {
+            if (mClaimedLockType == null) throw new IllegalStateException("Read lock not claimed");
+
+            if (blockOffset >= mBlockSize) {
+                return -1;
+            }
+
+            byte[] page = getCachedPage(mBlockId);
+            if (page != null) {
+                mHitCount.incrementAndGet();
+            }
+            else {
+                mMissCount.incrementAndGet();
+                page = loadPage();
+                if (page == null) {
+                    // block is not fully present in underlying storage, so it can't be cached
+                    return mStorageBlock.read(blockOffset, buffer);
+                }
+            }
+
+            int length = Math.min(buffer.remaining(), mBlockSize - blockOffset);
+            buffer.put(page, blockOffset, length);
+            return length;
+        }
+
+        // called with READ or WRITE lock claimed, so no writer can change block contents during load
+        private byte[] loadPage() throws IOException {
+            byte[] page = new byte[mBlockSize];
+            if (mStorageBlock.readFully(0, page, 0, mBlockSize) != mBlockSize) {
+                return null;
+            }
+            putPage(mBlockId, page);
+            return page;
+        }
+
+        @Override
+        public void write(int blockOffset, byte[] buffer, int bufferOffset, int length) throws IOException {
+            write(blockOffset, ByteBuffer.wrap(buffer, bufferOffset, length));
+        }
+
+        @Override
+        public synchronized void write(int blockOffset, ByteBuffer buffer) throws IOException {
+            if (mClaimedLockType != LockType.WRITE_LOCK) throw new IllegalStateException("Write lock not claimed");
+
+            if (mMaxDirtyPages > 0 && writeBack(blockOffset, buffer)) {
+                return;
+            }
+
+            ByteBuffer writtenBytes = buffer.duplicate();
+            boolean success = false;
+            try {
+                mStorageBlock.write(blockOffset, buffer);
+                success = true;
+            } finally {
+                byte[] page = success ? getCachedPage(mBlockId) : null;
+                if (page != null) {
+                    writtenBytes.get(page, blockOffset, writtenBytes.remaining());
+                }
+                else if (!success) {
+                    invalidatePage(mBlockId);
+                }
+            }
+        }
+
+        // called with WRITE lock claimed
+        private boolean writeBack(int blockOffset, ByteBuffer buffer) throws IOException {
+            if (blockOffset < 0 || buffer.remaining() > mBlockSize - blockOffset) {
+                // let underlying storage report invalid write
+                return false;
+            }
+
+            byte[] loadedPage = null;
+            if (!isCached(mBlockId)) {
+                loadedPage = new byte[mBlockSize];
+                boolean fullBlockWrite = blockOffset == 0 && buffer.remaining() == mBlockSize;
+                if (!fullBlockWrite && mStorageBlock.readFully(0, loadedPage, 0, mBlockSize) != mBlockSize) {
+                    return false;
+                }
+            }
+            return writeDirtyPage(mBlockId, loadedPage, blockOffset, buffer);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (mIsClosed) {
+                return;
+            }
+            // underlying handle may be pooled and handed out again, so it must be closed exactly once
+            mIsClosed = true;
+            mClaimedLockType = null;
+            mStorageBlock.close();
+        }
+
+        @Override
+        public synchronized void ensureCapacity() throws IOException {
+            mStorageBlock.ensureCapacity();
+        }
+    }
+}
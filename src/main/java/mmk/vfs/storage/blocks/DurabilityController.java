@@ -0,0 +1,146 @@
+package mmk.vfs.storage.blocks;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Utility class applying {@link DurabilityPolicy} for block storage managers. Storage manager notifies controller
+ * after every write, controller decides when underlying storage must be forced.
+ */
+class DurabilityController {
+    private final DurabilityPolicy mPolicy;
+    private final SyncFunction mSyncFunction;
+    private final ScheduledExecutorService mPeriodicSyncExecutor;
+
+    // sequence of completed writes, each write gets its own number after it completed
+    private final AtomicLong mWriteSequence = new AtomicLong();
+    private final Object mSyncMonitor = new Object();
+    // guarded by mSyncMonitor
+    private long mSyncedSequence = 0;
+    private boolean mSyncInProgress = false;
+
+    DurabilityController(DurabilityPolicy policy, SyncFunction syncFunction) {
+        mPolicy = policy;
+        mSyncFunction = syncFunction;
+
+        if (policy.getMode() == DurabilityPolicy.Mode.PERIODIC) {
+            mPeriodicSyncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "VFS periodic sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            mPeriodicSyncExecutor.scheduleWithFixedDelay(this::periodicSync, policy.getIntervalMillis(), policy.getIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+        else {
+            mPeriodicSyncExecutor = null;
+        }
+    }
+
+    /**
+     * Notify controller that write was completed. Depending on policy this might force underlying storage before
+     * returning.
+     *
+     * @throws IOException I/O exception happened while forcing storage
+     */
+    void onWrite() throws IOException {
+        onWrite(mSyncFunction);
+    }
+
+    /**
+     * Notify controller that write was completed.
+     *
+     * @param writtenRegionSync function forcing only region affected by write, used by ALWAYS policy instead of full sync
+     * @throws IOException I/O exception happened while forcing storage
+     */
+    void onWrite(SyncFunction writtenRegionSync) throws IOException {
+        long writeTicket = mWriteSequence.incrementAndGet();
+
+        switch (mPolicy.getMode()) {
+            case ALWAYS:
+                writtenRegionSync.sync();
+                break;
+            case GROUP_COMMIT:
+                syncUpTo(writeTicket);
+                break;
+            default:
+                // forced later by periodic task, explicit sync or close
+                break;
+        }
+    }
+
+    /**
+     * Force all writes completed before this call to underlying storage.
+     *
+     * @throws IOException I/O exception happened while forcing storage
+     */
+    void sync() throws IOException {
+        syncUpTo(mWriteSequence.get());
+    }
+
+    /**
+     * Stop periodic task and force all completed writes.
+     *
+     * @throws IOException I/O exception happened while forcing storage
+     */
+    void close() throws IOException {
+        if (mPeriodicSyncExecutor != null) {
+            mPeriodicSyncExecutor.shutdownNow();
+        }
+        sync();
+    }
+
+    private void periodicSync() {
+        try {
+            sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Only one thread forces storage at a time. Threads arriving during force wait for it and then either find their
+    // writes covered by it, or one of them forces storage again on behalf of all waiting threads.
+    private void syncUpTo(long writeTicket) throws IOException {
+        synchronized (mSyncMonitor) {
+            while (true) {
+                if (mSyncedSequence >= writeTicket) {
+                    return;
+                }
+                if (!mSyncInProgress) {
+                    break;
+                }
+                try {
+                    mSyncMonitor.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            mSyncInProgress = true;
+        }
+
+        long coveredSequence = mWriteSequence.get();
+        boolean success = false;
+        try {
+            mSyncFunction.sync();
+            success = true;
+        } finally {
+            synchronized (mSyncMonitor) {
+                mSyncInProgress = false;
+                if (success) {
+                    mSyncedSequence = Math.max(mSyncedSequence, coveredSequence);
+                }
+                mSyncMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Function forcing written data to storage device.
+     */
+    interface SyncFunction {
+        void sync() throws IOException;
+    }
+}
@@ -0,0 +1,69 @@
+package mmk.vfs.storage.blocks;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Policy describing when data written into Storage Blocks is forced to the storage device.
+ */
+public final class DurabilityPolicy {
+    /**
+     * Every block write is forced to storage device before write returns. Safest and slowest mode.
+     */
+    public static final DurabilityPolicy ALWAYS = new DurabilityPolicy(Mode.ALWAYS, 0);
+    /**
+     * Writes are forced to storage device only on explicit sync and when storage is closed.
+     */
+    public static final DurabilityPolicy ON_CLOSE = new DurabilityPolicy(Mode.ON_CLOSE, 0);
+    /**
+     * Every block write is forced to storage device before write returns, but concurrent writers share single force.
+     */
+    public static final DurabilityPolicy GROUP_COMMIT = new DurabilityPolicy(Mode.GROUP_COMMIT, 0);
+
+    private final Mode mMode;
+    private final long mIntervalMillis;
+
+    private DurabilityPolicy(Mode mode, long intervalMillis) {
+        mMode = mode;
+        mIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Create policy which forces written data to storage device periodically, on explicit sync and when storage is closed.
+     *
+     * @param interval interval between forces
+     * @param timeUnit unit of interval
+     * @return periodic durability policy
+     */
+    public static DurabilityPolicy periodic(long interval, TimeUnit timeUnit) {
+        long intervalMillis = timeUnit.toMillis(interval);
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Interval must be at least 1 millisecond");
+        }
+        return new DurabilityPolicy(Mode.PERIODIC, intervalMillis);
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * Get interval between forces for PERIODIC mode.
+     *
+     * @return interval in milliseconds, 0 for other modes
+     */
+    public long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    @Override
+    public String toString() {
+        return mMode == Mode.PERIODIC ? mMode + "(" + mIntervalMillis + "ms)" : mMode.toString();
+    }
+
+    public enum Mode {
+        ALWAYS,
+        ON_CLOSE,
+        PERIODIC,
+        GROUP_COMMIT
+    }
+}
@@ -0,0 +1,93 @@
+package mmk.vfs.storage.blocks;
+
+/**
+ * Policy describing how much backing file is extended when storage needs more space.
+ * Extending by more than one block at once makes sequential appends touch file length rarely, space preallocated
+ * this way is not used by storage until blocks in it are actually allocated and is trimmed when storage is closed.
+ */
+public final class ExtentGrowthPolicy {
+    /**
+     * File is extended exactly up to the end of required block.
+     */
+    public static final ExtentGrowthPolicy EXACT = new ExtentGrowthPolicy(Mode.EXACT, 0);
+
+    private final Mode mMode;
+    private final long mGrowth;
+
+    private ExtentGrowthPolicy(Mode mode, long growth) {
+        mMode = mode;
+        mGrowth = growth;
+    }
+
+    /**
+     * Create policy which extends file by fixed-size chunks.
+     *
+     * @param chunkSize minimal count of bytes file is extended by
+     * @return fixed chunk growth policy
+     */
+    public static ExtentGrowthPolicy fixedChunk(long chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        return new ExtentGrowthPolicy(Mode.FIXED_CHUNK, chunkSize);
+    }
+
+    /**
+     * Create policy which extends file proportionally to its current size, making count of extensions logarithmic
+     * to final file size.
+     *
+     * @param percent minimal growth in percents of current file size
+     * @return proportional growth policy
+     */
+    public static ExtentGrowthPolicy percentage(int percent) {
+        if (percent <= 0) {
+            throw new IllegalArgumentException("Percent must be positive");
+        }
+        return new ExtentGrowthPolicy(Mode.PERCENTAGE, percent);
+    }
+
+    /**
+     * Calculate new size of file.
+     *
+     * @param currentSize  current size of file
+     * @param requiredSize size file must have at least
+     * @return size file should be extended to, never less than required size
+     */
+    public long getExtendedSize(long currentSize, long requiredSize) {
+        long extendedSize;
+        switch (mMode) {
+            case FIXED_CHUNK:
+                extendedSize = currentSize + mGrowth;
+                break;
+            case PERCENTAGE:
+                extendedSize = currentSize + currentSize * mGrowth / 100;
+                break;
+            default:
+                extendedSize = requiredSize;
+                break;
+        }
+        return Math.max(extendedSize, requiredSize);
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    @Override
+    public String toString() {
+        switch (mMode) {
+            case FIXED_CHUNK:
+                return mMode + "(" + mGrowth + " bytes)";
+            case PERCENTAGE:
+                return mMode + "(" + mGrowth + "%)";
+            default:
+                return mMode.toString();
+        }
+    }
+
+    public enum Mode {
+        EXACT,
+        FIXED_CHUNK,
+        PERCENTAGE
+    }
+}
@@ -11,22 +11,39 @@ import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * File-based storage. Stores blocks in file starting from provided offset.
  */
 public class FileBlockStorageManager implements BlockStorageManager {
+    private static final int HANDLE_POOL_SIZE = 32;
+
     private final FileChannel mFileChannel;
     private final FileLock mFileLock;
 
-    private boolean mIsClosed = false;
-    private int mDataStartOffset;
+    private volatile boolean mIsClosed = false;
+    private final long mDataStartOffset;
     private int mBlockSize;
     private final AccessProviderManager<Integer> mLockManager = new AccessProviderManager<>(ReadWriteAccessProvider::new);
-    private final Set<StorageBlock> mOpenedStorageBlocks = new HashSet<>();
+    // every handle ever created by this manager, handles are pooled and reused, so this set only grows up to
+    // count of handles used simultaneously and is not modified on block open/close
+    private final Set<FileBlock> mCreatedStorageBlocks = ConcurrentHashMap.newKeySet();
+    // closed handles, crossing block boundaries reuses them instead of allocating new ones, drained on close;
+    // pool is lock-free and its size is approximate, so it may briefly hold slightly less than HANDLE_POOL_SIZE handles
+    private final ConcurrentLinkedDeque<FileBlock> mHandlePool = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger mHandlePoolSize = new AtomicInteger();
+    // guards only growth of backing file, reads and writes use positional I/O and do not share any lock
+    private final Object mCapacityLock = new Object();
+    private final ExtentGrowthPolicy mGrowthPolicy;
+    // length of backing file, including space preallocated by growth policy
+    private volatile long mAllocatedSize;
+    // end of the last block ever made available, file is trimmed to it on close
+    private volatile long mHighWaterMark;
+    private final DurabilityController mDurabilityController;
 
     /**
      * Constructor.
@@ -36,11 +53,42 @@ public class FileBlockStorageManager implements BlockStorageManager {
      * @param blockSize       size of each block
      * @throws IOException I/O exception trying to acquire lock on file
      */
-    public FileBlockStorageManager(FileChannel fileChannel, int dataStartOffset, int blockSize) throws IOException {
+    public FileBlockStorageManager(FileChannel fileChannel, long dataStartOffset, int blockSize) throws IOException {
+        this(fileChannel, dataStartOffset, blockSize, DurabilityPolicy.ALWAYS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param fileChannel      file to use as storage
+     * @param dataStartOffset  offset in file where storage actually starts
+     * @param blockSize        size of each block
+     * @param durabilityPolicy policy of forcing written blocks to storage device
+     * @throws IOException I/O exception trying to acquire lock on file
+     */
+    public FileBlockStorageManager(FileChannel fileChannel, long dataStartOffset, int blockSize, DurabilityPolicy durabilityPolicy) throws IOException {
+        this(fileChannel, dataStartOffset, blockSize, durabilityPolicy, ExtentGrowthPolicy.EXACT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param fileChannel      file to use as storage
+     * @param dataStartOffset  offset in file where storage actually starts
+     * @param blockSize        size of each block
+     * @param durabilityPolicy policy of forcing written blocks to storage device
+     * @param growthPolicy     policy of extending file when more blocks are required
+     * @throws IOException I/O exception trying to acquire lock on file
+     */
+    public FileBlockStorageManager(FileChannel fileChannel, long dataStartOffset, int blockSize, DurabilityPolicy durabilityPolicy, ExtentGrowthPolicy growthPolicy) throws IOException {
         mFileChannel = fileChannel;
         mFileLock = fileChannel.lock();
         mDataStartOffset = dataStartOffset;
         mBlockSize = blockSize;
+        mGrowthPolicy = growthPolicy;
+        mAllocatedSize = fileChannel.size();
+        mHighWaterMark = mAllocatedSize;
+        mDurabilityController = new DurabilityController(durabilityPolicy, () -> mFileChannel.force(false));
     }
 
     @Override
@@ -49,23 +97,127 @@ public class FileBlockStorageManager implements BlockStorageManager {
     }
 
     @Override
-    public synchronized StorageBlock getStorageBlock(int blockId) throws ObjectClosedException {
+    public StorageBlock getStorageBlock(int blockId) throws ObjectClosedException {
         if (mIsClosed) throw new ObjectClosedException();
 
-        StorageBlock block = new FileBlock(blockId);
-        mOpenedStorageBlocks.add(block);
+        FileBlock block = takePooledBlock();
+        if (block == null) {
+            block = new FileBlock();
+            mCreatedStorageBlocks.add(block);
+        }
+        block.open(blockId);
+
+        // close could have missed this handle if it was created concurrently
+        if (mIsClosed) {
+            block.dispose();
+            mCreatedStorageBlocks.remove(block);
+            throw new ObjectClosedException();
+        }
         return block;
     }
 
+    /**
+     * Take the most recently closed handle from pool. Pool is not searched for handle of the same block, handle keeps
+     * reference to lock of its previous block, so reopening it for that block still does not touch lock table.
+     *
+     * @return pooled handle or null if pool is empty
+     */
+    private FileBlock takePooledBlock() {
+        FileBlock block = mHandlePool.pollLast();
+        if (block != null) {
+            mHandlePoolSize.decrementAndGet();
+        }
+        return block;
+    }
+
+    private boolean returnToPool(FileBlock block) {
+        if (mIsClosed) {
+            return false;
+        }
+        if (mHandlePoolSize.incrementAndGet() > HANDLE_POOL_SIZE) {
+            mHandlePoolSize.decrementAndGet();
+            return false;
+        }
+        mHandlePool.addLast(block);
+        // close could have drained pool before handle was added
+        if (mIsClosed && mHandlePool.removeLastOccurrence(block)) {
+            mHandlePoolSize.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int readBlocks(int firstBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+        if (mIsClosed) throw new ObjectClosedException();
+
+        long runLength = (long) blockCount * mBlockSize - firstBlockOffset;
+        if (runLength <= 0) {
+            return -1;
+        }
+
+        // claimed in ascending order, same as any other multi-block lock, so this can't deadlock
+        AccessController[] blockLocks = new AccessController[blockCount];
+        int limit = buffer.limit();
+        try {
+            for (int i = 0; i < blockCount; ++i) {
+                blockLocks[i] = new AccessController(mLockManager.getLockerForPath(firstBlockId + i));
+                blockLocks[i].claimLock(LockType.READ_LOCK);
+            }
+
+            buffer.limit(buffer.position() + (int) Math.min(buffer.remaining(), runLength));
+            long fileOffset = firstBlockOffset + getRawBlockOffset(firstBlockId) + mDataStartOffset;
+            int totalRead = 0;
+            while (buffer.hasRemaining()) {
+                int read = mFileChannel.read(buffer, fileOffset + totalRead);
+                if (read < 0) {
+                    return totalRead == 0 ? -1 : totalRead;
+                }
+                totalRead += read;
+            }
+            return totalRead;
+        } finally {
+            buffer.limit(limit);
+            for (AccessController blockLock : blockLocks) {
+                if (blockLock != null) {
+                    blockLock.close();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        mDurabilityController.sync();
+    }
+
     @Override
     public synchronized void close() {
-        synchronized (this) {
-            mIsClosed = true;
-            for (StorageBlock block : new ArrayList<>(mOpenedStorageBlocks)) {
-                block.close();
+        mIsClosed = true;
+        mHandlePool.clear();
+        for (FileBlock block : mCreatedStorageBlocks) {
+            block.dispose();
+        }
+        mCreatedStorageBlocks.clear();
+
+        synchronized (mCapacityLock) {
+            if (mAllocatedSize > mHighWaterMark) {
+                // drop space preallocated by growth policy, but never used for blocks
+                try {
+                    mFileChannel.truncate(mHighWaterMark);
+                    mAllocatedSize = mHighWaterMark;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
         }
 
+        try {
+            mDurabilityController.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
         if (mFileLock != null) {
             try {
                 mFileLock.close();
@@ -81,21 +233,99 @@ public class FileBlockStorageManager implements BlockStorageManager {
         }
     }
 
-    private int getRawBlockOffset(int blockIndex) {
-        return blockIndex * mBlockSize;
+    /**
+     * Get end of the last block made available so far, this is size backing file would have without preallocation.
+     *
+     * @return high-water mark of storage in bytes from start of file
+     */
+    public long getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /**
+     * Make sure backing file is at least of required size, extending it according to growth policy.
+     * File is extended by writing single byte at its new end, so file systems supporting sparse files do not
+     * write any zeroes.
+     *
+     * @param minFileSize size file must have
+     * @throws IOException I/O exception happened while extending file
+     */
+    private void ensureFileSize(long minFileSize) throws IOException {
+        if (minFileSize <= mHighWaterMark) {
+            return;
+        }
+        synchronized (mCapacityLock) {
+            if (minFileSize > mAllocatedSize) {
+                long allocatedSize = Math.max(mAllocatedSize, mFileChannel.size());
+                if (minFileSize > allocatedSize) {
+                    long newSize = mGrowthPolicy.getExtendedSize(allocatedSize, minFileSize);
+                    ByteBuffer lastByte = ByteBuffer.allocate(1);
+                    while (lastByte.hasRemaining()) {
+                        mFileChannel.write(lastByte, newSize - 1);
+                    }
+                    allocatedSize = newSize;
+                }
+                mAllocatedSize = allocatedSize;
+            }
+            if (minFileSize > mHighWaterMark) {
+                mHighWaterMark = minFileSize;
+            }
+        }
+    }
+
+    /**
+     * Get offset of block relative to start of data. Block indexes are limited to positive int values, so with
+     * maximal block size the offset stays far below limit of file size.
+     *
+     * @param blockIndex index of block
+     * @return offset of block in bytes
+     */
+    private long getRawBlockOffset(int blockIndex) {
+        if (blockIndex < 0) {
+            throw new IllegalArgumentException("Block index out of range: " + blockIndex);
+        }
+        return (long) blockIndex * mBlockSize;
     }
 
     class FileBlock implements StorageBlock {
-        private int mBlockStartOffset;
-        private final AccessController mLockContainer;
+        private int mBlockId = -1;
+        private long mBlockStartOffset;
+        private AccessController mLockContainer;
+        private boolean mIsOpen = false;
 
-        public FileBlock(int blockId) {
+        /**
+         * Attach this handle to block. Handle must be closed (either new or taken from pool).
+         *
+         * @param blockId id of block to open
+         */
+        synchronized void open(int blockId) {
+            if (mLockContainer == null) {
+                mLockContainer = new AccessController(mLockManager.getLockerForPath(blockId));
+            }
+            else if (mBlockId != blockId) {
+                // drop reference to lock of previous block and attach existing controller to the new one
+                mLockContainer.close();
+                mLockContainer.reopen(mLockManager.getLockerForPath(blockId));
+            }
+            mBlockId = blockId;
             mBlockStartOffset = getRawBlockOffset(blockId);
-            mLockContainer = new AccessController(mLockManager.getLockerForPath(blockId));
+            mIsOpen = true;
+        }
+
+        /**
+         * Close handle and its lock controller for good, handle is not returned to pool.
+         */
+        synchronized void dispose() {
+            mIsOpen = false;
+            if (mLockContainer != null) {
+                mLockContainer.close();
+            }
         }
 
         @Override
         public synchronized void claim(LockType lockType) throws InterruptedIOException {
+            if (!mIsOpen) throw new IllegalStateException("Block already closed");
+
             mLockContainer.claimLock(lockType);
         }
 
@@ -104,59 +334,66 @@ public class FileBlockStorageManager implements BlockStorageManager {
             mLockContainer.releaseLock();
         }
 
-        public synchronized int read(int blockOffset, byte[] buffer, int bufferOffset, int length) throws IOException {
+        @Override
+        public int read(int blockOffset, byte[] buffer, int bufferOffset, int length) throws IOException {
+            return read(blockOffset, ByteBuffer.wrap(buffer, bufferOffset, length));
+        }
+
+        @Override
+        public synchronized int read(int blockOffset, ByteBuffer buffer) throws IOException {
             if (!mLockContainer.isReadLocked()) throw new IllegalStateException("Read lock not claimed");
 
-            synchronized (mFileChannel) {
-                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, bufferOffset, length);
-                mFileChannel.position(blockOffset + mBlockStartOffset + mDataStartOffset);
-                return mFileChannel.read(byteBuffer);
+            if (blockOffset >= mBlockSize) {
+                return -1;
+            }
+
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + Math.min(buffer.remaining(), mBlockSize - blockOffset));
+            try {
+                return mFileChannel.read(buffer, blockOffset + mBlockStartOffset + mDataStartOffset);
+            } finally {
+                buffer.limit(limit);
             }
         }
 
-        public synchronized void write(int blockOffset, byte[] buffer, int bufferOffset, int length) throws IOException {
+        @Override
+        public void write(int blockOffset, byte[] buffer, int bufferOffset, int length) throws IOException {
+            write(blockOffset, ByteBuffer.wrap(buffer, bufferOffset, length));
+        }
+
+        @Override
+        public synchronized void write(int blockOffset, ByteBuffer buffer) throws IOException {
             if (!mLockContainer.isWriteLocked()) throw new IllegalStateException("Write lock not claimed");
 
-            synchronized (mFileChannel) {
-                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, bufferOffset, length);
-                int fileOffset = blockOffset + mBlockStartOffset + mDataStartOffset;
-                mFileChannel.position(fileOffset);
-                while (byteBuffer.hasRemaining()) {
-                    mFileChannel.write(byteBuffer);
-                }
-                mFileChannel.force(false);
+            if (blockOffset + buffer.remaining() > mBlockSize) {
+                throw new IOException("Writing after block boundary");
+            }
+
+            long fileOffset = blockOffset + mBlockStartOffset + mDataStartOffset;
+            while (buffer.hasRemaining()) {
+                fileOffset += mFileChannel.write(buffer, fileOffset);
             }
+            mDurabilityController.onWrite();
         }
 
         @Override
-        public synchronized void close() {
-            release();
-            mLockContainer.close();
-            synchronized (FileBlockStorageManager.this) {
-                mOpenedStorageBlocks.remove(this);
-            }
-        }
-
-        public synchronized void ensureCapacity() throws IOException {
-            synchronized (mFileChannel) {
-                int minFileSize = mBlockStartOffset + mBlockSize + mDataStartOffset;
-                long size;
-                ByteBuffer zeroBuffer = null;
-                do {
-                    size = mFileChannel.size();
-                    long missingBytes = minFileSize - size;
-                    if (missingBytes > 0) {
-                        if (zeroBuffer == null) {
-                            zeroBuffer = ByteBuffer.allocate(mBlockSize);
-                        }
-                        else {
-                            zeroBuffer.clear();
-                        }
-                        zeroBuffer.limit((int)Math.min(zeroBuffer.capacity(), missingBytes));
-                        mFileChannel.write(zeroBuffer, size);
-                    }
-                } while (size < minFileSize);
+        public void close() {
+            synchronized (this) {
+                if (!mIsOpen) {
+                    return;
+                }
+                mIsOpen = false;
+                // lock controller stays attached to this block, so reopening same block does not need lock table
+                mLockContainer.releaseLock();
             }
+            if (!returnToPool(this)) {
+                dispose();
+                mCreatedStorageBlocks.remove(this);
+            }
+        }
+
+        public void ensureCapacity() throws IOException {
+            ensureFileSize(mBlockStartOffset + mBlockSize + mDataStartOffset);
         }
     }
 
@@ -0,0 +1,291 @@
+package mmk.vfs.storage.blocks;
+
+import mmk.vfs.exceptions.ObjectClosedException;
+import mmk.vfs.locks.AccessController;
+import mmk.vfs.locks.AccessProviderManager;
+import mmk.vfs.locks.LockType;
+import mmk.vfs.locks.ReadWriteAccessProvider;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * File-based storage accessed through memory mapping. Data part of file is mapped in fixed-size segments, each holding
+ * whole number of blocks, so reads and writes of blocks are plain memory copies without system calls.
+ * Segments are mapped lazily on first access and re-mapped when file grows past their mapped length. Growing storage
+ * maps whole segment, which extends file to segment end, so file is trimmed to the end of its last block on close.
+ */
+public class MappedBlockStorageManager implements BlockStorageManager {
+    /**
+     * Default size of single mapped segment.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private final FileChannel mFileChannel;
+    private final FileLock mFileLock;
+
+    private volatile boolean mIsClosed = false;
+    private final long mDataStartOffset;
+    private final int mBlockSize;
+    private final int mBlocksPerSegment;
+    private final int mSegmentSize;
+    private final AccessProviderManager<Integer> mLockManager = new AccessProviderManager<>(ReadWriteAccessProvider::new);
+    private final Set<StorageBlock> mOpenedStorageBlocks = ConcurrentHashMap.newKeySet();
+
+    // replaced as a whole under mMappingLock, so readers can use it without locking
+    private volatile MappedByteBuffer[] mSegments = new MappedByteBuffer[0];
+    private final Object mMappingLock = new Object();
+    // end of the last block ever made available, file is trimmed to it on close, updated under mMappingLock
+    private volatile long mHighWaterMark;
+    private final DurabilityController mDurabilityController;
+
+    /**
+     * Constructor.
+     *
+     * @param fileChannel     file to use as storage
+     * @param dataStartOffset offset in file where storage actually starts
+     * @param blockSize       size of each block
+     * @throws IOException I/O exception trying to acquire lock on file
+     */
+    public MappedBlockStorageManager(FileChannel fileChannel, long dataStartOffset, int blockSize) throws IOException {
+        this(fileChannel, dataStartOffset, blockSize, DEFAULT_SEGMENT_SIZE, DurabilityPolicy.ALWAYS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param fileChannel     file to use as storage
+     * @param dataStartOffset offset in file where storage actually starts
+     * @param blockSize       size of each block
+     * @param segmentSize      size of each mapped segment, rounded down to whole blocks
+     * @param durabilityPolicy policy of forcing written blocks to storage device
+     * @throws IOException I/O exception trying to acquire lock on file
+     */
+    public MappedBlockStorageManager(FileChannel fileChannel, long dataStartOffset, int blockSize, int segmentSize, DurabilityPolicy durabilityPolicy) throws IOException {
+        if (segmentSize < blockSize) {
+            throw new IllegalArgumentException("Segment size must not be less than block size");
+        }
+        mFileChannel = fileChannel;
+        mFileLock = fileChannel.lock();
+        mDataStartOffset = dataStartOffset;
+        mBlockSize = blockSize;
+        mBlocksPerSegment = segmentSize / blockSize;
+        mSegmentSize = mBlocksPerSegment * blockSize;
+        mHighWaterMark = fileChannel.size();
+        mDurabilityController = new DurabilityController(durabilityPolicy, this::forceAllSegments);
+    }
+
+    @Override
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    @Override
+    public StorageBlock getStorageBlock(int blockId) throws ObjectClosedException {
+        if (mIsClosed) throw new ObjectClosedException();
+        if (blockId < 0) throw new IllegalArgumentException("Block index out of range: " + blockId);
+
+        StorageBlock block = new MappedBlock(blockId);
+        mOpenedStorageBlocks.add(block);
+
+        // close could have missed this block if it was opened concurrently
+        if (mIsClosed) {
+            block.close();
+            throw new ObjectClosedException();
+        }
+        return block;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        mDurabilityController.sync();
+    }
+
+    @Override
+    public synchronized void close() {
+        mIsClosed = true;
+        for (StorageBlock block : new ArrayList<>(mOpenedStorageBlocks)) {
+            block.close();
+        }
+
+        try {
+            mDurabilityController.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        synchronized (mMappingLock) {
+            // mapped buffers can't be unmapped explicitly, they are released when garbage collected
+            mSegments = new MappedByteBuffer[0];
+            try {
+                if (mFileChannel.size() > mHighWaterMark) {
+                    // drop rest of last segment, which was mapped, but never used for blocks
+                    mFileChannel.truncate(mHighWaterMark);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (mFileLock != null) {
+            try {
+                mFileLock.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        try {
+            mFileChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void forceAllSegments() {
+        for (MappedByteBuffer segment : mSegments) {
+            if (segment != null) {
+                segment.force();
+            }
+        }
+    }
+
+    /**
+     * Get mapped segment, which has at least requested length mapped.
+     *
+     * @param segmentIndex   index of segment
+     * @param requiredLength length from segment start, which must be accessible in returned buffer
+     * @param canGrow        whether file can be extended to fit segment, when false and file is too short null is returned
+     * @return mapped segment or null if file is too short
+     * @throws IOException I/O exception happened during mapping
+     */
+    private MappedByteBuffer getSegment(int segmentIndex, int requiredLength, boolean canGrow) throws IOException {
+        MappedByteBuffer[] segments = mSegments;
+        if (segmentIndex < segments.length && segments[segmentIndex] != null && segments[segmentIndex].capacity() >= requiredLength) {
+            return segments[segmentIndex];
+        }
+
+        synchronized (mMappingLock) {
+            segments = mSegments;
+            if (segmentIndex < segments.length && segments[segmentIndex] != null && segments[segmentIndex].capacity() >= requiredLength) {
+                return segments[segmentIndex];
+            }
+
+            long segmentStart = mDataStartOffset + (long) segmentIndex * mSegmentSize;
+            long mappingLength;
+            if (canGrow) {
+                // mapping past end of file extends it, so full segment becomes available at once
+                mappingLength = mSegmentSize;
+            }
+            else {
+                mappingLength = Math.min(mSegmentSize, mFileChannel.size() - segmentStart);
+                if (mappingLength < requiredLength) {
+                    return null;
+                }
+            }
+
+            MappedByteBuffer segment = mFileChannel.map(FileChannel.MapMode.READ_WRITE, segmentStart, mappingLength);
+            MappedByteBuffer[] newSegments = Arrays.copyOf(segments, Math.max(segments.length, segmentIndex + 1));
+            newSegments[segmentIndex] = segment;
+            mSegments = newSegments;
+            return segment;
+        }
+    }
+
+    class MappedBlock implements StorageBlock {
+        private final int mSegmentIndex;
+        private final int mInSegmentOffset;
+        private final AccessController mLockContainer;
+
+        public MappedBlock(int blockId) {
+            mSegmentIndex = blockId / mBlocksPerSegment;
+            mInSegmentOffset = (blockId % mBlocksPerSegment) * mBlockSize;
+            mLockContainer = new AccessController(mLockManager.getLockerForPath(blockId));
+        }
+
+        @Override
+        public synchronized void claim(LockType lockType) throws InterruptedIOException {
+            mLockContainer.claimLock(lockType);
+        }
+
+        @Override
+        public synchronized void release() {
+            mLockContainer.releaseLock();
+        }
+
+        @Override
+        public int read(int blockOffset, byte[] buffer, int bufferOffset, int length) throws IOException {
+            return read(blockOffset, ByteBuffer.wrap(buffer, bufferOffset, length));
+        }
+
+        @Override
+        public synchronized int read(int blockOffset, ByteBuffer buffer) throws IOException {
+            if (!mLockContainer.isReadLocked()) throw new IllegalStateException("Read lock not claimed");
+
+            if (blockOffset >= mBlockSize) {
+                return -1;
+            }
+            MappedByteBuffer segment = getSegment(mSegmentIndex, mInSegmentOffset + mBlockSize, false);
+            if (segment == null) {
+                return -1;
+            }
+
+            int length = Math.min(buffer.remaining(), mBlockSize - blockOffset);
+            ByteBuffer view = segment.duplicate();
+            view.position(mInSegmentOffset + blockOffset);
+            view.limit(mInSegmentOffset + blockOffset + length);
+            buffer.put(view);
+            return length;
+        }
+
+        @Override
+        public void write(int blockOffset, byte[] buffer, int bufferOffset, int length) throws IOException {
+            write(blockOffset, ByteBuffer.wrap(buffer, bufferOffset, length));
+        }
+
+        @Override
+        public synchronized void write(int blockOffset, ByteBuffer buffer) throws IOException {
+            if (!mLockContainer.isWriteLocked()) throw new IllegalStateException("Write lock not claimed");
+
+            if (blockOffset + buffer.remaining() > mBlockSize) {
+                throw new IOException("Writing after block boundary");
+            }
+            MappedByteBuffer segment = getSegment(mSegmentIndex, mInSegmentOffset + mBlockSize, false);
+            if (segment == null) {
+                throw new IOException("Writing to block which was not allocated");
+            }
+
+            ByteBuffer view = segment.duplicate();
+            view.position(mInSegmentOffset + blockOffset);
+            view.put(buffer);
+            mDurabilityController.onWrite(segment::force);
+        }
+
+        @Override
+        public synchronized void close() {
+            release();
+            mLockContainer.close();
+            mOpenedStorageBlocks.remove(this);
+        }
+
+        @Override
+        public synchronized void ensureCapacity() throws IOException {
+            getSegment(mSegmentIndex, mInSegmentOffset + mBlockSize, true);
+
+            long blockEnd = mDataStartOffset + (long) mSegmentIndex * mSegmentSize + mInSegmentOffset + mBlockSize;
+            if (blockEnd > mHighWaterMark) {
+                synchronized (mMappingLock) {
+                    mHighWaterMark = Math.max(mHighWaterMark, blockEnd);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package mmk.vfs.storage.blocks;
+
+import mmk.vfs.exceptions.ObjectClosedException;
+import mmk.vfs.locks.AccessController;
+import mmk.vfs.locks.AccessProviderManager;
+import mmk.vfs.locks.LockType;
+import mmk.vfs.locks.ReadWriteAccessProvider;
+import mmk.vfs.util.HeaderUtil;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Memory storage. Stores blocks in direct (off-heap) buffers allocated in fixed-size chunks, so contents of storage are
+ * neither scanned nor moved by garbage collector. Contents are lost on close, but consistent image of storage can be
+ * written to file with {@link #writeSnapshot(File)} and loaded back with {@link #loadSnapshot(File)}.
+ */
+public class OffHeapBlockStorageManager implements BlockStorageManager {
+    /**
+     * Default size of single memory chunk.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private static final byte[] SNAPSHOT_HEADER_MAGIC = new byte[]{(byte) 'V', (byte) 'F', (byte) 'S', (byte) 'M'};
+    private static final int SNAPSHOT_VERSION_1 = 1;
+    private static final int SNAPSHOT_HEADER_LENGTH = 16;
+
+    private volatile boolean mIsClosed = false;
+    private final int mBlockSize;
+    private final int mBlocksPerChunk;
+    private final int mChunkSize;
+    private final AccessProviderManager<Integer> mLockManager = new AccessProviderManager<>(ReadWriteAccessProvider::new);
+    private final Set<StorageBlock> mOpenedStorageBlocks = new HashSet<>();
+
+    // replaced as a whole under mCapacityLock, so readers can use it without locking
+    private volatile ByteBuffer[] mChunks = new ByteBuffer[0];
+    private volatile int mBlockCount = 0;
+    private final Object mCapacityLock = new Object();
+    // writes hold shared side, snapshot holds exclusive side, so snapshot never sees partially written block
+    private final ReadWriteLock mSnapshotLock = new ReentrantReadWriteLock();
+
+    /**
+     * Constructor.
+     *
+     * @param blockSize size of each block
+     */
+    public OffHeapBlockStorageManager(int blockSize) {
+        this(blockSize, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param blockSize size of each block
+     * @param chunkSize size of each allocated memory chunk, rounded down to whole blocks
+     */
+    public OffHeapBlockStorageManager(int blockSize, int chunkSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        if (chunkSize < blockSize) {
+            throw new IllegalArgumentException("Chunk size must not be less than block size");
+        }
+        mBlockSize = blockSize;
+        mBlocksPerChunk = chunkSize / blockSize;
+        mChunkSize = mBlocksPerChunk * blockSize;
+    }
+
+    /**
+     * Load storage from snapshot image previously written by {@link #writeSnapshot(File)}.
+     *
+     * @param snapshotFile file with snapshot image
+     * @return storage with contents of snapshot
+     * @throws IOException I/O exception happened while reading image or image is malformed
+     */
+    public static OffHeapBlockStorageManager loadSnapshot(File snapshotFile) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_LENGTH).order(ByteOrder.BIG_ENDIAN);
+            readFully(fileChannel, header, 0);
+
+            for (int i = 0; i < SNAPSHOT_HEADER_MAGIC.length; ++i) {
+                if (header.get(i) != SNAPSHOT_HEADER_MAGIC[i]) {
+                    throw HeaderUtil.getMalformedFileException("Incorrect snapshot magic sequence");
+                }
+            }
+            if (header.getInt(4) != SNAPSHOT_VERSION_1) {
+                throw HeaderUtil.getMalformedFileException("Unsupported snapshot version " + header.getInt(4));
+            }
+            int blockSize = header.getInt(8);
+            int blockCount = header.getInt(12);
+            if (blockSize <= 0 || blockCount < 0) {
+                throw HeaderUtil.getMalformedFileException("Incorrect snapshot geometry");
+            }
+            if (fileChannel.size() < SNAPSHOT_HEADER_LENGTH + (long) blockCount * blockSize) {
+                throw HeaderUtil.getMalformedFileException("Snapshot is truncated");
+            }
+
+            OffHeapBlockStorageManager storage = new OffHeapBlockStorageManager(blockSize, Math.max(blockSize, DEFAULT_CHUNK_SIZE));
+            if (blockCount > 0) {
+                storage.ensureBlockCapacity(blockCount - 1);
+            }
+            long fileOffset = SNAPSHOT_HEADER_LENGTH;
+            for (ByteBuffer chunk : storage.mChunks) {
+                ByteBuffer view = chunk.duplicate();
+                view.clear().limit((int) Math.min(view.capacity(), (long) blockCount * blockSize - (fileOffset - SNAPSHOT_HEADER_LENGTH)));
+                readFully(fileChannel, view, fileOffset);
+                fileOffset += view.limit();
+            }
+            return storage;
+        }
+    }
+
+    private static void readFully(FileChannel fileChannel, ByteBuffer buffer, long fileOffset) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = fileChannel.read(buffer, fileOffset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            fileOffset += read;
+        }
+    }
+
+    /**
+     * Write image of current storage contents to file. Writes are suspended while image is being written, so image
+     * contains every block either fully before or fully after any concurrent write. That is the only guarantee, image
+     * taken while storage is modified can contain some blocks of multi-block update and miss others, use
+     * {@link mmk.vfs.memory.InMemoryVirtualFileSystem#writeSnapshot} to get image of consistent file tree.
+     * Image is written to temporary file first and then moved over target file, so target is never left partially
+     * written.
+     *
+     * @param snapshotFile file to write image to, replaced if exists
+     * @throws IOException I/O exception happened while writing image
+     */
+    public void writeSnapshot(File snapshotFile) throws IOException {
+        File absoluteFile = snapshotFile.getAbsoluteFile();
+        File temporaryFile = File.createTempFile(absoluteFile.getName(), ".tmp", absoluteFile.getParentFile());
+        boolean success = false;
+        try {
+            try (FileChannel fileChannel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                mSnapshotLock.writeLock().lock();
+                try {
+                    if (mIsClosed) throw new ObjectClosedException();
+
+                    int blockCount = mBlockCount;
+                    ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_LENGTH).order(ByteOrder.BIG_ENDIAN);
+                    header.put(SNAPSHOT_HEADER_MAGIC);
+                    header.putInt(SNAPSHOT_VERSION_1);
+                    header.putInt(mBlockSize);
+                    header.putInt(blockCount);
+                    header.flip();
+                    long fileOffset = 0;
+                    while (header.hasRemaining()) {
+                        fileOffset += fileChannel.write(header, fileOffset);
+                    }
+
+                    long remaining = (long) blockCount * mBlockSize;
+                    for (ByteBuffer chunk : mChunks) {
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        ByteBuffer view = chunk.duplicate();
+                        view.clear().limit((int) Math.min(view.capacity(), remaining));
+                        remaining -= view.remaining();
+                        while (view.hasRemaining()) {
+                            fileOffset += fileChannel.write(view, fileOffset);
+                        }
+                    }
+                } finally {
+                    mSnapshotLock.writeLock().unlock();
+                }
+                fileChannel.force(true);
+            }
+
+            try {
+                Files.move(temporaryFile.toPath(), absoluteFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryFile.toPath(), absoluteFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                Files.deleteIfExists(temporaryFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * Get count of blocks, which currently have memory allocated for them.
+     *
+     * @return count of allocated blocks
+     */
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    @Override
+    public synchronized StorageBlock getStorageBlock(int blockId) throws ObjectClosedException {
+        if (mIsClosed) throw new ObjectClosedException();
+
+        StorageBlock block = new OffHeapBlock(blockId);
+        mOpenedStorageBlocks.add(block);
+        return block;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            mIsClosed = true;
+            for (StorageBlock block : new ArrayList<>(mOpenedStorageBlocks)) {
+                block.close();
+            }
+        }
+
+        mSnapshotLock.writeLock().lock();
+        try {
+            synchronized (mCapacityLock) {
+                // direct buffers can't be freed explicitly, memory is released when they are garbage collected
+                mChunks = new ByteBuffer[0];
+                mBlockCount = 0;
+            }
+        } finally {
+            mSnapshotLock.writeLock().unlock();
+        }
+    }
+
+    private void ensureBlockCapacity(int blockId) {
+        if (blockId < mBlockCount) {
+            return;
+        }
+        synchronized (mCapacityLock) {
+            if (blockId < mBlockCount) {
+                return;
+            }
+            int requiredChunks = blockId / mBlocksPerChunk + 1;
+            ByteBuffer[] chunks = mChunks;
+            if (chunks.length < requiredChunks) {
+                ByteBuffer[] newChunks = Arrays.copyOf(chunks, requiredChunks);
+                for (int i = chunks.length; i < requiredChunks; ++i) {
+                    newChunks[i] = ByteBuffer.allocateDirect(mChunkSize);
+                }
+                mChunks = newChunks;
+            }
+            mBlockCount = blockId + 1;
+        }
+    }
+
+    class OffHeapBlock implements StorageBlock {
+        private final int mBlockId;
+        private final int mChunkIndex;
+        private final int mInChunkOffset;
+        private final AccessController mLockContainer;
+
+        public OffHeapBlock(int blockId) {
+            mBlockId = blockId;
+            mChunkIndex = blockId / mBlocksPerChunk;
+            mInChunkOffset = (blockId % mBlocksPerChunk) * mBlockSize;
+            mLockContainer = new AccessController(mLockManager.getLockerForPath(blockId));
+        }
+
+        @Override
+        public synchronized void claim(LockType lockType) throws InterruptedIOException {
+            mLockContainer.claimLock(lockType);
+        }
+
+        @Override
+        public synchronized void release() {
+            mLockContainer.releaseLock();
+        }
+
+        @Override
+        public int read(int blockOffset, byte[] buffer, int bufferOffset, int length) throws IOException {
+            return read(blockOffset, ByteBuffer.wrap(buffer, bufferOffset, length));
+        }
+
+        @Override
+        public synchronized int read(int blockOffset, ByteBuffer buffer) throws IOException {
+            if (!mLockContainer.isReadLocked()) throw new IllegalStateException("Read lock not claimed");
+
+            // count is read before chunks, chunks are replaced before count grows, so chunks cover counted blocks
+            // unless storage is closed concurrently and chunks are dropped
+            int blockCount = mBlockCount;
+            ByteBuffer[] chunks = mChunks;
+            if (mIsClosed || mChunkIndex >= chunks.length && mBlockId < blockCount) throw new ObjectClosedException();
+
+            if (blockOffset >= mBlockSize || mBlockId >= blockCount) {
+                return -1;
+            }
+
+            int length = Math.min(buffer.remaining(), mBlockSize - blockOffset);
+            ByteBuffer view = chunks[mChunkIndex].duplicate();
+            view.position(mInChunkOffset + blockOffset);
+            view.limit(mInChunkOffset + blockOffset + length);
+            buffer.put(view);
+            return length;
+        }
+
+        @Override
+        public void write(int blockOffset, byte[] buffer, int bufferOffset, int length) throws IOException {
+            write(blockOffset, ByteBuffer.wrap(buffer, bufferOffset, length));
+        }
+
+        @Override
+        public synchronized void write(int blockOffset, ByteBuffer buffer) throws IOException {
+            if (!mLockContainer.isWriteLocked()) throw new IllegalStateException("Write lock not claimed");
+
+            if (blockOffset + buffer.remaining() > mBlockSize) {
+                throw new IOException("Writing after block boundary");
+            }
+
+            mSnapshotLock.readLock().lock();
+            try {
+                // close drops chunks under exclusive side, so they can't disappear while shared side is held
+                if (mIsClosed) throw new ObjectClosedException();
+                if (mBlockId >= mBlockCount) {
+                    throw new IOException("Writing to block which was not allocated");
+                }
+                ByteBuffer view = mChunks[mChunkIndex].duplicate();
+                view.position(mInChunkOffset + blockOffset);
+                view.put(buffer);
+            } finally {
+                mSnapshotLock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            release();
+            mLockContainer.close();
+            synchronized (OffHeapBlockStorageManager.this) {
+                mOpenedStorageBlocks.remove(this);
+            }
+        }
+
+        @Override
+        public synchronized void ensureCapacity() throws IOException {
+            mSnapshotLock.readLock().lock();
+            try {
+                if (mIsClosed) throw new ObjectClosedException();
+                ensureBlockCapacity(mBlockId);
+            } finally {
+                mSnapshotLock.readLock().unlock();
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import mmk.vfs.locks.LockType;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 
 /**
  * Minimal data storage element available to allocate. Files in VFS are stored in one Block or split to several Blocks,
@@ -59,6 +60,56 @@ public interface StorageBlock extends AutoCloseable {
         return totalRead;
     }
 
+    /**
+     * Read contents of block into buffer. Requires READ lock to be claimed first.
+     * Reads at most buffer.remaining() bytes and advances buffer position by count of read bytes.
+     * Can return before all bytes are read based on implementation details. Implementations should read directly into
+     * provided buffer, so passing direct buffer avoids intermediate copies.
+     *
+     * @param blockOffset offset from the start of this block
+     * @param buffer      buffer to read into
+     * @return count of bytes which were actually read from block, -1 if there is nothing to read at this offset
+     * @throws IOException I/O exception happened during read operation
+     */
+    default int read(int blockOffset, ByteBuffer buffer) throws IOException {
+        int read;
+        if (buffer.hasArray()) {
+            read = read(blockOffset, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (read > 0) {
+                buffer.position(buffer.position() + read);
+            }
+        }
+        else {
+            byte[] bytes = new byte[buffer.remaining()];
+            read = read(blockOffset, bytes, 0, bytes.length);
+            if (read > 0) {
+                buffer.put(bytes, 0, read);
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Read contents of block into buffer. Requires READ lock to be claimed first. Continues read until buffer is full or
+     * end of block encountered.
+     *
+     * @param blockOffset offset from the start of this block
+     * @param buffer      buffer to read into
+     * @return count of bytes which were actually read from block
+     * @throws IOException I/O exception happened during read operation
+     */
+    default int readFully(int blockOffset, ByteBuffer buffer) throws IOException {
+        int totalRead = 0;
+        while (buffer.hasRemaining()) {
+            int read = read(blockOffset + totalRead, buffer);
+            if (read < 0) {
+                break;
+            }
+            totalRead += read;
+        }
+        return totalRead;
+    }
+
     /**
      * Write contents to block. Requires WRITE lock to be claimed first.
      *
@@ -70,6 +121,27 @@ public interface StorageBlock extends AutoCloseable {
      */
     void write(int blockOffset, byte[] buffer, int bufferOffset, int length) throws IOException;
 
+    /**
+     * Write contents to block. Requires WRITE lock to be claimed first.
+     * Writes all remaining bytes of buffer and advances buffer position to its limit.
+     *
+     * @param blockOffset offset from the start of this block
+     * @param buffer      buffer to write from
+     * @throws IOException I/O exception happened during read operation
+     */
+    default void write(int blockOffset, ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        if (buffer.hasArray()) {
+            write(blockOffset, buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            buffer.position(buffer.limit());
+        }
+        else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            write(blockOffset, bytes, 0, length);
+        }
+    }
+
     /**
      * Close and free this block, release lock if it was not released yet.
      */
@@ -0,0 +1,208 @@
+package mmk.vfs.storage.blocks;
+
+import mmk.vfs.exceptions.ObjectClosedException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Storage striped across several underlying storages (ex. files on different devices). Blocks are distributed
+ * round-robin: block N is stored as block N / StripeCount of stripe N % StripeCount. Runs of adjacent blocks are
+ * read and written by all stripes in parallel.
+ */
+public class StripedBlockStorageManager implements BlockStorageManager {
+    private final BlockStorageManager[] mStripes;
+    private final int mBlockSize;
+    private final ExecutorService mStripeExecutor;
+    private volatile boolean mIsClosed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param stripes underlying storages, all must have same block size; they are closed together with this storage
+     */
+    public StripedBlockStorageManager(BlockStorageManager[] stripes) {
+        if (stripes.length == 0) {
+            throw new IllegalArgumentException("At least one stripe required");
+        }
+        mBlockSize = stripes[0].getBlockSize();
+        for (BlockStorageManager stripe : stripes) {
+            if (stripe.getBlockSize() != mBlockSize) {
+                throw new IllegalArgumentException("All stripes must have same block size");
+            }
+        }
+        mStripes = stripes.clone();
+        // calling thread handles one of stripes by itself
+        mStripeExecutor = Executors.newFixedThreadPool(Math.max(1, stripes.length - 1), runnable -> {
+            Thread thread = new Thread(runnable, "VFS stripe I/O");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getStripeCount() {
+        return mStripes.length;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    @Override
+    public StorageBlock getStorageBlock(int blockId) throws IOException {
+        if (mIsClosed) throw new ObjectClosedException();
+
+        return mStripes[blockId % mStripes.length].getStorageBlock(blockId / mStripes.length);
+    }
+
+    @Override
+    public int readBlocks(int firstBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+        if (mIsClosed) throw new ObjectClosedException();
+
+        long runLength = (long) blockCount * mBlockSize - firstBlockOffset;
+        if (runLength <= 0) {
+            return -1;
+        }
+        int length = (int) Math.min(buffer.remaining(), runLength);
+        int lastBlock = (firstBlockOffset + length - 1) / mBlockSize;
+
+        // bytes read of every block, blocks are read separately, but only continuous prefix is reported
+        int[] blockReads = new int[lastBlock + 1];
+        int start = buffer.position();
+        forEachStripe(firstBlockId, lastBlock + 1, (stripe, i) -> {
+            ByteBuffer blockBuffer = getBlockSlice(buffer, start, firstBlockOffset, length, i);
+            int blockOffset = i == 0 ? firstBlockOffset : 0;
+            int blockLength = blockBuffer.remaining();
+            while (blockBuffer.hasRemaining()) {
+                int read = stripe.readBlocks((firstBlockId + i) / mStripes.length, 1, blockOffset + blockLength - blockBuffer.remaining(), blockBuffer);
+                if (read <= 0) {
+                    break;
+                }
+            }
+            blockReads[i] = blockLength - blockBuffer.remaining();
+        });
+
+        int totalRead = 0;
+        for (int i = 0; i <= lastBlock; ++i) {
+            totalRead += blockReads[i];
+            if (blockReads[i] < getBlockSlice(buffer, start, firstBlockOffset, length, i).remaining()) {
+                break;
+            }
+        }
+        buffer.position(start + totalRead);
+        return totalRead == 0 ? -1 : totalRead;
+    }
+
+    @Override
+    public void writeBlocks(int firstBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+        if (mIsClosed) throw new ObjectClosedException();
+
+        int length = buffer.remaining();
+        if (length > (long) blockCount * mBlockSize - firstBlockOffset) {
+            throw new IOException("Writing after block boundary");
+        }
+        if (length == 0) {
+            return;
+        }
+        int lastBlock = (firstBlockOffset + length - 1) / mBlockSize;
+
+        int start = buffer.position();
+        forEachStripe(firstBlockId, lastBlock + 1, (stripe, i) -> {
+            ByteBuffer blockBuffer = getBlockSlice(buffer, start, firstBlockOffset, length, i);
+            stripe.writeBlocks((firstBlockId + i) / mStripes.length, 1, i == 0 ? firstBlockOffset : 0, blockBuffer);
+        });
+        buffer.position(start + length);
+    }
+
+    /**
+     * Get view of buffer part, which belongs to block with provided index in run.
+     */
+    private ByteBuffer getBlockSlice(ByteBuffer buffer, int start, int firstBlockOffset, int length, int blockIndexInRun) {
+        int sliceStart = blockIndexInRun == 0 ? 0 : blockIndexInRun * mBlockSize - firstBlockOffset;
+        int sliceEnd = Math.min(length, (blockIndexInRun + 1) * mBlockSize - firstBlockOffset);
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(start + sliceEnd);
+        slice.position(start + sliceStart);
+        return slice;
+    }
+
+    /**
+     * Perform operation for every block of run, blocks of each stripe are processed sequentially by single thread,
+     * different stripes are processed in parallel.
+     *
+     * @param firstBlockId index of first block in run
+     * @param blockCount   count of blocks in run
+     * @param operation    operation on single block
+     * @throws IOException first exception thrown by operation
+     */
+    private void forEachStripe(int firstBlockId, int blockCount, BlockOperation operation) throws IOException {
+        int stripeCount = Math.min(mStripes.length, blockCount);
+        List<Future<Void>> stripeTasks = new ArrayList<>(stripeCount - 1);
+        IOException exception = null;
+        try {
+            for (int s = 1; s < stripeCount; ++s) {
+                int firstIndex = s;
+                stripeTasks.add(mStripeExecutor.submit(() -> {
+                    runStripe(firstBlockId, blockCount, firstIndex, operation);
+                    return null;
+                }));
+            }
+            runStripe(firstBlockId, blockCount, 0, operation);
+        } catch (IOException e) {
+            exception = e;
+        }
+
+        for (Future<Void> stripeTask : stripeTasks) {
+            try {
+                stripeTask.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (exception == null) {
+                    exception = new InterruptedIOException();
+                }
+            } catch (ExecutionException e) {
+                if (exception == null) {
+                    exception = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private void runStripe(int firstBlockId, int blockCount, int firstIndex, BlockOperation operation) throws IOException {
+        BlockStorageManager stripe = mStripes[(firstBlockId + firstIndex) % mStripes.length];
+        for (int i = firstIndex; i < blockCount; i += mStripes.length) {
+            operation.apply(stripe, i);
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for (BlockStorageManager stripe : mStripes) {
+            stripe.sync();
+        }
+    }
+
+    @Override
+    public void close() {
+        mIsClosed = true;
+        mStripeExecutor.shutdown();
+        for (BlockStorageManager stripe : mStripes) {
+            stripe.close();
+        }
+    }
+
+    private interface BlockOperation {
+        void apply(BlockStorageManager stripe, int blockIndexInRun) throws IOException;
+    }
+}
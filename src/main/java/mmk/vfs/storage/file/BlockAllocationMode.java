@@ -0,0 +1,17 @@
+package mmk.vfs.storage.file;
+
+/**
+ * Mode of choosing BAT groups new blocks of Storage Files are allocated from.
+ */
+public enum BlockAllocationMode {
+    /**
+     * All files allocate first free blocks of container, growing file prefers blocks close to its last block.
+     */
+    SHARED,
+    /**
+     * Each opened file gets home group, which is not home group of any other opened file, and allocates blocks from
+     * it until it is full, then claims another one. Files written in parallel do not interleave and do not compete
+     * for the same free blocks, at the cost of partially filled groups, which are filled after their files are closed.
+     */
+    FILE_HOME_GROUPS
+}
@@ -0,0 +1,149 @@
+package mmk.vfs.storage.file;
+
+import mmk.vfs.locks.AccessController;
+import mmk.vfs.locks.AccessProviderManager;
+import mmk.vfs.locks.LockType;
+import mmk.vfs.storage.blocks.BlockStorageManager;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage File of Storage File Manager V2. File offsets are mapped to Storage Blocks through extents of file, reads and
+ * writes are split only at extent boundaries, so each contiguous part of file is transferred as single run.
+ */
+class ExtentStorageFile implements StorageFile {
+    private final StorageFileManagerV2 mManager;
+    private final BlockStorageManager mBlockStorageManager;
+    private final FileExtents mExtents;
+    private final AccessController mLockContainer;
+    private boolean mIsClosed = false;
+
+    ExtentStorageFile(StorageFileManagerV2 manager, BlockStorageManager blockStorageManager, FileExtents extents,
+                      AccessProviderManager<Integer> lockManager) {
+        mManager = manager;
+        mBlockStorageManager = blockStorageManager;
+        mExtents = extents;
+        mLockContainer = new AccessController(lockManager.getLockerForPath(extents.getStorageFileId()));
+    }
+
+    FileExtents getExtents() {
+        return mExtents;
+    }
+
+    @Override
+    public int getStorageStartIdx() {
+        return mExtents.getStorageFileId();
+    }
+
+    @Override
+    public synchronized void claimLock(LockType lockType) throws InterruptedIOException {
+        mLockContainer.claimLock(lockType);
+    }
+
+    @Override
+    public synchronized void releaseLock() {
+        mLockContainer.releaseLock();
+    }
+
+    @Override
+    public int getCurrentCapacity() {
+        return mExtents.getCapacityBlocks() * mBlockStorageManager.getBlockSize();
+    }
+
+    @Override
+    public synchronized int readBlock(int fileOffset, byte[] readBuffer, int bufferOffset, int length) throws IOException {
+        return readBlock(fileOffset, ByteBuffer.wrap(readBuffer, bufferOffset, length));
+    }
+
+    @Override
+    public synchronized int readBlock(int fileOffset, ByteBuffer readBuffer) throws IOException {
+        int blockSize = mBlockStorageManager.getBlockSize();
+        int fileBlock = fileOffset / blockSize;
+        int blockOffset = fileOffset - fileBlock * blockSize;
+        if (!readBuffer.hasRemaining()) {
+            return mExtents.findExtent(fileBlock) < 0 ? -1 : 0;
+        }
+
+        int totalRead = 0;
+        while (readBuffer.hasRemaining()) {
+            int extentIndex = mExtents.findExtent(fileBlock);
+            if (extentIndex < 0) {
+                break;
+            }
+            int blockCount = mExtents.getExtentFileEnd(extentIndex) - fileBlock;
+            int firstBlockId = mExtents.getExtentStart(extentIndex) + fileBlock - mExtents.getExtentFileStart(extentIndex);
+            int runLength = (int) Math.min(readBuffer.remaining(), (long) blockCount * blockSize - blockOffset);
+            // only blocks covered by run are passed, storage may lock each of them
+            blockCount = (int) Math.min(blockCount, ((long) blockOffset + runLength + blockSize - 1) / blockSize);
+
+            int limit = readBuffer.limit();
+            readBuffer.limit(readBuffer.position() + runLength);
+            int read;
+            try {
+                read = mBlockStorageManager.readBlocks(firstBlockId, blockCount, blockOffset, readBuffer);
+            } finally {
+                readBuffer.limit(limit);
+            }
+            if (read > 0) {
+                totalRead += read;
+            }
+            if (read < runLength) {
+                break;
+            }
+            fileBlock += blockCount;
+            blockOffset = 0;
+        }
+        return totalRead == 0 ? -1 : totalRead;
+    }
+
+    @Override
+    public synchronized void writeBlock(int fileOffset, byte[] writeBuffer, int bufferOffset, int length) throws IOException {
+        writeBlock(fileOffset, ByteBuffer.wrap(writeBuffer, bufferOffset, length));
+    }
+
+    @Override
+    public synchronized void writeBlock(int fileOffset, ByteBuffer writeBuffer) throws IOException {
+        if (!writeBuffer.hasRemaining()) {
+            return;
+        }
+
+        int blockSize = mBlockStorageManager.getBlockSize();
+        long endOffset = (long) fileOffset + writeBuffer.remaining();
+        int requiredBlocks = (int) ((endOffset + blockSize - 1) / blockSize);
+        if (requiredBlocks > mExtents.getCapacityBlocks()) {
+            mManager.extendFile(mExtents, requiredBlocks);
+        }
+
+        int fileBlock = fileOffset / blockSize;
+        int blockOffset = fileOffset - fileBlock * blockSize;
+        while (writeBuffer.hasRemaining()) {
+            int extentIndex = mExtents.findExtent(fileBlock);
+            int blockCount = mExtents.getExtentFileEnd(extentIndex) - fileBlock;
+            int firstBlockId = mExtents.getExtentStart(extentIndex) + fileBlock - mExtents.getExtentFileStart(extentIndex);
+            int runLength = (int) Math.min(writeBuffer.remaining(), (long) blockCount * blockSize - blockOffset);
+            blockCount = (int) Math.min(blockCount, ((long) blockOffset + runLength + blockSize - 1) / blockSize);
+
+            int limit = writeBuffer.limit();
+            writeBuffer.limit(writeBuffer.position() + runLength);
+            try {
+                mBlockStorageManager.writeBlocks(firstBlockId, blockCount, blockOffset, writeBuffer);
+            } finally {
+                writeBuffer.limit(limit);
+            }
+            fileBlock += blockCount;
+            blockOffset = 0;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mIsClosed) {
+            return;
+        }
+        mIsClosed = true;
+        mManager.onFileClosed(this);
+        mLockContainer.close();
+    }
+}
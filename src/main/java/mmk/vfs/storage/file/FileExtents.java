@@ -0,0 +1,118 @@
+package mmk.vfs.storage.file;
+
+import java.util.Arrays;
+
+/**
+ * Extents of Storage File of Storage File Manager V2. Extent is run of adjacent Storage Blocks, extents are kept in
+ * order of file contents together with count of file blocks up to end of each extent, so block of file is found by
+ * binary search over extents.
+ * Also keeps chain of inode blocks, which store extents on storage. Storage File index is index of first inode block.
+ */
+class FileExtents {
+    private final int mStorageFileId;
+    private int[] mInodeBlocks = new int[1];
+    private int mInodeBlockCount = 0;
+    private int[] mExtentStarts = new int[4];
+    // count of file blocks in this and all previous extents
+    private int[] mExtentEnds = new int[4];
+    private int mExtentCount = 0;
+    // count of opened handles, guarded by owning manager
+    int mOpenHandleCount = 0;
+
+    FileExtents(int storageFileId) {
+        mStorageFileId = storageFileId;
+        addInodeBlock(storageFileId);
+    }
+
+    int getStorageFileId() {
+        return mStorageFileId;
+    }
+
+    synchronized int getInodeBlockCount() {
+        return mInodeBlockCount;
+    }
+
+    synchronized int getInodeBlock(int inodeIndex) {
+        return mInodeBlocks[inodeIndex];
+    }
+
+    synchronized void addInodeBlock(int blockId) {
+        if (mInodeBlockCount == mInodeBlocks.length) {
+            mInodeBlocks = Arrays.copyOf(mInodeBlocks, mInodeBlocks.length * 2);
+        }
+        mInodeBlocks[mInodeBlockCount++] = blockId;
+    }
+
+    synchronized void removeLastInodeBlock() {
+        --mInodeBlockCount;
+    }
+
+    synchronized int getExtentCount() {
+        return mExtentCount;
+    }
+
+    /**
+     * @return count of blocks in all extents
+     */
+    synchronized int getCapacityBlocks() {
+        return mExtentCount == 0 ? 0 : mExtentEnds[mExtentCount - 1];
+    }
+
+    synchronized int getExtentStart(int extentIndex) {
+        return mExtentStarts[extentIndex];
+    }
+
+    synchronized int getExtentLength(int extentIndex) {
+        return mExtentEnds[extentIndex] - getExtentFileStart(extentIndex);
+    }
+
+    /**
+     * @param extentIndex index of extent
+     * @return index of first file block stored in extent
+     */
+    synchronized int getExtentFileStart(int extentIndex) {
+        return extentIndex == 0 ? 0 : mExtentEnds[extentIndex - 1];
+    }
+
+    /**
+     * @param extentIndex index of extent
+     * @return index of file block following last block stored in extent
+     */
+    synchronized int getExtentFileEnd(int extentIndex) {
+        return mExtentEnds[extentIndex];
+    }
+
+    /**
+     * @param fileBlock index of block in file
+     * @return index of extent containing file block or -1 if file is shorter
+     */
+    synchronized int findExtent(int fileBlock) {
+        if (fileBlock < 0 || fileBlock >= getCapacityBlocks()) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(mExtentEnds, 0, mExtentCount, fileBlock);
+        // block equal to end of extent is first block of next extent
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    synchronized void addExtent(int firstBlockId, int blockCount) {
+        if (mExtentCount == mExtentStarts.length) {
+            mExtentStarts = Arrays.copyOf(mExtentStarts, mExtentStarts.length * 2);
+            mExtentEnds = Arrays.copyOf(mExtentEnds, mExtentEnds.length * 2);
+        }
+        mExtentStarts[mExtentCount] = firstBlockId;
+        mExtentEnds[mExtentCount] = getCapacityBlocks() + blockCount;
+        ++mExtentCount;
+    }
+
+    synchronized void removeLastExtent() {
+        --mExtentCount;
+    }
+
+    /**
+     * @param blockCount count of blocks to add to last extent, negative value shrinks it
+     */
+    synchronized void growLastExtent(int blockCount) {
+        mExtentEnds[mExtentCount - 1] += blockCount;
+    }
+}
@@ -0,0 +1,240 @@
+package mmk.vfs.storage.file;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * In-memory mirror of free entries of Block Allocation Tables (or allocation bitmaps), first block of each group is
+ * allocation metadata itself and is never free.
+ * Groups are added in order, group is added only after its BAT was read, so blocks of groups which were not added
+ * yet are unknown to map and changes of their state are ignored (they will be read from BAT when group is added).
+ * Keeps bitmap of free blocks and count of free blocks per group, so search for free block does not depend on
+ * fullness of container.
+ * <p>
+ * Not thread-safe, owner must guard all accesses.
+ */
+class FreeBlockMap {
+    private final int mBlocksPerGroup;
+    private final BitSet mFreeBlocks = new BitSet();
+    private final BitSet mGroupsWithFreeBlocks = new BitSet();
+    private int[] mGroupFreeCounts = new int[16];
+    private int mGroupCount = 0;
+    private long mFreeBlockCount = 0;
+    // there are no free blocks in groups before this one
+    private int mFirstGroupWithFreeBlocks = 0;
+
+    FreeBlockMap(int blocksPerGroup) {
+        mBlocksPerGroup = blocksPerGroup;
+    }
+
+    /**
+     * @return count of groups added to map
+     */
+    int getGroupCount() {
+        return mGroupCount;
+    }
+
+    /**
+     * Add next group to map, all its blocks are treated as used until marked free.
+     *
+     * @return index of added group
+     */
+    int addGroup() {
+        if (mGroupCount == mGroupFreeCounts.length) {
+            mGroupFreeCounts = Arrays.copyOf(mGroupFreeCounts, mGroupFreeCounts.length * 2);
+        }
+        return mGroupCount++;
+    }
+
+    /**
+     * @param blockId id of Storage Block
+     * @return true if group of block was added to map
+     */
+    boolean isKnown(int blockId) {
+        return blockId / mBlocksPerGroup < mGroupCount;
+    }
+
+    /**
+     * @param blockId id of Storage Block
+     * @return true if block is known to be free
+     */
+    boolean isFree(int blockId) {
+        return mFreeBlocks.get(blockId);
+    }
+
+    /**
+     * Update state of block, ignored for blocks of groups, which were not added yet.
+     *
+     * @param blockId id of Storage Block
+     * @param free    true if block is free
+     */
+    void setFree(int blockId, boolean free) {
+        int groupIndex = blockId / mBlocksPerGroup;
+        if (groupIndex >= mGroupCount || blockId == groupIndex * mBlocksPerGroup) {
+            return;
+        }
+        if (mFreeBlocks.get(blockId) == free) {
+            return;
+        }
+        mFreeBlocks.set(blockId, free);
+        if (free) {
+            ++mFreeBlockCount;
+            if (mGroupFreeCounts[groupIndex]++ == 0) {
+                mGroupsWithFreeBlocks.set(groupIndex);
+            }
+            if (groupIndex < mFirstGroupWithFreeBlocks) {
+                mFirstGroupWithFreeBlocks = groupIndex;
+            }
+        } else {
+            --mFreeBlockCount;
+            if (--mGroupFreeCounts[groupIndex] == 0) {
+                mGroupsWithFreeBlocks.clear(groupIndex);
+            }
+        }
+    }
+
+    /**
+     * @return lowest free block id or -1 if all blocks of added groups are used
+     */
+    int findFreeBlock() {
+        int groupIndex = mGroupsWithFreeBlocks.nextSetBit(mFirstGroupWithFreeBlocks);
+        if (groupIndex < 0) {
+            mFirstGroupWithFreeBlocks = mGroupCount;
+            return -1;
+        }
+        mFirstGroupWithFreeBlocks = groupIndex;
+        return mFreeBlocks.nextSetBit(groupIndex * mBlocksPerGroup);
+    }
+
+    /**
+     * @param fromGroupIndex index of first BAT group to check
+     * @return index of first group with free blocks starting from provided one or -1 if there is no such group
+     */
+    int findGroupWithFreeBlocks(int fromGroupIndex) {
+        return mGroupsWithFreeBlocks.nextSetBit(fromGroupIndex);
+    }
+
+    /**
+     * @param groupIndex index of BAT group
+     * @return lowest free block id in group or -1 if there are no free blocks in group (or group was not added)
+     */
+    int findFreeBlockInGroup(int groupIndex) {
+        if (groupIndex >= mGroupCount || mGroupFreeCounts[groupIndex] == 0) {
+            return -1;
+        }
+        return mFreeBlocks.nextSetBit(groupIndex * mBlocksPerGroup);
+    }
+
+    /**
+     * Find first run of adjacent free blocks, which is long enough. Runs never span several groups.
+     *
+     * @param length required count of blocks in run
+     * @return id of first block of run or -1 if there is no such run in added groups
+     */
+    int findFreeRun(int length) {
+        for (int groupIndex = mGroupsWithFreeBlocks.nextSetBit(mFirstGroupWithFreeBlocks); groupIndex >= 0;
+             groupIndex = mGroupsWithFreeBlocks.nextSetBit(groupIndex + 1)) {
+            int runStart = findFreeRunInGroup(groupIndex, groupIndex * mBlocksPerGroup, length);
+            if (runStart >= 0) {
+                return runStart;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find free blocks close to provided block. Group of provided block is checked first, starting with blocks
+     * following it, then other groups in order of their distance. Group closest to provided block, which has run of
+     * required length, wins, otherwise first free block of closest group with free blocks is returned.
+     *
+     * @param blockId          id of block, which allocated blocks should be close to
+     * @param length           required count of blocks in run
+     * @param maxGroupDistance maximum distance between group of provided block and groups searched
+     * @return id of first block of found run or free block, -1 if there are no free blocks in searched groups
+     */
+    int findFreeRunNear(int blockId, int length, int maxGroupDistance) {
+        int baseGroupIndex = blockId / mBlocksPerGroup;
+        int closestFreeBlock = -1;
+        for (int distance = 0; distance <= maxGroupDistance; ++distance) {
+            for (int side = distance == 0 ? 1 : 0; side < 2; ++side) {
+                int groupIndex = side == 0 ? baseGroupIndex + distance : baseGroupIndex - distance;
+                if (groupIndex < 0 || groupIndex >= mGroupCount || mGroupFreeCounts[groupIndex] == 0) {
+                    continue;
+                }
+                int groupStart = groupIndex * mBlocksPerGroup;
+                int searchStart = groupIndex == baseGroupIndex ? blockId : groupStart;
+                int runStart = findFreeRunInGroup(groupIndex, searchStart, length);
+                if (runStart < 0 && searchStart != groupStart) {
+                    runStart = findFreeRunInGroup(groupIndex, groupStart, length);
+                }
+                if (runStart >= 0) {
+                    return runStart;
+                }
+                if (closestFreeBlock < 0) {
+                    int freeBlock = mFreeBlocks.nextSetBit(searchStart);
+                    closestFreeBlock = freeBlock >= 0 && freeBlock < groupStart + mBlocksPerGroup
+                            ? freeBlock : mFreeBlocks.nextSetBit(groupStart);
+                }
+            }
+        }
+        return closestFreeBlock;
+    }
+
+    private int findFreeRunInGroup(int groupIndex, int fromBlockId, int length) {
+        if (mGroupFreeCounts[groupIndex] < length) {
+            return -1;
+        }
+        long groupEnd = (long) (groupIndex + 1) * mBlocksPerGroup;
+        int runStart = mFreeBlocks.nextSetBit(fromBlockId);
+        while (runStart >= 0 && runStart < groupEnd) {
+            int runEnd = mFreeBlocks.nextClearBit(runStart);
+            if (runEnd - runStart >= length) {
+                return runStart;
+            }
+            runStart = mFreeBlocks.nextSetBit(runEnd);
+        }
+        return -1;
+    }
+
+    /**
+     * @param blockId   id of first block of run
+     * @param maxLength maximum length of run to check
+     * @return count of adjacent free blocks starting with provided one, but not more than maxLength
+     */
+    int getFreeRunLength(int blockId, int maxLength) {
+        if (!mFreeBlocks.get(blockId)) {
+            return 0;
+        }
+        return (int) Math.min(maxLength, (long) mFreeBlocks.nextClearBit(blockId) - blockId);
+    }
+
+    /**
+     * Mark run of adjacent free blocks as used.
+     *
+     * @param firstBlockId id of first block of run, must be free
+     * @param maxLength    maximum count of blocks to mark
+     * @return count of marked blocks, run ends at first used block
+     */
+    int claimRun(int firstBlockId, int maxLength) {
+        int length = getFreeRunLength(firstBlockId, maxLength);
+        for (int i = 0; i < length; ++i) {
+            setFree(firstBlockId + i, false);
+        }
+        return length;
+    }
+
+    /**
+     * @param groupIndex index of BAT group
+     * @return count of free blocks in group, 0 if group was not added
+     */
+    int getGroupFreeBlockCount(int groupIndex) {
+        return groupIndex < mGroupCount ? mGroupFreeCounts[groupIndex] : 0;
+    }
+
+    /**
+     * @return count of free blocks in added groups
+     */
+    long getFreeBlockCount() {
+        return mFreeBlockCount;
+    }
+}
@@ -4,6 +4,7 @@ import mmk.vfs.locks.LockType;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 
 /**
  * Storage File interface. Storage File is a sequence of Storage Blocks.
@@ -63,6 +64,55 @@ public interface StorageFile extends AutoCloseable {
      */
     void writeBlock(int fileOffset, byte[] writeBuffer, int bufferOffset, int length) throws IOException;
 
+    /**
+     * Read contents of file into buffer. Requires READ lock to be claimed first.
+     * Reads at most buffer.remaining() bytes and advances buffer position by count of read bytes.
+     * Can return before all bytes are read based on implementation details.
+     *
+     * @param fileOffset offset from the start of this file
+     * @param readBuffer buffer to read into
+     * @return count of bytes which were actually read, -1 if file has no storage at this offset
+     * @throws IOException I/O exception happened during read operation
+     */
+    default int readBlock(int fileOffset, ByteBuffer readBuffer) throws IOException {
+        int read;
+        if (readBuffer.hasArray()) {
+            read = readBlock(fileOffset, readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), readBuffer.remaining());
+            if (read > 0) {
+                readBuffer.position(readBuffer.position() + read);
+            }
+        }
+        else {
+            byte[] bytes = new byte[readBuffer.remaining()];
+            read = readBlock(fileOffset, bytes, 0, bytes.length);
+            if (read > 0) {
+                readBuffer.put(bytes, 0, read);
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Write contents to file, extending it if required. Requires WRITE lock to be claimed first.
+     * Writes all remaining bytes of buffer and advances buffer position to its limit.
+     *
+     * @param fileOffset  offset from the start of this file
+     * @param writeBuffer buffer to write from
+     * @throws IOException I/O exception happened during write operation
+     */
+    default void writeBlock(int fileOffset, ByteBuffer writeBuffer) throws IOException {
+        int length = writeBuffer.remaining();
+        if (writeBuffer.hasArray()) {
+            writeBlock(fileOffset, writeBuffer.array(), writeBuffer.arrayOffset() + writeBuffer.position(), length);
+            writeBuffer.position(writeBuffer.limit());
+        }
+        else {
+            byte[] bytes = new byte[length];
+            writeBuffer.get(bytes);
+            writeBlock(fileOffset, bytes, 0, length);
+        }
+    }
+
     /**
      * Close and free this file handle, release lock if it was not released yet.
      */
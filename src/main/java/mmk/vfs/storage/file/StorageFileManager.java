@@ -34,6 +34,34 @@ public interface StorageFileManager {
      */
     void freeStorage(int storageFileId) throws IOException;
 
+    /**
+     * Schedule freeing of all blocks of StorageFile, blocks may be freed later in background. StorageFile must not be
+     * referenced anymore, as it is not accessible after this call.
+     * Default implementation frees blocks immediately.
+     *
+     * @param storageFileId index of StorageFile
+     * @throws IOException I/O exception happened while scheduling free operation
+     */
+    default void scheduleFreeStorage(int storageFileId) throws IOException {
+        freeStorage(storageFileId);
+    }
+
+    /**
+     * Wait until blocks scheduled with {@link #scheduleFreeStorage(int)} are freed.
+     * Default implementation frees blocks immediately, so it returns at once.
+     *
+     * @throws IOException I/O exception happened while freeing blocks or waiting was interrupted
+     */
+    default void awaitPendingReclamation() throws IOException {
+    }
+
+    /**
+     * Force all data written to StorageFiles so far to underlying storage device.
+     *
+     * @throws IOException I/O exception happened while forcing data
+     */
+    void sync() throws IOException;
+
     /**
      * Close all StorageFiles, underlying block storage and this manager.
      */
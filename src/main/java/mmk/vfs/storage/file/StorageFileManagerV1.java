@@ -14,35 +14,85 @@ import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Storage File Manager V1.
  * Uses one Storage Block as Block Allocation Table for Groups of 'BlockSize / 4' Storage Blocks.
  * First block in each group is BAT, so it is not used for actual storage and must not be ever allocated or interacted directly.
+ * <p>
+ * There is no manager-wide lock: BAT entries are written under write claim of BAT block of their group, free block map
+ * is locked only while blocks are picked, so allocations in different groups and I/O of different files run in parallel.
  */
 public class StorageFileManagerV1 implements StorageFileManager {
     private static final int BLOCK_ID_EMPTY_BLOCK = 0;
     private static final int BLOCK_ID_LAST_BLOCK = -1;
     private static final int MAXIMUM_BLOCKS = Integer.MAX_VALUE - 1;
     private static final boolean USE_ADDITIONAL_SAFETY_CHECK_WHEN_ACCESSING_STORAGE_FILES = false;
+    private static final int MAX_CACHED_CHAIN_TAILS = 4096;
+    // count of groups before and after group of preferred block, which are searched for empty blocks first
+    private static final int NEARBY_GROUP_DISTANCE = 8;
+    // entry of BAT block itself in first BAT, unused by blocks, holds first block of chains pending reclamation
+    private static final int PENDING_RECLAIM_ENTRY = 0;
+    private static final int RECLAIM_BATCH_BLOCKS = 1024;
+    private static final long RECLAIM_RETRY_DELAY_MS = 1000;
+    private static final int BAT_TABLES_PER_PAGE = 1024;
 
     private BlockStorageManager mBlockStorageManager;
     private int mBlocksPerGroup;
     private AccessProviderManager<Integer> mLockManager = new AccessProviderManager<>(ReadWriteAccessProvider::new);
     private volatile boolean mIsClosed = false;
-    private final Set<StorageFile> mOpenedFiles = new HashSet<>();
+    private final Set<StorageFile> mOpenedFiles = ConcurrentHashMap.newKeySet();
     private final InternalApi mInternalApi;
+    private final BlockAllocationMode mAllocationMode;
+    // free blocks of BAT groups scanned so far, guarded by itself
+    private final FreeBlockMap mFreeBlockMap;
+    // serializes loading of new groups into free block map, BAT is read without holding mFreeBlockMap
+    private final Object mGroupLoadLock = new Object();
+    // home groups of opened files and groups claimed by them in FILE_HOME_GROUPS mode, guarded by mFreeBlockMap
+    private final Map<Integer, HomeGroup> mHomeGroups = new HashMap<>();
+    private final BitSet mClaimedGroups = new BitSet();
+    // guards list of chains pending reclamation, reclaimer is started on first scheduled chain, it stops on failure
+    // and is started again by next scheduled chain
+    private final Object mReclaimLock = new Object();
+    private Thread mReclaimerThread = null;
+    private boolean mIsReclaiming = false;
+    private Exception mReclaimError = null;
+    // next block pointers of BAT groups in pages of BAT_TABLES_PER_PAGE groups, loaded on first access and updated
+    // after every BAT entry write; pages and tables are published with compare-and-set, so lookups take no lock
+    private final AtomicReferenceArray<AtomicReferenceArray<int[]>> mBatTables;
+    // block count and last block of recently used Storage Files, both maps are guarded by mChainTails
+    private final Map<Integer, ChainTail> mChainTailsByLastBlock = new HashMap<>();
+    private final Map<Integer, ChainTail> mChainTails = new ChainTailCache(mChainTailsByLastBlock);
 
     public StorageFileManagerV1(BlockStorageManager blockStorageManager) throws IOException {
+        this(blockStorageManager, BlockAllocationMode.SHARED);
+    }
+
+    public StorageFileManagerV1(BlockStorageManager blockStorageManager, BlockAllocationMode allocationMode) throws IOException {
         mBlockStorageManager = blockStorageManager;
+        mAllocationMode = allocationMode;
         int blockSize = blockStorageManager.getBlockSize();
         mBlocksPerGroup = blockSize / 4;
 
         mInternalApi = new InternalApi();
+        mFreeBlockMap = new FreeBlockMap(mBlocksPerGroup);
+        mBatTables = new AtomicReferenceArray<>(MAXIMUM_BLOCKS / mBlocksPerGroup / BAT_TABLES_PER_PAGE + 1);
 
         ensureRootDirPresence();
+        synchronized (mReclaimLock) {
+            // resume reclamation interrupted by closing of storage
+            if (getBatEntry(PENDING_RECLAIM_ENTRY) != BLOCK_ID_EMPTY_BLOCK) {
+                startReclaimer();
+            }
+        }
     }
 
     private int getStorageGroupIndex(int storageBlockIdNoBat) {
@@ -53,8 +103,8 @@ public class StorageFileManagerV1 implements StorageFileManager {
         return storageBlockIdNoBat - (getStorageGroupIndex(storageBlockIdNoBat) * mBlocksPerGroup);
     }
 
-    private int getBATBlockIndex(int storageBlockIdNoBat) {
-        return getStorageGroupIndex(storageBlockIdNoBat) * mBlocksPerGroup;
+    private int getBATBlockIndex(int groupIndex) {
+        return groupIndex * mBlocksPerGroup;
     }
 
     private int getStorageBlockIndexByIndex(int storageBlockIdNoBat) {
@@ -81,6 +131,7 @@ public class StorageFileManagerV1 implements StorageFileManager {
                 batStorageBlock.write(4 * inBatIndex, buffer.array(), 0, buffer.capacity());
             }
         }
+        updateBatTable(storageIndex, BLOCK_ID_LAST_BLOCK);
         try (StorageBlock storageBlock = getStorageBlock(storageIndex)) {
             storageBlock.claim(LockType.WRITE_LOCK);
             storageBlock.ensureCapacity();
@@ -93,7 +144,7 @@ public class StorageFileManagerV1 implements StorageFileManager {
     }
 
     @Override
-    public synchronized StorageFile getStorageFile(int storageFileId) throws IOException {
+    public StorageFile getStorageFile(int storageFileId) throws IOException {
         if (mIsClosed) throw new ObjectClosedException();
 
         int inBatIndex = getStorageInGroupIndex(storageFileId);
@@ -117,90 +168,355 @@ public class StorageFileManagerV1 implements StorageFileManager {
             }
         }
 
-        StorageFileImpl storageFile = new StorageFileImpl(mInternalApi, storageFileId);
+        return registerOpenedFile(new StorageFileImpl(mInternalApi, storageFileId));
+    }
+
+    private StorageFile registerOpenedFile(StorageFile storageFile) throws IOException {
+        if (mAllocationMode == BlockAllocationMode.FILE_HOME_GROUPS) {
+            synchronized (mFreeBlockMap) {
+                mHomeGroups.computeIfAbsent(storageFile.getStorageStartIdx(), storageFileId -> new HomeGroup()).mHandleCount++;
+            }
+        }
         mOpenedFiles.add(storageFile);
+        // manager could be closed after check, such handle would be left open
+        if (mIsClosed) {
+            storageFile.close();
+            throw new ObjectClosedException();
+        }
         return storageFile;
     }
 
-    private int findAndClaimEmptyBlock() throws IOException {
-        int checkBlockIdx = 0; // skip first BAT and root dir
+    private int findAndClaimEmptyBlock(HomeGroup homeGroup) throws IOException {
+        int[] emptyBlockIdx = new int[1];
+        reserveEmptyRun(0, 1, homeGroup, emptyBlockIdx, 0);
+        try {
+            writeBatEntries(emptyBlockIdx, new int[]{BLOCK_ID_LAST_BLOCK}, 1);
+        } catch (IOException | RuntimeException exception) {
+            releaseReservedBlocks(emptyBlockIdx, 1, exception);
+            throw exception;
+        }
+        return emptyBlockIdx[0];
+    }
 
-        ByteBuffer buffer = ByteBuffer.allocate(4 * 64).order(ByteOrder.BIG_ENDIAN);
-        byte[] bufferArray = buffer.array();
+    /**
+     * Find run of empty blocks, reserve storage for it and mark it as used in free block map. BAT entries of blocks are
+     * left empty, they must be written by caller or blocks must be released.
+     * Empty blocks close to preferred one are taken first, so chains of growing files are not scattered over
+     * container. Other blocks are searched from the start of container.
+     *
+     * @param preferredBlockId block to take if it is empty, ex. block following last block of file, 0 if there is no
+     *                         preferred block
+     * @param runLength        maximum count of blocks to reserve, adjacent empty blocks are preferred
+     * @param homeGroup        home group of file in FILE_HOME_GROUPS mode, null in SHARED mode
+     * @param blockIds         array to put indexes of reserved blocks to
+     * @param offset           position in array of first reserved block
+     * @return count of reserved blocks, at least one, run never spans several groups
+     * @throws IOException I/O exception happened while reserving blocks
+     */
+    private int reserveEmptyRun(int preferredBlockId, int runLength, HomeGroup homeGroup, int[] blockIds, int offset) throws IOException {
+        int emptyBlockIdx = -1;
+        int reservedCount = 0;
+        boolean useHomeGroup = homeGroup != null;
+        while (reservedCount == 0) {
+            int groupCount;
+            synchronized (mFreeBlockMap) {
+                emptyBlockIdx = findEmptyBlock(preferredBlockId, runLength, useHomeGroup ? homeGroup : null);
+                if (emptyBlockIdx > 0) {
+                    // run is taken before it is checked and reserved, so no other allocation picks it meanwhile
+                    reservedCount = mFreeBlockMap.claimRun(emptyBlockIdx, runLength);
+                }
+                groupCount = mFreeBlockMap.getGroupCount();
+            }
+            if (reservedCount == 0) {
+                try {
+                    loadNextGroup(groupCount);
+                } catch (OutOfStorage exception) {
+                    if (!useHomeGroup) {
+                        throw exception;
+                    }
+                    // there are no groups left to claim, blocks are searched in shared way
+                    useHomeGroup = false;
+                }
+            }
+        }
 
-        do {
-            try (StorageBlock batStorageBlock = getBATStorageBlock(getStorageGroupIndex(checkBlockIdx))) {
-                batStorageBlock.claim(LockType.WRITE_LOCK);
-                batStorageBlock.ensureCapacity();
+        boolean success = false;
+        try {
+            int[] batTable = getBatTable(getStorageGroupIndex(emptyBlockIdx));
+            for (int i = 0; i < reservedCount; ++i) {
+                if (batTable[getStorageInGroupIndex(emptyBlockIdx + i)] != BLOCK_ID_EMPTY_BLOCK) {
+                    throw new StorageCorrupted("Free block map is out of sync with BAT");
+                }
+                blockIds[offset + i] = emptyBlockIdx + i;
+            }
+            // last block first, so file-based storage is extended once for whole run, calls for other blocks return
+            // at once unless storage extends several files (stripes) separately
+            for (int i = reservedCount - 1; i >= 0; --i) {
+                try (StorageBlock storageBlock = getStorageBlock(emptyBlockIdx + i)) {
+                    storageBlock.ensureCapacity();
+                }
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                synchronized (mFreeBlockMap) {
+                    for (int i = 0; i < reservedCount; ++i) {
+                        mFreeBlockMap.setFree(emptyBlockIdx + i, true);
+                    }
+                }
+            }
+        }
+        return reservedCount;
+    }
 
-                int bufferOffset = 0;
-                int bufferFill;
-                int readOffset = 0;
-                while (bufferOffset < buffer.capacity()) {
-                    int read = batStorageBlock.read(readOffset, bufferArray, bufferOffset, buffer.capacity() - bufferOffset);
-                    if (read == -1) break;
-                    bufferFill = bufferOffset + read;
-
-                    int parseOffset = 0;
-                    for (; bufferFill - parseOffset >= 4; ++checkBlockIdx, parseOffset += 4) {
-                        if (checkBlockIdx >= MAXIMUM_BLOCKS) break;
-
-                        int nextBlockInfo = buffer.getInt(parseOffset);
-
-                        if (getStorageInGroupIndex(checkBlockIdx) == 0) {
-                            continue;
-                        }
-
-                        if (nextBlockInfo == BLOCK_ID_EMPTY_BLOCK) {
-                            // reserve space for newly found empty block
-                            try (StorageBlock storageBlock = getStorageBlock(checkBlockIdx)) {
-                                storageBlock.ensureCapacity();
-                            }
-
-                            // mark block as used (last block of some Storage File)
-                            // this is done after reservation in case of failed reservation.
-                            buffer.putInt(parseOffset, BLOCK_ID_LAST_BLOCK);
-                            batStorageBlock.write(readOffset + parseOffset, bufferArray, parseOffset, 4);
-
-                            return checkBlockIdx;
-                        }
+    /**
+     * Find empty block in known groups, see {@link #reserveEmptyRun} for order of search.
+     *
+     * @param homeGroup home group of file, null if blocks are searched in shared way
+     * @return index of empty block or -1 if next group has to be loaded
+     */
+    // called with mFreeBlockMap locked
+    private int findEmptyBlock(int preferredBlockId, int runLength, HomeGroup homeGroup) {
+        int emptyBlockIdx = preferredBlockId;
+        if (homeGroup != null) {
+            int homeGroupBlockIdx = findHomeGroupBlock(homeGroup, preferredBlockId, runLength);
+            if (homeGroupBlockIdx < 0) {
+                return -1;
+            }
+            emptyBlockIdx = homeGroupBlockIdx;
+        }
+        if (emptyBlockIdx > 0 && emptyBlockIdx < MAXIMUM_BLOCKS && !mFreeBlockMap.isFree(emptyBlockIdx)) {
+            // same group as preferred block, then closest groups
+            emptyBlockIdx = mFreeBlockMap.findFreeRunNear(emptyBlockIdx, Math.min(runLength, mBlocksPerGroup - 1), NEARBY_GROUP_DISTANCE);
+        }
+        if (emptyBlockIdx <= 0 || emptyBlockIdx >= MAXIMUM_BLOCKS || !mFreeBlockMap.isFree(emptyBlockIdx)) {
+            emptyBlockIdx = mFreeBlockMap.findFreeRun(Math.min(runLength, mBlocksPerGroup - 1));
+            if (emptyBlockIdx < 0) {
+                // known groups are fragmented, they are still filled before container grows
+                emptyBlockIdx = mFreeBlockMap.findFreeBlock();
+            }
+        }
+        return emptyBlockIdx;
+    }
+
+    /**
+     * Find empty block in home group of file, claiming another home group if current one is full.
+     *
+     * @return index of empty block or -1 if all known groups with free blocks are claimed and next group has to be
+     * loaded
+     */
+    // called with mFreeBlockMap locked
+    private int findHomeGroupBlock(HomeGroup homeGroup, int preferredBlockId, int runLength) {
+        int groupIndex = homeGroup.mGroupIndex;
+        if (groupIndex < 0 || mFreeBlockMap.getGroupFreeBlockCount(groupIndex) == 0) {
+            groupIndex = claimHomeGroup(homeGroup, preferredBlockId);
+            if (groupIndex < 0) {
+                return -1;
+            }
+        }
+        if (preferredBlockId <= 0 || getStorageGroupIndex(preferredBlockId) != groupIndex) {
+            return mFreeBlockMap.findFreeRunNear(getBATBlockIndex(groupIndex), Math.min(runLength, mBlocksPerGroup - 1), 0);
+        }
+        if (mFreeBlockMap.isFree(preferredBlockId)) {
+            return preferredBlockId;
+        }
+        return mFreeBlockMap.findFreeRunNear(preferredBlockId, Math.min(runLength, mBlocksPerGroup - 1), 0);
+    }
+
+    /**
+     * Claim group with free blocks, which is not home group of other opened file. Group of preferred block is taken
+     * if possible, otherwise groups following previous home group, then groups from the start of container, and
+     * container grows only if all groups with free blocks are claimed.
+     *
+     * @return index of claimed group or -1 if there is no group to claim among known groups
+     */
+    // called with mFreeBlockMap locked
+    private int claimHomeGroup(HomeGroup homeGroup, int preferredBlockId) {
+        int groupIndex = -1;
+        int preferredGroupIndex = getStorageGroupIndex(preferredBlockId);
+        if (preferredBlockId > 0 && !mClaimedGroups.get(preferredGroupIndex) && mFreeBlockMap.getGroupFreeBlockCount(preferredGroupIndex) > 0) {
+            groupIndex = preferredGroupIndex;
+        }
+        if (groupIndex < 0) {
+            groupIndex = findUnclaimedGroup(homeGroup.mGroupIndex + 1);
+        }
+        if (groupIndex < 0 && homeGroup.mGroupIndex >= 0) {
+            groupIndex = findUnclaimedGroup(0);
+        }
+        if (groupIndex < 0) {
+            return -1;
+        }
+
+        releaseHomeGroup(homeGroup);
+        homeGroup.mGroupIndex = groupIndex;
+        mClaimedGroups.set(groupIndex);
+        return groupIndex;
+    }
+
+    // called with mFreeBlockMap locked
+    private int findUnclaimedGroup(int fromGroupIndex) {
+        for (int groupIndex = mFreeBlockMap.findGroupWithFreeBlocks(fromGroupIndex); groupIndex >= 0;
+             groupIndex = mFreeBlockMap.findGroupWithFreeBlocks(groupIndex + 1)) {
+            if (!mClaimedGroups.get(groupIndex)) {
+                return groupIndex;
+            }
+        }
+        return -1;
+    }
+
+    // called with mFreeBlockMap locked
+    private void releaseHomeGroup(HomeGroup homeGroup) {
+        if (homeGroup.mGroupIndex >= 0) {
+            mClaimedGroups.clear(homeGroup.mGroupIndex);
+            homeGroup.mGroupIndex = -1;
+        }
+    }
+
+    private void setBlockFree(int storageBlockIdNoBat) {
+        synchronized (mFreeBlockMap) {
+            mFreeBlockMap.setFree(storageBlockIdNoBat, true);
+        }
+    }
+
+    /**
+     * Return reserved blocks to free block map after failed allocation. Blocks, which can't be reset in BAT, stay
+     * marked as used.
+     */
+    private void releaseReservedBlocks(int[] blockIds, int blockCount, Exception cause) {
+        try {
+            writeBatEntries(blockIds, new int[blockCount], blockCount);
+            for (int i = 0; i < blockCount; ++i) {
+                setBlockFree(blockIds[i]);
+            }
+        } catch (IOException | RuntimeException exception) {
+            cause.addSuppressed(exception);
+        }
+    }
+
+    /**
+     * Write BAT entries of several blocks. Entries are grouped by BAT, each BAT is claimed once and each run of
+     * adjacent entries is written at once.
+     *
+     * @param blockIds     blocks, which entries are written
+     * @param nextBlockIds values of entries
+     * @param count        count of entries to write
+     * @throws IOException I/O exception happened during write
+     */
+    private void writeBatEntries(int[] blockIds, int[] nextBlockIds, int count) throws IOException {
+        // block id in high half, index of entry in low half
+        long[] order = new long[count];
+        for (int i = 0; i < count; ++i) {
+            order[i] = ((long) blockIds[i] << 32) | i;
+        }
+        Arrays.sort(order);
+
+        int position = 0;
+        while (position < count) {
+            int groupIndex = getStorageGroupIndex((int) (order[position] >>> 32));
+            try (StorageBlock batStorageBlock = getBATStorageBlock(groupIndex)) {
+                batStorageBlock.claim(LockType.WRITE_LOCK);
+                while (position < count && getStorageGroupIndex((int) (order[position] >>> 32)) == groupIndex) {
+                    int runStart = position;
+                    while (position + 1 < count && (order[position + 1] >>> 32) == (order[position] >>> 32) + 1) {
+                        ++position;
                     }
+                    ++position;
 
-                    int remainder = bufferFill - parseOffset;
-                    if (remainder > 0 && parseOffset > 0) {
-                        System.arraycopy(bufferArray, parseOffset, bufferArray, 0, remainder);
+                    ByteBuffer buffer = ByteBuffer.allocate(4 * (position - runStart)).order(ByteOrder.BIG_ENDIAN);
+                    for (int i = runStart; i < position; ++i) {
+                        buffer.putInt(nextBlockIds[(int) order[i]]);
                     }
-                    bufferOffset = remainder;
+                    int inBatIndex = getStorageInGroupIndex((int) (order[runStart] >>> 32));
+                    batStorageBlock.write(4 * inBatIndex, buffer.array(), 0, buffer.capacity());
+                }
+            }
+        }
 
-                    if (checkBlockIdx >= MAXIMUM_BLOCKS) break;
-                    readOffset += read;
+        for (int i = 0; i < count; ++i) {
+            updateBatTable(blockIds[i], nextBlockIds[i]);
+        }
+    }
+
+    /**
+     * Read BAT of first group, which is not known to free block map yet, and add its free blocks to map.
+     * Groups are loaded only when all previous groups are full, so each BAT is scanned at most once. BAT is read and
+     * storage is extended without holding free block map, so allocations in known groups do not wait for this I/O.
+     *
+     * @param groupIndex index of group to load, nothing is done if it was loaded meanwhile by another allocation
+     * @throws IOException I/O exception happened while reading BAT or container has maximum count of groups already
+     */
+    private void loadNextGroup(int groupIndex) throws IOException {
+        synchronized (mGroupLoadLock) {
+            synchronized (mFreeBlockMap) {
+                if (mFreeBlockMap.getGroupCount() != groupIndex) {
+                    return;
                 }
             }
-        } while (checkBlockIdx < MAXIMUM_BLOCKS);
+            long firstBlockIdx = (long) groupIndex * mBlocksPerGroup;
+            if (firstBlockIdx + 1 >= MAXIMUM_BLOCKS) {
+                throw new OutOfStorage("Out Of Storage Blocks");
+            }
 
-        throw new OutOfStorage("Out Of Storage Blocks");
+            try (StorageBlock batStorageBlock = getBATStorageBlock(groupIndex)) {
+                batStorageBlock.claim(LockType.WRITE_LOCK);
+                batStorageBlock.ensureCapacity();
+            }
+            int[] batTable = getBatTable(groupIndex);
+
+            synchronized (mFreeBlockMap) {
+                // entries freed before group is added are already in table, later ones update map directly
+                mFreeBlockMap.addGroup();
+                int groupLength = (int) Math.min(mBlocksPerGroup, MAXIMUM_BLOCKS - firstBlockIdx);
+                for (int inGroupIndex = 1; inGroupIndex < groupLength; ++inGroupIndex) {
+                    if (batTable[inGroupIndex] == BLOCK_ID_EMPTY_BLOCK) {
+                        mFreeBlockMap.setFree((int) firstBlockIdx + inGroupIndex, true);
+                    }
+                }
+            }
+        }
     }
 
     @Override
-    public synchronized StorageFile createNewFile() throws IOException {
+    public StorageFile createNewFile() throws IOException {
         if (mIsClosed) throw new ObjectClosedException();
 
-        int emptyBlockIdx = findAndClaimEmptyBlock();
-        StorageFileImpl storageFile = new StorageFileImpl(mInternalApi, emptyBlockIdx);
-        mOpenedFiles.add(storageFile);
-        return storageFile;
+        HomeGroup homeGroup = mAllocationMode == BlockAllocationMode.FILE_HOME_GROUPS ? new HomeGroup() : null;
+        int emptyBlockIdx;
+        try {
+            emptyBlockIdx = findAndClaimEmptyBlock(homeGroup);
+        } catch (IOException | RuntimeException exception) {
+            if (homeGroup != null) {
+                synchronized (mFreeBlockMap) {
+                    releaseHomeGroup(homeGroup);
+                }
+            }
+            throw exception;
+        }
+        if (homeGroup != null) {
+            synchronized (mFreeBlockMap) {
+                mHomeGroups.put(emptyBlockIdx, homeGroup);
+            }
+        }
+        cacheChainTail(emptyBlockIdx, new ChainTail(1, emptyBlockIdx));
+        return registerOpenedFile(new StorageFileImpl(mInternalApi, emptyBlockIdx));
     }
 
-    private synchronized void onFileClosed(StorageFile file) {
-        mOpenedFiles.remove(file);
+    private void onFileClosed(StorageFile file) {
+        if (mOpenedFiles.remove(file) && mAllocationMode == BlockAllocationMode.FILE_HOME_GROUPS) {
+            synchronized (mFreeBlockMap) {
+                HomeGroup homeGroup = mHomeGroups.get(file.getStorageStartIdx());
+                if (homeGroup != null && --homeGroup.mHandleCount == 0) {
+                    mHomeGroups.remove(file.getStorageStartIdx());
+                    releaseHomeGroup(homeGroup);
+                }
+            }
+        }
     }
 
     @Override
-    public synchronized void freeStorage(int storageFileId) throws IOException {
+    public void freeStorage(int storageFileId) throws IOException {
         if (mIsClosed) throw new ObjectClosedException();
 
-        ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
-
         AccessProvider locker = mLockManager.getLockerForPath(storageFileId);
         locker.addReference();
         Lock lock = null;
@@ -212,39 +528,65 @@ public class StorageFileManagerV1 implements StorageFileManager {
                 throw new IllegalStateException("Freeing opened file");
             }
 
+            synchronized (mChainTails) {
+                ChainTail chainTail = mChainTails.remove(storageFileId);
+                if (chainTail != null) {
+                    mChainTailsByLastBlock.remove(chainTail.mLastBlockId);
+                }
+            }
+
+            int[] blockIds = new int[RECLAIM_BATCH_BLOCKS];
             int storagePointer = storageFileId;
-            while (true) {
-                int batIndex = getStorageGroupIndex(storagePointer);
-                int inBatIndex = getStorageInGroupIndex(storagePointer);
-                if (inBatIndex == 0) {
-                    throw new StorageCorrupted("Trying to access BAT sections with method for accessing Data sections");
+            while (storagePointer != BLOCK_ID_LAST_BLOCK) {
+                int blockCount = collectChainBlocks(storagePointer, blockIds);
+                if (blockCount == 0) {
+                    break;
                 }
+                storagePointer = getBatEntry(blockIds[blockCount - 1]);
+                freeBlocks(blockIds, blockCount);
+            }
+        } catch (InterruptedException | InterruptedIOException exception) {
+            throw new InterruptedIOException("File deletion interrupted, VFS corrupted (Can't free used storage blocks now)");
+        } finally {
+            if (lock != null) lock.release();
+            locker.removeReference();
+        }
+    }
 
-                int nextBlockId;
-                try (StorageBlock storageBlock = getBATStorageBlock(batIndex)) {
-                    storageBlock.claim(LockType.WRITE_LOCK);
-                    try {
-                        storageBlock.readFully(4 * inBatIndex, buffer.array(), 0, buffer.capacity());
-                        buffer.position(0);
+    /**
+     * Put chain of StorageFile to the head of list of chains pending reclamation, blocks are freed by background
+     * reclaimer. Contents of deleted file are not needed anymore, so first bytes of first block of each chain hold
+     * first block of next chain in list, and first block of list is stored in entry of BAT block of first group, so
+     * pending chains survive reopening of storage and scheduling does not depend on length of chain.
+     * Chain is linked before it becomes head of list, so interrupted operation may only leak its blocks.
+     */
+    @Override
+    public void scheduleFreeStorage(int storageFileId) throws IOException {
+        if (mIsClosed) throw new ObjectClosedException();
+
+        AccessProvider locker = mLockManager.getLockerForPath(storageFileId);
+        locker.addReference();
+        Lock lock = null;
 
-                        int nextBlockIdLookup = buffer.getInt();
-                        if (nextBlockIdLookup == BLOCK_ID_EMPTY_BLOCK) {
-                            break;
-                        }
+        try {
+            lock = locker.claimWrite();
 
-                        nextBlockId = nextBlockIdLookup;
+            if (lock == null) {
+                throw new IllegalStateException("Freeing opened file");
+            }
 
-                        buffer.putInt(0, 0);
-                        storageBlock.write(4 * inBatIndex, buffer.array(), 0, buffer.capacity());
-                    } finally {
-                        storageBlock.release();
-                    }
+            synchronized (mChainTails) {
+                ChainTail chainTail = mChainTails.remove(storageFileId);
+                if (chainTail != null) {
+                    mChainTailsByLastBlock.remove(chainTail.mLastBlockId);
                 }
+            }
 
-                if (nextBlockId == BLOCK_ID_LAST_BLOCK) {
-                    break;
-                }
-                storagePointer = nextBlockId;
+            synchronized (mReclaimLock) {
+                writeNextPendingChain(storageFileId, getBatEntry(PENDING_RECLAIM_ENTRY));
+                writeBatEntries(new int[]{PENDING_RECLAIM_ENTRY}, new int[]{storageFileId}, 1);
+                startReclaimer();
+                mReclaimLock.notifyAll();
             }
         } catch (InterruptedException | InterruptedIOException exception) {
             throw new InterruptedIOException("File deletion interrupted, VFS corrupted (Can't free used storage blocks now)");
@@ -254,23 +596,243 @@ public class StorageFileManagerV1 implements StorageFileManager {
         }
     }
 
+    /**
+     * Wait until background reclaimer frees all chains scheduled for reclamation.
+     *
+     * @throws IOException I/O exception happened while reading BAT, waiting was interrupted or reclaimer stopped
+     *                     because of failure, chains stay pending until next chain is scheduled or storage is reopened
+     */
     @Override
-    public void close() {
-        synchronized (this) {
-            mIsClosed = true;
+    public void awaitPendingReclamation() throws IOException {
+        synchronized (mReclaimLock) {
+            while (!mIsClosed && mReclaimError == null
+                   && (mIsReclaiming || getBatEntry(PENDING_RECLAIM_ENTRY) != BLOCK_ID_EMPTY_BLOCK)) {
+                try {
+                    mReclaimLock.wait(RECLAIM_RETRY_DELAY_MS);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Waiting for reclamation interrupted");
+                }
+            }
+            if (mReclaimError != null) {
+                throw new IOException("Reclamation of deleted files failed", mReclaimError);
+            }
+        }
+    }
+
+    // called with mReclaimLock locked
+    private void startReclaimer() {
+        if (mReclaimerThread == null) {
+            mReclaimError = null;
+            mReclaimerThread = new Thread(this::runReclaimer, "VFS reclaimer");
+            mReclaimerThread.setDaemon(true);
+            mReclaimerThread.start();
+        }
+    }
+
+    /**
+     * Reclaim chains from the head of pending list. Only the head is read and replaced under mReclaimLock, BAT of
+     * chain is read and written without it, so scheduling of deleted files does not wait for this I/O. Chains scheduled
+     * meanwhile are put before chain being reclaimed, so it is unlinked from list only if it is still the head,
+     * otherwise it stays in list with its first block only and is unlinked once chains before it are reclaimed.
+     */
+    private void runReclaimer() {
+        int[] blockIds = new int[RECLAIM_BATCH_BLOCKS];
+        while (true) {
+            try {
+                int pendingHead;
+                synchronized (mReclaimLock) {
+                    pendingHead = getBatEntry(PENDING_RECLAIM_ENTRY);
+                    while (!mIsClosed && pendingHead == BLOCK_ID_EMPTY_BLOCK) {
+                        mReclaimLock.wait();
+                        pendingHead = getBatEntry(PENDING_RECLAIM_ENTRY);
+                    }
+                    if (mIsClosed) {
+                        // rest of list is reclaimed after storage is opened again
+                        return;
+                    }
+                    mIsReclaiming = true;
+                }
 
-            for (StorageFile storageFile : new ArrayList<>(mOpenedFiles)) {
                 try {
-                    storageFile.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    reclaimPendingHead(pendingHead, blockIds);
+                } finally {
+                    synchronized (mReclaimLock) {
+                        mIsReclaiming = false;
+                        mReclaimLock.notifyAll();
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                // retrying would most likely fail the same way, so failure is reported once and surfaced by
+                // awaitPendingReclamation, pending chains are kept in BAT and retried when next chain is scheduled
+                synchronized (mReclaimLock) {
+                    if (!mIsClosed) {
+                        e.printStackTrace();
+                        mReclaimError = e;
+                    }
+                    mReclaimerThread = null;
+                    mReclaimLock.notifyAll();
                 }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Free one batch of blocks of chain, which was the head of pending list.
+     * Blocks are unlinked from list before they are freed, so interrupted reclamation can't free block twice; first
+     * block of chain keeps link to next chain, so it is freed last, after chain is unlinked from list.
+     *
+     * @param pendingHead first block of chain
+     * @param blockIds    array for blocks of batch
+     * @throws IOException I/O exception happened while reading or writing BAT
+     */
+    private void reclaimPendingHead(int pendingHead, int[] blockIds) throws IOException {
+        int secondBlockId = getBatEntry(pendingHead);
+        if (secondBlockId != BLOCK_ID_LAST_BLOCK && secondBlockId != BLOCK_ID_EMPTY_BLOCK) {
+            int blockCount = collectChainBlocks(secondBlockId, blockIds);
+            int nextBlockId = blockCount == 0 ? BLOCK_ID_LAST_BLOCK : getBatEntry(blockIds[blockCount - 1]);
+            writeBatEntries(new int[]{pendingHead}, new int[]{nextBlockId}, 1);
+            freeBlocks(blockIds, blockCount);
+            return;
+        }
+
+        // link of first block is written only when chain is scheduled, so it can be read without lock
+        int nextChainId = readNextPendingChain(pendingHead);
+        synchronized (mReclaimLock) {
+            if (getBatEntry(PENDING_RECLAIM_ENTRY) != pendingHead) {
+                return;
+            }
+            writeBatEntries(new int[]{PENDING_RECLAIM_ENTRY}, new int[]{nextChainId}, 1);
+        }
+        blockIds[0] = pendingHead;
+        freeBlocks(blockIds, 1);
+    }
+
+    /**
+     * Read first block of next chain pending reclamation, it is stored in first bytes of first block of chain.
+     *
+     * @param firstBlockId first block of chain in list
+     * @return first block of next chain or empty block id if this chain is the last one
+     * @throws IOException I/O exception happened while reading block
+     */
+    private int readNextPendingChain(int firstBlockId) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
+        try (StorageBlock storageBlock = getStorageBlock(firstBlockId)) {
+            storageBlock.claim(LockType.READ_LOCK);
+            storageBlock.readFully(0, buffer.array(), 0, buffer.capacity());
+        }
+        return buffer.getInt();
+    }
+
+    private void writeNextPendingChain(int firstBlockId, int nextChainId) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(nextChainId);
+        try (StorageBlock storageBlock = getStorageBlock(firstBlockId)) {
+            storageBlock.claim(LockType.WRITE_LOCK);
+            storageBlock.write(0, buffer.array(), 0, buffer.capacity());
+        }
+    }
+
+    /**
+     * Collect blocks of chain starting from provided block, stops at the end of chain or at empty block.
+     *
+     * @param firstBlockId first block of chain
+     * @param blockIds     array for collected blocks, its length limits count of collected blocks
+     * @return count of collected blocks
+     * @throws IOException I/O exception happened while reading BAT
+     */
+    private int collectChainBlocks(int firstBlockId, int[] blockIds) throws IOException {
+        int blockCount = 0;
+        int storagePointer = firstBlockId;
+        while (blockCount < blockIds.length) {
+            if (getStorageInGroupIndex(storagePointer) == 0) {
+                throw new StorageCorrupted("Trying to access BAT sections with method for accessing Data sections");
+            }
+            int nextBlockId = getBatEntry(storagePointer);
+            if (nextBlockId == BLOCK_ID_EMPTY_BLOCK) {
+                break;
+            }
+            blockIds[blockCount++] = storagePointer;
+            if (nextBlockId == BLOCK_ID_LAST_BLOCK) {
+                break;
+            }
+            storagePointer = nextBlockId;
+        }
+        return blockCount;
+    }
+
+    /**
+     * Mark blocks as empty in BAT, entries are written in batches per group, and return them to free block map.
+     */
+    private void freeBlocks(int[] blockIds, int blockCount) throws IOException {
+        writeBatEntries(blockIds, new int[blockCount], blockCount);
+        for (int i = 0; i < blockCount; ++i) {
+            setBlockFree(blockIds[i]);
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        if (mIsClosed) throw new ObjectClosedException();
+
+        mBlockStorageManager.sync();
+    }
+
+    @Override
+    public void close() {
+        Thread reclaimerThread;
+        synchronized (mReclaimLock) {
+            mIsClosed = true;
+            reclaimerThread = mReclaimerThread;
+            mReclaimLock.notifyAll();
+        }
+        if (reclaimerThread != null) {
+            try {
+                reclaimerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (StorageFile storageFile : new ArrayList<>(mOpenedFiles)) {
+            try {
+                storageFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
         mBlockStorageManager.close();
     }
 
     private int getCurrentCapacity(int storageFileId) throws IOException {
+        ChainTail chainTail = getChainTail(storageFileId);
+        synchronized (mChainTails) {
+            return chainTail.mBlockCount * mBlockStorageManager.getBlockSize();
+        }
+    }
+
+    private int getLastStorageBlockIndex(int storageFileId) throws IOException {
+        ChainTail chainTail = getChainTail(storageFileId);
+        synchronized (mChainTails) {
+            return chainTail.mLastBlockId;
+        }
+    }
+
+    /**
+     * Get block count and last block of Storage File, walking its chain only if they are not cached yet.
+     */
+    private ChainTail getChainTail(int storageFileId) throws IOException {
+        synchronized (mChainTails) {
+            ChainTail chainTail = mChainTails.get(storageFileId);
+            if (chainTail != null) {
+                return chainTail;
+            }
+        }
+
+        // chain is changed only under write lock of file, which is held by caller, so it can be walked unlocked
+
         int storagePointer = storageFileId;
         int lengthInBlocks = 0;
         while (true) {
@@ -283,7 +845,41 @@ public class StorageFileManagerV1 implements StorageFileManager {
             storagePointer = nextBlockId;
         }
 
-        return lengthInBlocks * mBlockStorageManager.getBlockSize();
+        ChainTail chainTail = new ChainTail(lengthInBlocks, storagePointer);
+        cacheChainTail(storageFileId, chainTail);
+        return chainTail;
+    }
+
+    /**
+     * Get count of fragments of StorageFile. Fragment is run of adjacent Storage Blocks, which can be transferred as
+     * single run, so contiguous file has single fragment for each BAT group it spans.
+     *
+     * @param storageFileId index of StorageFile
+     * @return count of fragments in chain of StorageFile
+     * @throws IOException I/O exception happened while reading BAT
+     */
+    public int getFragmentCount(int storageFileId) throws IOException {
+        if (mIsClosed) throw new ObjectClosedException();
+
+        int fragmentCount = 1;
+        int storagePointer = storageFileId;
+        while (true) {
+            int nextBlockId = getNextStorageBlockIndex(storagePointer);
+            if (nextBlockId == BLOCK_ID_LAST_BLOCK) {
+                return fragmentCount;
+            }
+            if (nextBlockId != storagePointer + 1) {
+                ++fragmentCount;
+            }
+            storagePointer = nextBlockId;
+        }
+    }
+
+    private void cacheChainTail(int storageFileId, ChainTail chainTail) {
+        synchronized (mChainTails) {
+            mChainTails.put(storageFileId, chainTail);
+            mChainTailsByLastBlock.put(chainTail.mLastBlockId, chainTail);
+        }
     }
 
     private StorageBlock getBATStorageBlock(int batIndex) throws IOException {
@@ -297,25 +893,101 @@ public class StorageFileManagerV1 implements StorageFileManager {
         return mBlockStorageManager.getStorageBlock(getStorageBlockIndexByIndex(storageIdNoBat));
     }
 
-    private int getNextStorageBlockIndex(int storageBlockIdNoBat) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
+    private int readStorageBlocks(int firstStorageIdNoBat, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+        int firstInGroupIndex = getStorageInGroupIndex(firstStorageIdNoBat);
+        if (firstInGroupIndex == 0 || firstInGroupIndex + blockCount > mBlocksPerGroup) {
+            throw new StorageCorrupted("Trying to read BAT sections with method for reading Data sections");
+        }
+        return mBlockStorageManager.readBlocks(getStorageBlockIndexByIndex(firstStorageIdNoBat), blockCount, firstBlockOffset, buffer);
+    }
+
+    private void writeStorageBlocks(int firstStorageIdNoBat, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+        int firstInGroupIndex = getStorageInGroupIndex(firstStorageIdNoBat);
+        if (firstInGroupIndex == 0 || firstInGroupIndex + blockCount > mBlocksPerGroup) {
+            throw new StorageCorrupted("Trying to write BAT sections with method for writing Data sections");
+        }
+        mBlockStorageManager.writeBlocks(getStorageBlockIndexByIndex(firstStorageIdNoBat), blockCount, firstBlockOffset, buffer);
+    }
+
+    private boolean prefetchStorageBlocks(int firstStorageIdNoBat, int blockCount) {
+        return mBlockStorageManager.prefetch(getStorageBlockIndexByIndex(firstStorageIdNoBat), blockCount);
+    }
+
+    private int getBatEntry(int storageBlockIdNoBat) throws IOException {
+        return getBatTable(getStorageGroupIndex(storageBlockIdNoBat))[getStorageInGroupIndex(storageBlockIdNoBat)];
+    }
 
+    private int getNextStorageBlockIndex(int storageBlockIdNoBat) throws IOException {
         int batIndex = getStorageGroupIndex(storageBlockIdNoBat);
         int inBatIndex = getStorageInGroupIndex(storageBlockIdNoBat);
         if (inBatIndex == 0) {
             throw new StorageCorrupted("Trying to access BAT sections with method for accessing Data sections");
         }
 
+        // entries of chain are changed only under write lock of owning file, so its readers see up-to-date values
+        int nextBlockId = getBatTable(batIndex)[inBatIndex];
+        if (nextBlockId == BLOCK_ID_EMPTY_BLOCK) {
+            throw new StorageCorrupted("Trying to get next block from empty block");
+        }
+        return nextBlockId;
+    }
+
+    /**
+     * Get next block pointers of BAT group, reading its BAT on first access.
+     * Loaded tables are returned without locking, BAT is read only under read claim of its block.
+     *
+     * @param batIndex index of BAT group
+     * @return BAT entries of group, indexed by in-group index of block
+     * @throws IOException I/O exception happened while reading BAT
+     */
+    private int[] getBatTable(int batIndex) throws IOException {
+        AtomicReferenceArray<int[]> batTablesPage = getBatTablesPage(batIndex);
+        int inPageIndex = batIndex % BAT_TABLES_PER_PAGE;
+        int[] batTable = batTablesPage.get(inPageIndex);
+        if (batTable != null) {
+            return batTable;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(getBlockSize()).order(ByteOrder.BIG_ENDIAN);
         try (StorageBlock storageBlock = getBATStorageBlock(batIndex)) {
             storageBlock.claim(LockType.READ_LOCK);
-            storageBlock.readFully(4 * inBatIndex, buffer.array(), 0, buffer.capacity());
+            // part of BAT, which was never written, is empty
+            storageBlock.readFully(0, buffer.array(), 0, buffer.capacity());
+            batTable = new int[mBlocksPerGroup];
+            buffer.asIntBuffer().get(batTable);
+            // published before read claim is released, so no BAT entry is written between reading and publishing,
+            // table loaded by another thread meanwhile is used instead as it may have been updated already
+            if (!batTablesPage.compareAndSet(inPageIndex, null, batTable)) {
+                batTable = batTablesPage.get(inPageIndex);
+            }
         }
+        return batTable;
+    }
 
-        int nextBlockId = buffer.getInt(0);
-        if (nextBlockId == BLOCK_ID_EMPTY_BLOCK) {
-            throw new StorageCorrupted("Trying to get next block from empty block");
+    private AtomicReferenceArray<int[]> getBatTablesPage(int batIndex) {
+        int pageIndex = batIndex / BAT_TABLES_PER_PAGE;
+        AtomicReferenceArray<int[]> batTablesPage = mBatTables.get(pageIndex);
+        if (batTablesPage == null) {
+            mBatTables.compareAndSet(pageIndex, null, new AtomicReferenceArray<>(BAT_TABLES_PER_PAGE));
+            batTablesPage = mBatTables.get(pageIndex);
+        }
+        return batTablesPage;
+    }
+
+    /**
+     * Update cached BAT entry after it was written to storage. Must be called after BAT block lock is released,
+     * tables not loaded yet are left as is: they are going to read written value.
+     *
+     * @param storageBlockIdNoBat block, which BAT entry was written
+     * @param nextBlockId         written value
+     */
+    private void updateBatTable(int storageBlockIdNoBat, int nextBlockId) {
+        int batIndex = getStorageGroupIndex(storageBlockIdNoBat);
+        AtomicReferenceArray<int[]> batTablesPage = mBatTables.get(batIndex / BAT_TABLES_PER_PAGE);
+        int[] batTable = batTablesPage != null ? batTablesPage.get(batIndex % BAT_TABLES_PER_PAGE) : null;
+        if (batTable != null) {
+            batTable[getStorageInGroupIndex(storageBlockIdNoBat)] = nextBlockId;
         }
-        return nextBlockId;
     }
 
     private int getBlockSize() {
@@ -326,39 +998,56 @@ public class StorageFileManagerV1 implements StorageFileManager {
         return BLOCK_ID_LAST_BLOCK != storageBlockId;
     }
 
-    private synchronized int extendFileFromBlock(int storageBlockId) throws IOException {
+    private int[] extendFileFromBlock(int storageFileId, int storageBlockId, int blockCount) throws IOException {
         if (mIsClosed) throw new ObjectClosedException();
+        if (blockCount <= 0) {
+            throw new IllegalArgumentException("Count of blocks must be positive");
+        }
 
-        int newBlockId = findAndClaimEmptyBlock();
+        if (getNextStorageBlockIndex(storageBlockId) != BLOCK_ID_LAST_BLOCK) {
+            throw new StorageCorrupted("Trying to extend storage from non-last block");
+        }
 
-        ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
+        HomeGroup homeGroup = null;
+        if (mAllocationMode == BlockAllocationMode.FILE_HOME_GROUPS) {
+            synchronized (mFreeBlockMap) {
+                homeGroup = mHomeGroups.get(storageFileId);
+            }
+        }
 
-        boolean success = false;
+        int[] newBlockIds = new int[blockCount];
+        int reservedCount = 0;
+        try {
+            while (reservedCount < blockCount) {
+                int preferredBlockId = (reservedCount == 0 ? storageBlockId : newBlockIds[reservedCount - 1]) + 1;
+                reservedCount += reserveEmptyRun(preferredBlockId, blockCount - reservedCount, homeGroup, newBlockIds, reservedCount);
+            }
 
-        int batIndex = getStorageGroupIndex(storageBlockId);
-        int inBatIndex = getStorageInGroupIndex(storageBlockId);
-        if (inBatIndex == 0) {
-            throw new StorageCorrupted("Trying to access BAT sections with method for accessing Data sections");
+            // new blocks are chained first, so chain becomes reachable from file only when it is complete
+            int[] nextBlockIds = new int[blockCount];
+            for (int i = 0; i < blockCount - 1; ++i) {
+                nextBlockIds[i] = newBlockIds[i + 1];
+            }
+            nextBlockIds[blockCount - 1] = BLOCK_ID_LAST_BLOCK;
+            writeBatEntries(newBlockIds, nextBlockIds, blockCount);
+            writeBatEntries(new int[]{storageBlockId}, new int[]{newBlockIds[0]}, 1);
+        } catch (IOException | RuntimeException exception) {
+            releaseReservedBlocks(newBlockIds, reservedCount, exception);
+            if (exception instanceof InterruptedIOException) {
+                throw new InterruptedIOException("File extension interrupted, VFS corrupted (Allocated block is not referenced, can't be used nor reused)");
+            }
+            throw exception;
         }
 
-        try (StorageBlock storageBlock = getBATStorageBlock(batIndex)) {
-            storageBlock.claim(LockType.WRITE_LOCK);
-            storageBlock.readFully(4 * inBatIndex, buffer.array(), 0, buffer.capacity());
-            int currentNextBlockId = buffer.getInt(0);
-            if (currentNextBlockId != BLOCK_ID_LAST_BLOCK) {
-                throw new StorageCorrupted("Trying to extend storage from non-last block");
-            }
-            buffer.putInt(0, newBlockId);
-            storageBlock.write(4 * inBatIndex, buffer.array(), 0, buffer.capacity());
-            success = true;
-        } catch (InterruptedIOException exception) {
-            throw new InterruptedIOException("File extension interrupted, VFS corrupted (Allocated block is not referenced, can't be used nor reused)");
-        } finally {
-            if (!success) {
-                freeStorage(newBlockId);
+        synchronized (mChainTails) {
+            ChainTail chainTail = mChainTailsByLastBlock.remove(storageBlockId);
+            if (chainTail != null) {
+                chainTail.mBlockCount += blockCount;
+                chainTail.mLastBlockId = newBlockIds[blockCount - 1];
+                mChainTailsByLastBlock.put(chainTail.mLastBlockId, chainTail);
             }
         }
-        return newBlockId;
+        return newBlockIds;
     }
 
     private class InternalApi implements StorageFileImpl.StorageFileManagerInternalApi {
@@ -367,6 +1056,11 @@ public class StorageFileManagerV1 implements StorageFileManager {
             return StorageFileManagerV1.this.getCurrentCapacity(storageFileId);
         }
 
+        @Override
+        public int getLastStorageBlockIndex(int storageFileId) throws IOException {
+            return StorageFileManagerV1.this.getLastStorageBlockIndex(storageFileId);
+        }
+
         @Override
         public StorageBlock getStorageBlock(int storageBlockId) throws IOException {
             return StorageFileManagerV1.this.getStorageBlock(storageBlockId);
@@ -377,6 +1071,21 @@ public class StorageFileManagerV1 implements StorageFileManager {
             return StorageFileManagerV1.this.getNextStorageBlockIndex(storageBlockId);
         }
 
+        @Override
+        public int readStorageBlocks(int firstStorageBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+            return StorageFileManagerV1.this.readStorageBlocks(firstStorageBlockId, blockCount, firstBlockOffset, buffer);
+        }
+
+        @Override
+        public void writeStorageBlocks(int firstStorageBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+            StorageFileManagerV1.this.writeStorageBlocks(firstStorageBlockId, blockCount, firstBlockOffset, buffer);
+        }
+
+        @Override
+        public boolean prefetchStorageBlocks(int firstStorageBlockId, int blockCount) {
+            return StorageFileManagerV1.this.prefetchStorageBlocks(firstStorageBlockId, blockCount);
+        }
+
         @Override
         public int getBlockSize() {
             return StorageFileManagerV1.this.getBlockSize();
@@ -388,8 +1097,8 @@ public class StorageFileManagerV1 implements StorageFileManager {
         }
 
         @Override
-        public int extendFileFromBlock(int storageBlockId) throws IOException {
-            return StorageFileManagerV1.this.extendFileFromBlock(storageBlockId);
+        public int[] extendFileFromBlock(int storageFileId, int storageBlockId, int blockCount) throws IOException {
+            return StorageFileManagerV1.this.extendFileFromBlock(storageFileId, storageBlockId, blockCount);
         }
 
         @Override
@@ -402,4 +1111,47 @@ public class StorageFileManagerV1 implements StorageFileManager {
             StorageFileManagerV1.this.onFileClosed(file);
         }
     }
+
+    /**
+     * Group new blocks of opened file are allocated from in FILE_HOME_GROUPS mode, guarded by mFreeBlockMap.
+     */
+    private static class HomeGroup {
+        int mGroupIndex = -1;
+        // count of opened handles of file, group is released when last of them is closed
+        int mHandleCount = 0;
+    }
+
+    private static class ChainTail {
+        int mBlockCount;
+        int mLastBlockId;
+
+        ChainTail(int blockCount, int lastBlockId) {
+            mBlockCount = blockCount;
+            mLastBlockId = lastBlockId;
+        }
+    }
+
+    /**
+     * Chain tails of recently used Storage Files in access order, the least recently used one is evicted together with
+     * its entry in index by last block once MAX_CACHED_CHAIN_TAILS is exceeded.
+     */
+    private static final class ChainTailCache extends LinkedHashMap<Integer, ChainTail> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Map<Integer, ChainTail> mChainTailsByLastBlock;
+
+        ChainTailCache(Map<Integer, ChainTail> chainTailsByLastBlock) {
+            super(16, 0.75f, true);
+            mChainTailsByLastBlock = chainTailsByLastBlock;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, ChainTail> eldest) {
+            if (size() > MAX_CACHED_CHAIN_TAILS) {
+                mChainTailsByLastBlock.remove(eldest.getValue().mLastBlockId);
+                return true;
+            }
+            return false;
+        }
+    }
 }
@@ -0,0 +1,437 @@
+package mmk.vfs.storage.file;
+
+import mmk.vfs.exceptions.ObjectClosedException;
+import mmk.vfs.exceptions.OutOfStorage;
+import mmk.vfs.exceptions.StorageCorrupted;
+import mmk.vfs.locks.*;
+import mmk.vfs.storage.blocks.BlockStorageManager;
+import mmk.vfs.storage.blocks.StorageBlock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Storage File Manager V2.
+ * Uses one Storage Block as allocation bitmap for Groups of 'BlockSize * 8' Storage Blocks, bit is set for every used
+ * block. First block in each group is bitmap itself, so it is always marked as used.
+ * Each Storage File is described by chain of inode blocks, which list extents (runs of adjacent Storage Blocks) of file
+ * contents. Index of Storage File is index of its first inode block.
+ * Files are grown by contiguous runs, so large files consist of few extents: offset in file is resolved by binary
+ * search over extents and contiguous parts of file are read and written as single runs.
+ */
+public class StorageFileManagerV2 implements StorageFileManager {
+    private static final int INODE_HEADER_LENGTH = 8;
+    private static final int INODE_EXTENT_LENGTH = 8;
+    private static final int NO_NEXT_INODE_BLOCK = -1;
+    private static final int MAXIMUM_BLOCKS = Integer.MAX_VALUE - 1;
+
+    private final BlockStorageManager mBlockStorageManager;
+    private final int mBlockSize;
+    private final int mBlocksPerGroup;
+    private final int mExtentsPerInodeBlock;
+    private final AccessProviderManager<Integer> mLockManager = new AccessProviderManager<>(ReadWriteAccessProvider::new);
+    private volatile boolean mIsClosed = false;
+    private final Set<StorageFile> mOpenedFiles = new HashSet<>();
+    // extents of files, which have opened handles, by Storage File index
+    private final Map<Integer, FileExtents> mFileExtents = new HashMap<>();
+    // free blocks of groups scanned so far
+    private final FreeBlockMap mFreeBlockMap;
+
+    public StorageFileManagerV2(BlockStorageManager blockStorageManager) throws IOException {
+        mBlockStorageManager = blockStorageManager;
+        mBlockSize = blockStorageManager.getBlockSize();
+        mBlocksPerGroup = mBlockSize * 8;
+        mExtentsPerInodeBlock = (mBlockSize - INODE_HEADER_LENGTH) / INODE_EXTENT_LENGTH;
+        mFreeBlockMap = new FreeBlockMap(mBlocksPerGroup);
+
+        ensureRootDirPresence();
+    }
+
+    private void ensureRootDirPresence() throws IOException {
+        loadNextGroup();
+
+        int rootInodeBlockId = getRootDirectoryStorageIndex();
+        if (mFreeBlockMap.isFree(rootInodeBlockId)) {
+            claimRun(rootInodeBlockId, 1);
+            writeInodeBlock(new FileExtents(rootInodeBlockId), 0);
+        }
+    }
+
+    @Override
+    public int getRootDirectoryStorageIndex() {
+        return 1;
+    }
+
+    @Override
+    public synchronized StorageFile getStorageFile(int storageFileId) throws IOException {
+        if (mIsClosed) throw new ObjectClosedException();
+
+        FileExtents extents = mFileExtents.get(storageFileId);
+        if (extents == null) {
+            extents = readFileExtents(storageFileId);
+            mFileExtents.put(storageFileId, extents);
+        }
+        return openFile(extents);
+    }
+
+    @Override
+    public synchronized StorageFile createNewFile() throws IOException {
+        if (mIsClosed) throw new ObjectClosedException();
+
+        int inodeBlockId = findRunStart(1);
+        claimRun(inodeBlockId, 1);
+        FileExtents extents = new FileExtents(inodeBlockId);
+        try {
+            writeInodeBlock(extents, 0);
+        } catch (IOException | RuntimeException exception) {
+            freeRun(inodeBlockId, 1);
+            throw exception;
+        }
+        mFileExtents.put(inodeBlockId, extents);
+        return openFile(extents);
+    }
+
+    // called from synchronized code
+    private StorageFile openFile(FileExtents extents) {
+        ExtentStorageFile storageFile = new ExtentStorageFile(this, mBlockStorageManager, extents, mLockManager);
+        ++extents.mOpenHandleCount;
+        mOpenedFiles.add(storageFile);
+        return storageFile;
+    }
+
+    synchronized void onFileClosed(ExtentStorageFile file) {
+        if (mOpenedFiles.remove(file)) {
+            FileExtents extents = file.getExtents();
+            if (--extents.mOpenHandleCount == 0) {
+                mFileExtents.remove(extents.getStorageFileId());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void freeStorage(int storageFileId) throws IOException {
+        if (mIsClosed) throw new ObjectClosedException();
+
+        AccessProvider locker = mLockManager.getLockerForPath(storageFileId);
+        locker.addReference();
+        Lock lock = null;
+
+        try {
+            lock = locker.claimWrite();
+
+            if (lock == null) {
+                throw new IllegalStateException("Freeing opened file");
+            }
+
+            FileExtents extents = mFileExtents.get(storageFileId);
+            if (extents == null) {
+                extents = readFileExtents(storageFileId);
+            }
+            for (int i = 0; i < extents.getExtentCount(); ++i) {
+                freeRun(extents.getExtentStart(i), extents.getExtentLength(i));
+            }
+            for (int i = 0; i < extents.getInodeBlockCount(); ++i) {
+                freeRun(extents.getInodeBlock(i), 1);
+            }
+            mFileExtents.remove(storageFileId);
+        } catch (InterruptedException | InterruptedIOException exception) {
+            throw new InterruptedIOException("File deletion interrupted, VFS corrupted (Can't free used storage blocks now)");
+        } finally {
+            if (lock != null) lock.release();
+            locker.removeReference();
+        }
+    }
+
+    /**
+     * Grow file by contiguous runs of blocks until it has required capacity. Last extent is grown in place while blocks
+     * following it are free, otherwise new extent is started at first free run long enough for the rest of file.
+     *
+     * @param extents        extents of file
+     * @param requiredBlocks required count of blocks in file
+     * @throws IOException I/O exception happened during allocation
+     */
+    synchronized void extendFile(FileExtents extents, int requiredBlocks) throws IOException {
+        if (mIsClosed) throw new ObjectClosedException();
+
+        while (extents.getCapacityBlocks() < requiredBlocks) {
+            int missingBlocks = requiredBlocks - extents.getCapacityBlocks();
+            int extentCount = extents.getExtentCount();
+            int lastExtent = extentCount - 1;
+            int preferredStart = extentCount > 0
+                    ? extents.getExtentStart(lastExtent) + extents.getExtentLength(lastExtent)
+                    : extents.getStorageFileId() + 1;
+
+            if (extentCount > 0 && isFreeBlock(preferredStart)) {
+                int blockCount = claimRun(preferredStart, missingBlocks);
+                extents.growLastExtent(blockCount);
+                try {
+                    writeInodeBlock(extents, lastExtent / mExtentsPerInodeBlock);
+                } catch (IOException | RuntimeException exception) {
+                    extents.growLastExtent(-blockCount);
+                    freeRun(preferredStart, blockCount);
+                    throw exception;
+                }
+                continue;
+            }
+
+            if (extentCount == extents.getInodeBlockCount() * mExtentsPerInodeBlock) {
+                appendInodeBlock(extents);
+            }
+            int runStart = isFreeBlock(preferredStart) && mFreeBlockMap.getFreeRunLength(preferredStart, missingBlocks) == missingBlocks
+                    ? preferredStart
+                    : findRunStart(missingBlocks);
+            int blockCount = claimRun(runStart, missingBlocks);
+            extents.addExtent(runStart, blockCount);
+            try {
+                writeInodeBlock(extents, extentCount / mExtentsPerInodeBlock);
+            } catch (IOException | RuntimeException exception) {
+                extents.removeLastExtent();
+                freeRun(runStart, blockCount);
+                throw exception;
+            }
+        }
+    }
+
+    // called from synchronized code
+    private void appendInodeBlock(FileExtents extents) throws IOException {
+        int inodeBlockId = findRunStart(1);
+        claimRun(inodeBlockId, 1);
+        extents.addInodeBlock(inodeBlockId);
+        int inodeIndex = extents.getInodeBlockCount() - 1;
+        try {
+            // new block is written before it is linked from previous one
+            writeInodeBlock(extents, inodeIndex);
+            writeInodeBlock(extents, inodeIndex - 1);
+        } catch (IOException | RuntimeException exception) {
+            extents.removeLastInodeBlock();
+            freeRun(inodeBlockId, 1);
+            throw exception;
+        }
+    }
+
+    private boolean isFreeBlock(int blockId) {
+        return blockId > 0 && blockId < MAXIMUM_BLOCKS && mFreeBlockMap.isFree(blockId);
+    }
+
+    /**
+     * Find start of free run of blocks. Groups are scanned in order and next group is loaded only when scanned groups
+     * have no run long enough, so container grows instead of fragmenting files.
+     *
+     * @param blockCount required count of blocks in run
+     * @return first block of run long enough, or any free block if container can't grow anymore
+     * @throws IOException I/O exception happened while loading group
+     */
+    // called from synchronized code
+    private int findRunStart(int blockCount) throws IOException {
+        int runLength = Math.min(blockCount, mBlocksPerGroup - 1);
+        do {
+            int runStart = mFreeBlockMap.findFreeRun(runLength);
+            if (runStart >= 0) {
+                return runStart;
+            }
+        } while (loadNextGroup());
+
+        int blockId = mFreeBlockMap.findFreeBlock();
+        if (blockId < 0) {
+            throw new OutOfStorage("Out Of Storage Blocks");
+        }
+        return blockId;
+    }
+
+    /**
+     * Mark run of free blocks as used and reserve storage for them.
+     *
+     * @param firstBlockId first block of run, must be free
+     * @param maxCount     maximum count of blocks to claim
+     * @return count of claimed blocks, run ends at first used block
+     * @throws IOException I/O exception happened during reservation or bitmap update
+     */
+    // called from synchronized code
+    private int claimRun(int firstBlockId, int maxCount) throws IOException {
+        int blockCount = mFreeBlockMap.getFreeRunLength(firstBlockId, maxCount);
+        // last block first, so file-based storage is extended once for whole run
+        for (int i = blockCount - 1; i >= 0; --i) {
+            try (StorageBlock storageBlock = mBlockStorageManager.getStorageBlock(firstBlockId + i)) {
+                storageBlock.ensureCapacity();
+            }
+        }
+        for (int i = 0; i < blockCount; ++i) {
+            mFreeBlockMap.setFree(firstBlockId + i, false);
+        }
+        writeBitmap(firstBlockId, blockCount);
+        return blockCount;
+    }
+
+    // called from synchronized code
+    private void freeRun(int firstBlockId, int blockCount) throws IOException {
+        for (int i = 0; i < blockCount; ++i) {
+            mFreeBlockMap.setFree(firstBlockId + i, true);
+        }
+        writeBitmap(firstBlockId, blockCount);
+    }
+
+    /**
+     * Read bitmap of first group, which is not known to free block map yet, and add its free blocks to map.
+     * Bitmap of group, which was never used, is initialized.
+     *
+     * @return false if container has maximum count of groups already
+     * @throws IOException I/O exception happened while reading bitmap
+     */
+    // called from synchronized code
+    private boolean loadNextGroup() throws IOException {
+        int groupIndex = mFreeBlockMap.getGroupCount();
+        long bitmapBlockId = (long) groupIndex * mBlocksPerGroup;
+        if (bitmapBlockId + 1 >= MAXIMUM_BLOCKS) {
+            return false;
+        }
+
+        byte[] bitmap = new byte[mBlockSize];
+        try (StorageBlock bitmapBlock = mBlockStorageManager.getStorageBlock((int) bitmapBlockId)) {
+            bitmapBlock.claim(LockType.WRITE_LOCK);
+            bitmapBlock.ensureCapacity();
+            // part of bitmap, which was never written, is empty
+            bitmapBlock.readFully(0, bitmap, 0, bitmap.length);
+            if ((bitmap[0] & 1) == 0) {
+                bitmap[0] |= 1;
+                bitmapBlock.write(0, bitmap, 0, 1);
+            }
+        }
+
+        mFreeBlockMap.addGroup();
+        int groupLength = (int) Math.min(mBlocksPerGroup, MAXIMUM_BLOCKS - bitmapBlockId);
+        for (int inGroupIndex = 1; inGroupIndex < groupLength; ++inGroupIndex) {
+            if ((bitmap[inGroupIndex >>> 3] & (1 << (inGroupIndex & 7))) == 0) {
+                mFreeBlockMap.setFree((int) bitmapBlockId + inGroupIndex, true);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write bitmap bytes covering run of blocks from free block map. Run must not span several groups.
+     */
+    // called from synchronized code
+    private void writeBitmap(int firstBlockId, int blockCount) throws IOException {
+        if (blockCount == 0) {
+            return;
+        }
+        int groupIndex = firstBlockId / mBlocksPerGroup;
+        int groupStart = groupIndex * mBlocksPerGroup;
+        int firstByte = (firstBlockId - groupStart) >>> 3;
+        int lastByte = (firstBlockId + blockCount - 1 - groupStart) >>> 3;
+
+        byte[] bytes = new byte[lastByte - firstByte + 1];
+        for (int i = 0; i < bytes.length; ++i) {
+            int byteBlockId = groupStart + (firstByte + i) * 8;
+            for (int bit = 0; bit < 8; ++bit) {
+                // bitmap block and blocks beyond maximum are never free
+                if (!mFreeBlockMap.isFree(byteBlockId + bit)) {
+                    bytes[i] |= (byte) (1 << bit);
+                }
+            }
+        }
+
+        try (StorageBlock bitmapBlock = mBlockStorageManager.getStorageBlock(groupStart)) {
+            bitmapBlock.claim(LockType.WRITE_LOCK);
+            bitmapBlock.write(firstByte, bytes, 0, bytes.length);
+        }
+    }
+
+    // called from synchronized code
+    private FileExtents readFileExtents(int storageFileId) throws IOException {
+        FileExtents extents = null;
+        ByteBuffer buffer = ByteBuffer.allocate(mBlockSize).order(ByteOrder.BIG_ENDIAN);
+        int inodeBlockId = storageFileId;
+        while (true) {
+            if (inodeBlockId <= 0 || inodeBlockId % mBlocksPerGroup == 0) {
+                throw new StorageCorrupted("Trying to access allocation bitmap as inode of Storage File");
+            }
+            if (extents == null) {
+                extents = new FileExtents(inodeBlockId);
+            }
+            else {
+                extents.addInodeBlock(inodeBlockId);
+            }
+
+            try (StorageBlock inodeBlock = mBlockStorageManager.getStorageBlock(inodeBlockId)) {
+                inodeBlock.claim(LockType.READ_LOCK);
+                inodeBlock.readFully(0, buffer.array(), 0, buffer.capacity());
+            }
+
+            int extentCount = buffer.getInt(0);
+            if (extentCount < 0 || extentCount > mExtentsPerInodeBlock) {
+                throw new StorageCorrupted("Malformed inode of Storage File");
+            }
+            for (int i = 0; i < extentCount; ++i) {
+                int offset = INODE_HEADER_LENGTH + i * INODE_EXTENT_LENGTH;
+                int blockCount = buffer.getInt(offset + 4);
+                if (blockCount <= 0) {
+                    throw new StorageCorrupted("Malformed extent of Storage File");
+                }
+                extents.addExtent(buffer.getInt(offset), blockCount);
+            }
+
+            int nextInodeBlockId = buffer.getInt(4);
+            if (nextInodeBlockId == NO_NEXT_INODE_BLOCK) {
+                return extents;
+            }
+            inodeBlockId = nextInodeBlockId;
+        }
+    }
+
+    /**
+     * Write extents, which belong to inode block, with link to next inode block.
+     *
+     * @param extents    extents of file
+     * @param inodeIndex index of inode block in chain
+     * @throws IOException I/O exception happened during write
+     */
+    private void writeInodeBlock(FileExtents extents, int inodeIndex) throws IOException {
+        int firstExtent = inodeIndex * mExtentsPerInodeBlock;
+        int extentCount = Math.max(0, Math.min(mExtentsPerInodeBlock, extents.getExtentCount() - firstExtent));
+        int nextInodeBlockId = inodeIndex + 1 < extents.getInodeBlockCount() ? extents.getInodeBlock(inodeIndex + 1) : NO_NEXT_INODE_BLOCK;
+
+        ByteBuffer buffer = ByteBuffer.allocate(INODE_HEADER_LENGTH + extentCount * INODE_EXTENT_LENGTH).order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(extentCount);
+        buffer.putInt(nextInodeBlockId);
+        for (int i = firstExtent; i < firstExtent + extentCount; ++i) {
+            buffer.putInt(extents.getExtentStart(i));
+            buffer.putInt(extents.getExtentLength(i));
+        }
+
+        try (StorageBlock inodeBlock = mBlockStorageManager.getStorageBlock(extents.getInodeBlock(inodeIndex))) {
+            inodeBlock.claim(LockType.WRITE_LOCK);
+            inodeBlock.write(0, buffer.array(), 0, buffer.capacity());
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        if (mIsClosed) throw new ObjectClosedException();
+
+        mBlockStorageManager.sync();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            mIsClosed = true;
+
+            for (StorageFile storageFile : new ArrayList<>(mOpenedFiles)) {
+                try {
+                    storageFile.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        mBlockStorageManager.close();
+    }
+}
@@ -200,4 +200,60 @@ public class VFSSingleAccessTest {
             Assert.assertArrayEquals(expectation, readAssembler.toByteArray());
         }
     }
+
+    @Test
+    public void testLargeReadsOfInterleavedFiles() throws IOException {
+        testLargeReadsOfInterleavedFiles(BLOCK_SIZE);
+    }
+
+    @Test
+    public void testLargeReadsOfInterleavedFilesWithLimitedReads() throws IOException {
+        testLargeReadsOfInterleavedFiles(25);
+    }
+
+    public void testLargeReadsOfInterleavedFiles(int blockReadLimit) throws IOException {
+        int fileCount = 3;
+        int bytesToWrite = 40 * BLOCK_SIZE + 17;
+        byte[][] byteSequences = new byte[fileCount][bytesToWrite];
+        for (int f = 0; f < fileCount; ++f) {
+            for (int i = 0; i < bytesToWrite; ++i) {
+                byteSequences[f][i] = (byte) (i * (f + 3));
+            }
+        }
+
+        try (VirtualFileSystem vfs = createVirtualFileSystem(blockReadLimit)) {
+            VFSFile[] files = new VFSFile[fileCount];
+            for (int f = 0; f < fileCount; ++f) {
+                vfs.createFile("file" + f);
+                files[f] = vfs.openFile("file" + f, FileOpenMode.READ_WRITE);
+            }
+            // write files in chunks of several blocks in turn, so their block sequences interleave in storage
+            int chunk = 3 * BLOCK_SIZE;
+            for (int offset = 0; offset < bytesToWrite; offset += chunk) {
+                for (int f = 0; f < fileCount; ++f) {
+                    files[f].write(byteSequences[f], offset, Math.min(chunk, bytesToWrite - offset));
+                }
+            }
+            for (VFSFile file : files) {
+                file.close();
+            }
+
+            for (int f = 0; f < fileCount; ++f) {
+                try (VFSFile file = vfs.openFile("file" + f, FileOpenMode.READ)) {
+                    // start in the middle of block, so first run does not start at block boundary
+                    int startOffset = 100;
+                    file.seek(startOffset);
+                    byte[] readBuffer = new byte[bytesToWrite];
+                    int totalRead = startOffset;
+                    int read;
+                    while ((read = file.read(readBuffer, totalRead, bytesToWrite - totalRead)) > 0) {
+                        totalRead += read;
+                    }
+                    Assert.assertEquals("Read length must match write length", bytesToWrite, totalRead);
+                    System.arraycopy(byteSequences[f], 0, readBuffer, 0, startOffset);
+                    Assert.assertArrayEquals("File contents in read must match bytes in write", byteSequences[f], readBuffer);
+                }
+            }
+        }
+    }
 }
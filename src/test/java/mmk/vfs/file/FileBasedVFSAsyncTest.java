@@ -0,0 +1,167 @@
+package mmk.vfs.file;
+
+import mmk.vfs.FileOpenMode;
+import mmk.vfs.VFSFile;
+import mmk.vfs.VirtualFileSystem;
+import mmk.vfs.locks.LockType;
+import mmk.vfs.storage.blocks.AsyncFileBlockStorageManager;
+import mmk.vfs.storage.blocks.AsyncStorageBlock;
+import mmk.vfs.storage.blocks.DurabilityPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class FileBasedVFSAsyncTest {
+    private File getNewStorageFile() {
+        File mTestFile = new File("test.vfs");
+        if (mTestFile.exists()) {
+            Assert.assertTrue("Previous storage file must be file, not directory", mTestFile.isFile());
+            Assert.assertTrue("Previous storage file must be removed", mTestFile.delete());
+        }
+        return mTestFile;
+    }
+
+    private FileBasedVFSOptions getOptions(BlockStorageType blockStorageType) {
+        FileBasedVFSOptions options = new FileBasedVFSOptions();
+        options.setBlockStorageType(blockStorageType);
+        options.setMaxOperationsInFlight(4);
+        return options;
+    }
+
+    private void writeFile(VirtualFileSystem vfs, String filePath, byte[] contents) throws IOException {
+        vfs.createFile(filePath);
+        try (VFSFile file = vfs.openFile(filePath, FileOpenMode.READ_WRITE)) {
+            file.write(contents, 0, contents.length);
+        }
+    }
+
+    private byte[] readFile(VirtualFileSystem vfs, String filePath) throws IOException {
+        try (VFSFile file = vfs.openFile(filePath, FileOpenMode.READ)) {
+            byte[] readBuffer = new byte[1000];
+            ByteArrayOutputStream readAssembler = new ByteArrayOutputStream();
+            int read;
+            while ((read = file.read(readBuffer, 0, readBuffer.length)) != -1) {
+                readAssembler.write(readBuffer, 0, read);
+            }
+            return readAssembler.toByteArray();
+        }
+    }
+
+    private static byte[] getByteSequence(int length, int seed) {
+        byte[] byteSequence = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            byteSequence[i] = (byte) (i * seed);
+        }
+        return byteSequence;
+    }
+
+    @Test
+    public void testAsyncAndFileChannelStorageCompatibility() throws IOException {
+        File storageFile = getNewStorageFile();
+        byte[] firstSequence = getByteSequence(10000, 7);
+        byte[] secondSequence = getByteSequence(3000, 11);
+
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(storageFile, getOptions(BlockStorageType.ASYNC_FILE_CHANNEL))) {
+            writeFile(vfs, "first.ext", firstSequence);
+            Assert.assertArrayEquals(firstSequence, readFile(vfs, "first.ext"));
+        }
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(storageFile, getOptions(BlockStorageType.FILE_CHANNEL))) {
+            Assert.assertArrayEquals("File channel storage must read file written through async storage",
+                                     firstSequence, readFile(vfs, "first.ext"));
+            writeFile(vfs, "second.ext", secondSequence);
+        }
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(storageFile, getOptions(BlockStorageType.ASYNC_FILE_CHANNEL))) {
+            Assert.assertArrayEquals(firstSequence, readFile(vfs, "first.ext"));
+            Assert.assertArrayEquals(secondSequence, readFile(vfs, "second.ext"));
+        }
+    }
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        File storageFile = getNewStorageFile();
+        int fileCount = 8;
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(storageFile, getOptions(BlockStorageType.ASYNC_FILE_CHANNEL))) {
+            for (int f = 0; f < fileCount; ++f) {
+                writeFile(vfs, "file" + f, getByteSequence(5000, f + 3));
+            }
+
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int f = 0; f < fileCount; ++f) {
+                int fileIndex = f;
+                Thread thread = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 10; ++i) {
+                            Assert.assertArrayEquals(getByteSequence(5000, fileIndex + 3), readFile(vfs, "file" + fileIndex));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+        }
+    }
+
+    @Test
+    public void testSeveralBlockReadsInFlight() throws IOException {
+        File storageFile = getNewStorageFile();
+        int blockSize = 256;
+        int blockCount = 16;
+        AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(storageFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try (AsyncFileBlockStorageManager storageManager = new AsyncFileBlockStorageManager(fileChannel, 0, blockSize, 4, DurabilityPolicy.ON_CLOSE)) {
+            List<AsyncStorageBlock> blocks = new ArrayList<>();
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int blockId = 0; blockId < blockCount; ++blockId) {
+                AsyncStorageBlock block = storageManager.getAsyncStorageBlock(blockId);
+                block.claim(LockType.WRITE_LOCK);
+                block.ensureCapacity();
+                writes.add(block.writeAsync(0, ByteBuffer.wrap(getByteSequence(blockSize, blockId + 1))));
+                blocks.add(block);
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+            for (AsyncStorageBlock block : blocks) {
+                block.close();
+            }
+
+            blocks.clear();
+            List<ByteBuffer> buffers = new ArrayList<>();
+            List<CompletableFuture<Integer>> reads = new ArrayList<>();
+            for (int blockId = 0; blockId < blockCount; ++blockId) {
+                AsyncStorageBlock block = storageManager.getAsyncStorageBlock(blockId);
+                block.claim(LockType.READ_LOCK);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(blockSize);
+                reads.add(block.readAsync(0, buffer));
+                blocks.add(block);
+                buffers.add(buffer);
+            }
+            for (int blockId = 0; blockId < blockCount; ++blockId) {
+                Assert.assertEquals(blockSize, (int) AsyncFileBlockStorageManager.await(reads.get(blockId)));
+                blocks.get(blockId).close();
+
+                ByteBuffer buffer = buffers.get(blockId);
+                buffer.flip();
+                byte[] readBytes = new byte[buffer.remaining()];
+                buffer.get(readBytes);
+                Assert.assertArrayEquals(getByteSequence(blockSize, blockId + 1), readBytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package mmk.vfs.file;
+
+import mmk.vfs.FileOpenMode;
+import mmk.vfs.FileStorageMode;
+import mmk.vfs.VFSFile;
+import mmk.vfs.VirtualFileSystem;
+import mmk.vfs.directories.DirectoryHandlerFactoryV1;
+import mmk.vfs.impl.VirtualFileSystemImpl;
+import mmk.vfs.storage.InMemoryBlockStorageManager;
+import mmk.vfs.storage.file.StorageFileManagerV1;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+public class FileBasedVFSCompressionTest {
+    private File getNewStorageFile(String name) {
+        File mTestFile = new File(name);
+        if (mTestFile.exists()) {
+            Assert.assertTrue("Previous storage file must be file, not directory", mTestFile.isFile());
+            Assert.assertTrue("Previous storage file must be removed", mTestFile.delete());
+        }
+        mTestFile.deleteOnExit();
+        return mTestFile;
+    }
+
+    private VirtualFileSystem openWithCompression(File storageFile) throws IOException {
+        FileBasedVFSOptions options = new FileBasedVFSOptions();
+        options.setCompressedFilesEnabled(true);
+        return FileBasedVirtualFileSystem.open(storageFile, options);
+    }
+
+    private static byte[] getJsonLikeContents(int records) {
+        StringBuilder contents = new StringBuilder("[");
+        for (int i = 0; i < records; ++i) {
+            contents.append("{\"id\": ").append(i).append(", \"name\": \"record-").append(i % 97)
+                    .append("\", \"enabled\": ").append(i % 3 == 0).append("},\n");
+        }
+        return contents.append("]").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void writeFile(VirtualFileSystem vfs, String filePath, FileStorageMode storageMode, byte[] contents, int chunk) throws IOException {
+        vfs.createFile(filePath, storageMode);
+        try (VFSFile file = vfs.openFile(filePath, FileOpenMode.READ_WRITE)) {
+            for (int offset = 0; offset < contents.length; offset += chunk) {
+                file.write(contents, offset, Math.min(chunk, contents.length - offset));
+            }
+        }
+    }
+
+    private byte[] readFile(VirtualFileSystem vfs, String filePath) throws IOException {
+        try (VFSFile file = vfs.openFile(filePath, FileOpenMode.READ)) {
+            byte[] readBuffer = new byte[1000];
+            ByteArrayOutputStream readAssembler = new ByteArrayOutputStream();
+            int read;
+            while ((read = file.read(readBuffer, 0, readBuffer.length)) != -1) {
+                readAssembler.write(readBuffer, 0, read);
+            }
+            return readAssembler.toByteArray();
+        }
+    }
+
+    @Test
+    public void testCompressedFileTakesFewerBlocks() throws IOException {
+        byte[] contents = getJsonLikeContents(20000);
+        File plainStorageFile = getNewStorageFile("test-plain.vfs");
+        File compressedStorageFile = getNewStorageFile("test-compressed.vfs");
+
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(plainStorageFile)) {
+            writeFile(vfs, "data.json", FileStorageMode.PLAIN, contents, 1000);
+        }
+        try (VirtualFileSystem vfs = openWithCompression(compressedStorageFile)) {
+            writeFile(vfs, "data.json", FileStorageMode.COMPRESSED, contents, 1000);
+        }
+        Assert.assertTrue("Compressed container must be at least 3 times smaller",
+                          compressedStorageFile.length() * 3 < plainStorageFile.length());
+
+        try (VirtualFileSystem vfs = openWithCompression(compressedStorageFile)) {
+            Assert.assertArrayEquals("Compressed file must read back as written", contents, readFile(vfs, "data.json"));
+            try (VFSFile file = vfs.openFile("data.json", FileOpenMode.READ)) {
+                Assert.assertEquals("File length must be length of uncompressed contents", contents.length, file.getLength());
+            }
+        }
+    }
+
+    @Test
+    public void testRandomAccessToCompressedFile() throws IOException {
+        byte[] contents = getJsonLikeContents(10000);
+        File storageFile = getNewStorageFile("test-compressed.vfs");
+
+        try (VirtualFileSystem vfs = openWithCompression(storageFile)) {
+            writeFile(vfs, "data.json", FileStorageMode.COMPRESSED, contents, 70000);
+
+            // overwrite spanning chunk boundary in the middle of file
+            byte[] patch = new byte[5000];
+            for (int i = 0; i < patch.length; ++i) {
+                patch[i] = (byte) (i * 31);
+            }
+            int patchOffset = 3 * 32768 - 1000;
+            try (VFSFile file = vfs.openFile("data.json", FileOpenMode.READ_WRITE)) {
+                file.seek(patchOffset);
+                file.write(patch, 0, patch.length);
+            }
+            System.arraycopy(patch, 0, contents, patchOffset, patch.length);
+        }
+
+        try (VirtualFileSystem vfs = openWithCompression(storageFile)) {
+            Assert.assertArrayEquals("Compressed file must contain patched contents", contents, readFile(vfs, "data.json"));
+            try (VFSFile file = vfs.openFile("data.json", FileOpenMode.READ)) {
+                byte[] readBytes = new byte[100];
+                for (int offset : new int[]{contents.length - 100, 0, 200000, 32768 - 50}) {
+                    file.seek(offset);
+                    Assert.assertEquals("Read inside single chunk must be complete", 50, file.read(readBytes, 0, 50));
+                    for (int i = 0; i < 50; ++i) {
+                        Assert.assertEquals("Byte at offset " + (offset + i) + " must match", contents[offset + i], readBytes[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testIncompressibleContents() throws IOException {
+        byte[] contents = new byte[100000];
+        long seed = 12345;
+        for (int i = 0; i < contents.length; ++i) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            contents[i] = (byte) (seed >>> 56);
+        }
+        File storageFile = getNewStorageFile("test-compressed.vfs");
+        try (VirtualFileSystem vfs = openWithCompression(storageFile)) {
+            writeFile(vfs, "random.bin", FileStorageMode.COMPRESSED, contents, 4096);
+            Assert.assertArrayEquals("Chunks stored uncompressed must read back as written", contents, readFile(vfs, "random.bin"));
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testDirectoryRecordsV1RejectCompressedFiles() throws IOException {
+        InMemoryBlockStorageManager blockStorage = new InMemoryBlockStorageManager(VirtualFileSystemImpl.DEFAULT_BLOCK_SIZE, VirtualFileSystemImpl.DEFAULT_BLOCK_SIZE);
+        try (VirtualFileSystem vfs = new VirtualFileSystemImpl(new StorageFileManagerV1(blockStorage), new DirectoryHandlerFactoryV1())) {
+            vfs.createFile("data.json", FileStorageMode.COMPRESSED);
+        }
+    }
+
+    @Test
+    public void testDefaultContainerUsesDirectoryRecordsV1() throws IOException {
+        File storageFile = getNewStorageFile("test-plain.vfs");
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(storageFile)) {
+            writeFile(vfs, "data.json", FileStorageMode.PLAIN, getJsonLikeContents(10), 100);
+            try {
+                vfs.createFile("compressed.json", FileStorageMode.COMPRESSED);
+                Assert.fail("Container created without compressed files enabled must reject compressed files");
+            } catch (UnsupportedOperationException expected) {
+            }
+        }
+        try (RandomAccessFile file = new RandomAccessFile(storageFile, "r")) {
+            file.seek(6);
+            Assert.assertEquals("Directory Records Version", 1, file.read());
+        }
+    }
+}
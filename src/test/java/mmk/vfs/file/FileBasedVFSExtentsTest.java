@@ -0,0 +1,139 @@
+package mmk.vfs.file;
+
+import mmk.vfs.FileOpenMode;
+import mmk.vfs.FileStorageMode;
+import mmk.vfs.VFSFile;
+import mmk.vfs.VirtualFileSystem;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+public class FileBasedVFSExtentsTest {
+    private File getNewStorageFile() {
+        File mTestFile = new File("test.vfs");
+        if (mTestFile.exists()) {
+            Assert.assertTrue("Previous storage file must be file, not directory", mTestFile.isFile());
+            Assert.assertTrue("Previous storage file must be removed", mTestFile.delete());
+        }
+        return mTestFile;
+    }
+
+    private FileBasedVFSOptions getOptions() {
+        FileBasedVFSOptions options = new FileBasedVFSOptions();
+        options.setStorageLayout(StorageLayout.EXTENTS);
+        return options;
+    }
+
+    private static byte[] getByteSequence(int length, int seed) {
+        byte[] byteSequence = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            byteSequence[i] = (byte) (i * seed + i / 251);
+        }
+        return byteSequence;
+    }
+
+    private void writeFile(VirtualFileSystem vfs, String filePath, byte[] contents, int chunk) throws IOException {
+        vfs.createFile(filePath);
+        try (VFSFile file = vfs.openFile(filePath, FileOpenMode.READ_WRITE)) {
+            for (int offset = 0; offset < contents.length; offset += chunk) {
+                file.write(contents, offset, Math.min(chunk, contents.length - offset));
+            }
+        }
+    }
+
+    private byte[] readFile(VirtualFileSystem vfs, String filePath, int chunk) throws IOException {
+        try (VFSFile file = vfs.openFile(filePath, FileOpenMode.READ)) {
+            byte[] readBuffer = new byte[chunk];
+            ByteArrayOutputStream readAssembler = new ByteArrayOutputStream();
+            int read;
+            while ((read = file.read(readBuffer, 0, readBuffer.length)) != -1) {
+                readAssembler.write(readBuffer, 0, read);
+            }
+            return readAssembler.toByteArray();
+        }
+    }
+
+    @Test
+    public void testInterleavedWritesAndReopen() throws IOException {
+        File storageFile = getNewStorageFile();
+        byte[] firstSequence = getByteSequence(300 * 256 + 11, 7);
+        byte[] secondSequence = getByteSequence(120 * 256 + 3, 13);
+
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(storageFile, getOptions())) {
+            vfs.createDir("dir");
+            vfs.createFile("dir/first.ext");
+            vfs.createFile("dir/second.ext");
+            try (VFSFile first = vfs.openFile("dir/first.ext", FileOpenMode.READ_WRITE);
+                 VFSFile second = vfs.openFile("dir/second.ext", FileOpenMode.READ_WRITE)) {
+                // files grow in turns, so their blocks are interleaved
+                for (int i = 0; i < 30; ++i) {
+                    int firstChunk = firstSequence.length / 30 + 1;
+                    int secondChunk = secondSequence.length / 30 + 1;
+                    first.write(firstSequence, i * firstChunk, Math.min(firstChunk, firstSequence.length - i * firstChunk));
+                    if (i * secondChunk < secondSequence.length) {
+                        second.write(secondSequence, i * secondChunk, Math.min(secondChunk, secondSequence.length - i * secondChunk));
+                    }
+                }
+            }
+            Assert.assertArrayEquals(firstSequence, readFile(vfs, "dir/first.ext", 1000));
+        }
+
+        // container format is taken from existing header, not from options
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(storageFile, new FileBasedVFSOptions())) {
+            Assert.assertArrayEquals(firstSequence, readFile(vfs, "dir/first.ext", 70000));
+            Assert.assertArrayEquals(secondSequence, readFile(vfs, "dir/second.ext", 333));
+        }
+    }
+
+    @Test
+    public void testSeekToRandomOffsets() throws IOException {
+        File storageFile = getNewStorageFile();
+        byte[] sequence = getByteSequence(500 * 256, 3);
+
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(storageFile, getOptions())) {
+            writeFile(vfs, "file.ext", sequence, 4000);
+            try (VFSFile file = vfs.openFile("file.ext", FileOpenMode.READ)) {
+                byte[] readBuffer = new byte[777];
+                for (int offset = sequence.length - 1000; offset > 0; offset -= 12345) {
+                    file.seek(offset);
+                    Assert.assertEquals(readBuffer.length, file.read(readBuffer, 0, readBuffer.length));
+                    for (int i = 0; i < readBuffer.length; ++i) {
+                        Assert.assertEquals(sequence[offset + i], readBuffer[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDeletedFilesSpaceIsReused() throws IOException {
+        File storageFile = getNewStorageFile();
+        byte[] sequence = getByteSequence(200 * 256, 5);
+        FileBasedVFSOptions options = getOptions();
+        options.setCompressedFilesEnabled(true);
+
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(storageFile, options)) {
+            writeFile(vfs, "file.ext", sequence, 10000);
+            vfs.delete("file.ext");
+            writeFile(vfs, "file.ext", sequence, 10000);
+            vfs.delete("file.ext");
+            writeFile(vfs, "compressed.ext", sequence, 10000);
+        }
+        long lengthAfterReuse = storageFile.length();
+        Assert.assertTrue("Freed blocks must be reused", lengthAfterReuse < 2L * sequence.length);
+
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(storageFile, getOptions())) {
+            vfs.delete("compressed.ext");
+            writeFile(vfs, "other.ext", sequence, 10000);
+            vfs.createFile("packed.ext", FileStorageMode.COMPRESSED);
+            try (VFSFile file = vfs.openFile("packed.ext", FileOpenMode.READ_WRITE)) {
+                file.write(sequence, 0, sequence.length);
+            }
+            Assert.assertArrayEquals(sequence, readFile(vfs, "other.ext", 5000));
+            Assert.assertArrayEquals(sequence, readFile(vfs, "packed.ext", 5000));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package mmk.vfs.file;
+
+import mmk.vfs.FileOpenMode;
+import mmk.vfs.VFSFile;
+import mmk.vfs.VirtualFileSystem;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+public class FileBasedVFSMappedTest {
+    private File getNewStorageFile() {
+        File mTestFile = new File("test.vfs");
+        if (mTestFile.exists()) {
+            Assert.assertTrue("Previous storage file must be file, not directory", mTestFile.isFile());
+            Assert.assertTrue("Previous storage file must be removed", mTestFile.delete());
+        }
+        return mTestFile;
+    }
+
+    private FileBasedVFSOptions getOptions(BlockStorageType blockStorageType) {
+        FileBasedVFSOptions options = new FileBasedVFSOptions();
+        options.setBlockStorageType(blockStorageType);
+        // small segments, so files span several of them
+        options.setMappedSegmentSize(4096);
+        return options;
+    }
+
+    private void writeFile(File storageFile, FileBasedVFSOptions options, String filePath, byte[] contents) throws IOException {
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(storageFile, options)) {
+            vfs.createFile(filePath);
+            try (VFSFile file = vfs.openFile(filePath, FileOpenMode.READ_WRITE)) {
+                file.write(contents, 0, contents.length);
+            }
+        }
+    }
+
+    private byte[] readFile(File storageFile, FileBasedVFSOptions options, String filePath) throws IOException {
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(storageFile, options)) {
+            try (VFSFile file = vfs.openFile(filePath, FileOpenMode.READ)) {
+                byte[] readBuffer = new byte[1000];
+                ByteArrayOutputStream readAssembler = new ByteArrayOutputStream();
+                int read;
+                while ((read = file.read(readBuffer, 0, readBuffer.length)) != -1) {
+                    readAssembler.write(readBuffer, 0, read);
+                }
+                return readAssembler.toByteArray();
+            }
+        }
+    }
+
+    private static byte[] getByteSequence(int length) {
+        byte[] byteSequence = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            byteSequence[i] = (byte) (i * 7);
+        }
+        return byteSequence;
+    }
+
+    @Test
+    public void testMappedWriteAndSeparateRead() throws IOException {
+        File storageFile = getNewStorageFile();
+        byte[] byteSequence = getByteSequence(20000);
+
+        writeFile(storageFile, getOptions(BlockStorageType.MEMORY_MAPPED), "file.ext", byteSequence);
+        byte[] readBytes = readFile(storageFile, getOptions(BlockStorageType.MEMORY_MAPPED), "file.ext");
+
+        Assert.assertArrayEquals("File contents in read must match bytes in write", byteSequence, readBytes);
+    }
+
+    @Test
+    public void testMappedAndFileChannelStorageCompatibility() throws IOException {
+        File storageFile = getNewStorageFile();
+        byte[] firstSequence = getByteSequence(10000);
+        byte[] secondSequence = getByteSequence(3000);
+
+        writeFile(storageFile, getOptions(BlockStorageType.FILE_CHANNEL), "first.ext", firstSequence);
+        Assert.assertArrayEquals("Mapped storage must read file written through file channel",
+                                 firstSequence, readFile(storageFile, getOptions(BlockStorageType.MEMORY_MAPPED), "first.ext"));
+
+        writeFile(storageFile, getOptions(BlockStorageType.MEMORY_MAPPED), "second.ext", secondSequence);
+        Assert.assertArrayEquals("File channel storage must read file written through mapped storage",
+                                 secondSequence, readFile(storageFile, getOptions(BlockStorageType.FILE_CHANNEL), "second.ext"));
+        Assert.assertArrayEquals("Previously written file must stay intact",
+                                 firstSequence, readFile(storageFile, getOptions(BlockStorageType.FILE_CHANNEL), "first.ext"));
+    }
+
+    @Test
+    public void testMappedContainerIsTrimmedOnClose() throws IOException {
+        File storageFile = getNewStorageFile();
+        byte[] byteSequence = getByteSequence(3000);
+        FileBasedVFSOptions fileChannelOptions = getOptions(BlockStorageType.FILE_CHANNEL);
+        writeFile(storageFile, fileChannelOptions, "file.bin", byteSequence);
+        long fileChannelLength = storageFile.length();
+
+        storageFile = getNewStorageFile();
+        FileBasedVFSOptions mappedOptions = getOptions(BlockStorageType.MEMORY_MAPPED);
+        mappedOptions.setMappedSegmentSize(1 << 20);
+        writeFile(storageFile, mappedOptions, "file.bin", byteSequence);
+        Assert.assertEquals("Unused part of last mapped segment must be trimmed", fileChannelLength, storageFile.length());
+        Assert.assertArrayEquals(byteSequence, readFile(storageFile, mappedOptions, "file.bin"));
+    }
+}
@@ -10,6 +10,7 @@ import org.junit.Test;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class FileBasedVFSReuseTest {
     private File getNewStorageFile() {
@@ -65,4 +66,75 @@ public class FileBasedVFSReuseTest {
             }
         }
     }
+
+    @Test
+    public void testVFSManyBlockGroupsWriteAndSeparateRead() throws IOException {
+        File storageFile = getNewStorageFile();
+        int filesToWrite = 20;
+        // each file takes several blocks, so files span more than one Block Group
+        int bytesToWrite = 2000;
+        byte[] byteSequence = new byte[bytesToWrite];
+        for (int i = 0; i < bytesToWrite; ++i) {
+            byteSequence[i] = (byte) (i * 3);
+        }
+
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(storageFile)) {
+            for (int f = 0; f < filesToWrite; ++f) {
+                vfs.createFile("file" + f);
+                try (VFSFile file = vfs.openFile("file" + f, FileOpenMode.READ_WRITE)) {
+                    file.write(byteSequence, 0, bytesToWrite);
+                }
+            }
+        }
+
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(storageFile)) {
+            for (int f = 0; f < filesToWrite; ++f) {
+                try (VFSFile file = vfs.openFile("file" + f, FileOpenMode.READ)) {
+                    // odd buffer size, so reads span several blocks and start inside of them
+                    byte[] readBuffer = new byte[700];
+                    ByteArrayOutputStream readAssembler = new ByteArrayOutputStream();
+                    int read;
+                    while ((read = file.read(readBuffer, 0, readBuffer.length)) != -1) {
+                        readAssembler.write(readBuffer, 0, read);
+                    }
+                    Assert.assertArrayEquals("File contents in read must match bytes in write", byteSequence, readAssembler.toByteArray());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testVFSDirectBufferWriteAndSeparateRead() throws IOException {
+        File storageFile = getNewStorageFile();
+        String fileName = "file.ext";
+
+        int bytesToWrite = 3000;
+        ByteBuffer writeBuffer = ByteBuffer.allocateDirect(bytesToWrite);
+        for (int i = 0; i < bytesToWrite; ++i) {
+            writeBuffer.put((byte) (i * 5));
+        }
+        writeBuffer.flip();
+
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(storageFile)) {
+            vfs.createFile(fileName);
+            try (VFSFile file = vfs.openFile(fileName, FileOpenMode.READ_WRITE)) {
+                file.write(writeBuffer);
+            }
+        }
+        Assert.assertFalse("Whole buffer must be consumed by write", writeBuffer.hasRemaining());
+
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.open(storageFile)) {
+            try (VFSFile file = vfs.openFile(fileName, FileOpenMode.READ)) {
+                Assert.assertEquals("File size must match write length", bytesToWrite, file.getLength());
+
+                ByteBuffer readBuffer = ByteBuffer.allocateDirect(bytesToWrite + 100);
+                while (file.read(readBuffer) != -1) {
+                    Assert.assertTrue("Read must not exceed file length", readBuffer.position() <= bytesToWrite);
+                }
+                readBuffer.flip();
+                writeBuffer.rewind();
+                Assert.assertEquals("File contents in read must match bytes in write", writeBuffer, readBuffer);
+            }
+        }
+    }
 }
@@ -0,0 +1,116 @@
+package mmk.vfs.file;
+
+import mmk.vfs.FileOpenMode;
+import mmk.vfs.VFSFile;
+import mmk.vfs.VirtualFileSystem;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+public class FileBasedVFSStripedTest {
+    private static final int STRIPE_COUNT = 3;
+
+    private File[] getNewStorageFiles(int count) {
+        File[] files = new File[count];
+        for (int i = 0; i < count; ++i) {
+            files[i] = new File("test-stripe" + i + ".vfs");
+            if (files[i].exists()) {
+                Assert.assertTrue("Previous storage file must be file, not directory", files[i].isFile());
+                Assert.assertTrue("Previous storage file must be removed", files[i].delete());
+            }
+            files[i].deleteOnExit();
+        }
+        return files;
+    }
+
+    private static byte[] getByteSequence(int length, int seed) {
+        byte[] byteSequence = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            byteSequence[i] = (byte) (i * seed);
+        }
+        return byteSequence;
+    }
+
+    private void writeFile(VirtualFileSystem vfs, String filePath, byte[] contents, int chunk) throws IOException {
+        vfs.createFile(filePath);
+        try (VFSFile file = vfs.openFile(filePath, FileOpenMode.READ_WRITE)) {
+            for (int offset = 0; offset < contents.length; offset += chunk) {
+                file.write(contents, offset, Math.min(chunk, contents.length - offset));
+            }
+        }
+    }
+
+    private byte[] readFile(VirtualFileSystem vfs, String filePath, int chunk) throws IOException {
+        try (VFSFile file = vfs.openFile(filePath, FileOpenMode.READ)) {
+            byte[] readBuffer = new byte[chunk];
+            ByteArrayOutputStream readAssembler = new ByteArrayOutputStream();
+            int read;
+            while ((read = file.read(readBuffer, 0, readBuffer.length)) != -1) {
+                readAssembler.write(readBuffer, 0, read);
+            }
+            return readAssembler.toByteArray();
+        }
+    }
+
+    @Test
+    public void testStripedWriteAndSeparateRead() throws IOException {
+        File[] storageFiles = getNewStorageFiles(STRIPE_COUNT);
+        FileBasedVFSOptions options = new FileBasedVFSOptions();
+        byte[] largeSequence = getByteSequence(200 * options.getBlockSize() + 5, 7);
+        byte[] smallSequence = getByteSequence(1000, 13);
+
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.openStriped(storageFiles, options)) {
+            // large chunks are written and read as multi-block runs, spread over all stripes
+            writeFile(vfs, "large.ext", largeSequence, 10000);
+            writeFile(vfs, "small.ext", smallSequence, 100);
+        }
+        for (File storageFile : storageFiles) {
+            Assert.assertTrue("Every stripe must contain data", storageFile.length() > 50 * options.getBlockSize());
+        }
+
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.openStriped(storageFiles, options)) {
+            Assert.assertArrayEquals(largeSequence, readFile(vfs, "large.ext", 10000));
+            Assert.assertArrayEquals(largeSequence, readFile(vfs, "large.ext", 333));
+            Assert.assertArrayEquals(smallSequence, readFile(vfs, "small.ext", 10000));
+        }
+    }
+
+    @Test
+    public void testStripedMemoryMapped() throws IOException {
+        File[] storageFiles = getNewStorageFiles(2);
+        FileBasedVFSOptions options = new FileBasedVFSOptions();
+        options.setBlockStorageType(BlockStorageType.MEMORY_MAPPED);
+        options.setMappedSegmentSize(4096);
+        byte[] sequence = getByteSequence(50 * options.getBlockSize() + 17, 5);
+
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.openStriped(storageFiles, options)) {
+            writeFile(vfs, "file.ext", sequence, 3000);
+        }
+        options.setBlockStorageType(BlockStorageType.FILE_CHANNEL);
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.openStriped(storageFiles, options)) {
+            Assert.assertArrayEquals(sequence, readFile(vfs, "file.ext", 3000));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOpenWithMissingStripe() throws IOException {
+        File[] storageFiles = getNewStorageFiles(STRIPE_COUNT);
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.openStriped(storageFiles, new FileBasedVFSOptions())) {
+            vfs.createFile("file.ext");
+        }
+        FileBasedVirtualFileSystem.open(storageFiles[0]).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenWithReorderedStripes() throws IOException {
+        File[] storageFiles = getNewStorageFiles(STRIPE_COUNT);
+        try (VirtualFileSystem vfs = FileBasedVirtualFileSystem.openStriped(storageFiles, new FileBasedVFSOptions())) {
+            vfs.createFile("file.ext");
+        }
+        File[] reordered = new File[]{storageFiles[0], storageFiles[2], storageFiles[1]};
+        FileBasedVirtualFileSystem.openStriped(reordered, new FileBasedVFSOptions()).close();
+    }
+}
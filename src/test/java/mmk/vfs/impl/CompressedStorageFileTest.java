@@ -0,0 +1,150 @@
+package mmk.vfs.impl;
+
+import mmk.vfs.locks.LockType;
+import mmk.vfs.storage.file.StorageFile;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class CompressedStorageFileTest {
+    private static final int CHUNK_COUNT = 16;
+
+    /**
+     * Storage File kept in memory, which counts written bytes and can fail writes of compressed file header.
+     */
+    private static class MemoryStorageFile implements StorageFile {
+        private byte[] mBytes = new byte[0];
+        private long mWrittenBytes = 0;
+        private boolean mFailHeaderWrites = false;
+
+        @Override
+        public int getStorageStartIdx() {
+            return 1;
+        }
+
+        @Override
+        public void claimLock(LockType lockType) {
+        }
+
+        @Override
+        public void releaseLock() {
+        }
+
+        @Override
+        public int getCurrentCapacity() {
+            return mBytes.length;
+        }
+
+        @Override
+        public int readBlock(int fileOffset, byte[] readBuffer, int bufferOffset, int length) {
+            if (fileOffset >= mBytes.length) {
+                return -1;
+            }
+            int read = Math.min(length, mBytes.length - fileOffset);
+            System.arraycopy(mBytes, fileOffset, readBuffer, bufferOffset, read);
+            return read;
+        }
+
+        @Override
+        public void writeBlock(int fileOffset, byte[] writeBuffer, int bufferOffset, int length) throws IOException {
+            if (mFailHeaderWrites && fileOffset == 0) {
+                throw new IOException("Device is not accessible");
+            }
+            if (fileOffset + length > mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, fileOffset + length);
+            }
+            System.arraycopy(writeBuffer, bufferOffset, mBytes, fileOffset, length);
+            mWrittenBytes += length;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static byte[] getContents(int length, int seed) {
+        byte[] contents = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            contents[i] = (byte) ((i / 100) * seed + i % 7);
+        }
+        return contents;
+    }
+
+    private static void write(CompressedStorageFile file, int fileOffset, byte[] contents) throws IOException {
+        file.writeBlock(fileOffset, contents, 0, contents.length);
+    }
+
+    private static byte[] read(CompressedStorageFile file, int length) throws IOException {
+        byte[] contents = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = file.readBlock(offset, contents, offset, length - offset);
+            Assert.assertTrue(read > 0);
+            offset += read;
+        }
+        return contents;
+    }
+
+    @Test
+    public void testSmallEditWritesOnlyModifiedChunk() throws IOException {
+        MemoryStorageFile storageFile = new MemoryStorageFile();
+        byte[] contents = getContents(CHUNK_COUNT * CompressedStorageFile.CHUNK_SIZE, 3);
+        CompressedStorageFile file = new CompressedStorageFile(storageFile, 0);
+        write(file, 0, contents);
+        file.flush();
+
+        storageFile.mWrittenBytes = 0;
+        byte[] patch = getContents(10, 11);
+        int patchOffset = 5 * CompressedStorageFile.CHUNK_SIZE + 100;
+        write(file, patchOffset, patch);
+        file.flush();
+        System.arraycopy(patch, 0, contents, patchOffset, patch.length);
+        Assert.assertTrue("Edit of single chunk must not rewrite following chunks",
+                          storageFile.mWrittenBytes < CompressedStorageFile.CHUNK_SIZE);
+
+        Assert.assertArrayEquals(contents, read(new CompressedStorageFile(storageFile, contents.length), contents.length));
+    }
+
+    @Test
+    public void testFailedFlushKeepsPreviousContents() throws IOException {
+        MemoryStorageFile storageFile = new MemoryStorageFile();
+        byte[] contents = getContents(CHUNK_COUNT * CompressedStorageFile.CHUNK_SIZE, 3);
+        CompressedStorageFile file = new CompressedStorageFile(storageFile, 0);
+        write(file, 0, contents);
+        file.flush();
+
+        // chunks and new chunk table are written, header is not
+        storageFile.mFailHeaderWrites = true;
+        try {
+            write(file, 0, getContents(contents.length + CompressedStorageFile.CHUNK_SIZE, 5));
+            file.flush();
+            Assert.fail("Flush must report failed write");
+        } catch (IOException expected) {
+        }
+
+        Assert.assertArrayEquals("Interrupted flush must leave previously flushed contents readable",
+                                 contents, read(new CompressedStorageFile(storageFile, contents.length), contents.length));
+    }
+
+    @Test
+    public void testSpaceOfReplacedChunksIsReused() throws IOException {
+        MemoryStorageFile storageFile = new MemoryStorageFile();
+        byte[] contents = getContents(CHUNK_COUNT * CompressedStorageFile.CHUNK_SIZE, 3);
+        CompressedStorageFile file = new CompressedStorageFile(storageFile, 0);
+        write(file, 0, contents);
+        file.flush();
+        int initialLength = storageFile.mBytes.length;
+
+        for (int i = 0; i < 50; ++i) {
+            byte[] patch = getContents(CompressedStorageFile.CHUNK_SIZE, i + 7);
+            write(file, 2 * CompressedStorageFile.CHUNK_SIZE, patch);
+            file.flush();
+            System.arraycopy(patch, 0, contents, 2 * CompressedStorageFile.CHUNK_SIZE, patch.length);
+        }
+        Assert.assertTrue("Repeated edits must reuse space of replaced chunks", storageFile.mBytes.length < 2 * initialLength);
+
+        Assert.assertArrayEquals(contents, read(new CompressedStorageFile(storageFile, contents.length), contents.length));
+    }
+}
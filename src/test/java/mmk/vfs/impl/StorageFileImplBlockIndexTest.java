@@ -0,0 +1,177 @@
+package mmk.vfs.impl;
+
+import mmk.vfs.locks.AccessProviderManager;
+import mmk.vfs.locks.LockType;
+import mmk.vfs.locks.ReadWriteAccessProvider;
+import mmk.vfs.storage.InMemoryBlockStorageManager;
+import mmk.vfs.storage.blocks.StorageBlock;
+import mmk.vfs.storage.file.StorageFile;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+public class StorageFileImplBlockIndexTest {
+    private static final int BLOCK_SIZE = 256;
+    private static final int BLOCK_COUNT = 3000;
+
+    /**
+     * Chain of blocks kept in memory, blocks are never adjacent, so every block boundary is resolved through chain.
+     */
+    private static class CountingChainStorage implements StorageFileImpl.StorageFileManagerInternalApi {
+        private final InMemoryBlockStorageManager mStorage = new InMemoryBlockStorageManager(BLOCK_SIZE, BLOCK_SIZE);
+        private final AccessProviderManager<Integer> mLockManager = new AccessProviderManager<>(ReadWriteAccessProvider::new);
+        private final Map<Integer, Integer> mNextBlocks = new HashMap<>();
+        private int mLastAllocatedBlock = 0;
+        private int mChainHops = 0;
+
+        CountingChainStorage() throws IOException {
+            allocate();
+        }
+
+        private int allocate() throws IOException {
+            mLastAllocatedBlock += 2;
+            try (StorageBlock storageBlock = mStorage.getStorageBlock(mLastAllocatedBlock)) {
+                storageBlock.ensureCapacity();
+            }
+            mNextBlocks.put(mLastAllocatedBlock, -1);
+            return mLastAllocatedBlock;
+        }
+
+        @Override
+        public int getCurrentCapacity(int storageFileId) {
+            return mNextBlocks.size() * BLOCK_SIZE;
+        }
+
+        @Override
+        public int getLastStorageBlockIndex(int storageFileId) {
+            return mLastAllocatedBlock;
+        }
+
+        @Override
+        public StorageBlock getStorageBlock(int storageBlockId) throws IOException {
+            return mStorage.getStorageBlock(storageBlockId);
+        }
+
+        @Override
+        public int getNextStorageBlockIndex(int storageBlockId) {
+            ++mChainHops;
+            return mNextBlocks.get(storageBlockId);
+        }
+
+        @Override
+        public int readStorageBlocks(int firstStorageBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+            return mStorage.readBlocks(firstStorageBlockId, blockCount, firstBlockOffset, buffer);
+        }
+
+        @Override
+        public void writeStorageBlocks(int firstStorageBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+            mStorage.writeBlocks(firstStorageBlockId, blockCount, firstBlockOffset, buffer);
+        }
+
+        @Override
+        public boolean prefetchStorageBlocks(int firstStorageBlockId, int blockCount) {
+            return false;
+        }
+
+        @Override
+        public int getBlockSize() {
+            return BLOCK_SIZE;
+        }
+
+        @Override
+        public boolean isLastBlockId(int storageBlockId) {
+            return storageBlockId != -1;
+        }
+
+        @Override
+        public int[] extendFileFromBlock(int storageFileId, int storageBlockId, int blockCount) throws IOException {
+            int[] newBlockIds = new int[blockCount];
+            for (int i = 0; i < blockCount; ++i) {
+                newBlockIds[i] = allocate();
+                mNextBlocks.put(i == 0 ? storageBlockId : newBlockIds[i - 1], newBlockIds[i]);
+            }
+            return newBlockIds;
+        }
+
+        @Override
+        public AccessProviderManager<Integer> getLockManager() {
+            return mLockManager;
+        }
+
+        @Override
+        public void onFileClosed(StorageFile file) {
+        }
+    }
+
+    @Test
+    public void testReverseReadsUseBlockIndex() throws IOException {
+        CountingChainStorage chainStorage = new CountingChainStorage();
+        try (StorageFileImpl storageFile = new StorageFileImpl(chainStorage, 2)) {
+            storageFile.claimLock(LockType.WRITE_LOCK);
+            for (int i = 0; i < BLOCK_COUNT; ++i) {
+                storageFile.writeBlock(i * BLOCK_SIZE, new byte[]{(byte) i}, 0, 1);
+            }
+            storageFile.releaseLock();
+
+            chainStorage.mChainHops = 0;
+            storageFile.claimLock(LockType.READ_LOCK);
+            byte[] readBuffer = new byte[1];
+            for (int i = BLOCK_COUNT - 1; i >= 0; --i) {
+                Assert.assertEquals(1, storageFile.readBlock(i * BLOCK_SIZE, readBuffer, 0, 1));
+                Assert.assertEquals((byte) i, readBuffer[0]);
+            }
+            storageFile.releaseLock();
+        }
+        // without index reverse scan walks chain from its head every time, ~BLOCK_COUNT^2 / 2 hops
+        Assert.assertTrue("Seeks must start from indexed blocks, hops: " + chainStorage.mChainHops,
+                          chainStorage.mChainHops < BLOCK_COUNT * 32);
+    }
+
+    @Test
+    public void testAppendStartsFromLastBlock() throws IOException {
+        CountingChainStorage chainStorage = new CountingChainStorage();
+        try (StorageFileImpl storageFile = new StorageFileImpl(chainStorage, 2)) {
+            storageFile.claimLock(LockType.WRITE_LOCK);
+            storageFile.writeBlock(0, new byte[]{1}, 0, 1);
+            for (int i = 0; i < BLOCK_COUNT; ++i) {
+                storageFile.writeBlock(i * BLOCK_SIZE, new byte[]{(byte) i}, 0, 1);
+            }
+
+            chainStorage.mChainHops = 0;
+            // each append starts after rewrite of first block, but reaches end of file without walking chain
+            for (int i = BLOCK_COUNT; i < BLOCK_COUNT + 100; ++i) {
+                storageFile.writeBlock(0, new byte[]{0}, 0, 1);
+                storageFile.writeBlock(i * BLOCK_SIZE, new byte[]{(byte) i}, 0, 1);
+            }
+            storageFile.releaseLock();
+            Assert.assertTrue("Appends must start from last block, hops: " + chainStorage.mChainHops,
+                              chainStorage.mChainHops < 1000);
+            Assert.assertEquals((BLOCK_COUNT + 100) * BLOCK_SIZE, storageFile.getCurrentCapacity());
+        }
+    }
+
+    @Test
+    public void testIndexStaysValidWhenIntervalGrows() throws IOException {
+        CountingChainStorage chainStorage = new CountingChainStorage();
+        int blockCount = 20000;
+        try (StorageFileImpl storageFile = new StorageFileImpl(chainStorage, 2)) {
+            storageFile.claimLock(LockType.WRITE_LOCK);
+            for (int i = 0; i < blockCount; ++i) {
+                storageFile.writeBlock(i * BLOCK_SIZE, new byte[]{(byte) (i * 7)}, 0, 1);
+            }
+            storageFile.releaseLock();
+
+            storageFile.claimLock(LockType.READ_LOCK);
+            byte[] readBuffer = new byte[1];
+            for (int i = blockCount - 1; i >= 0; i -= 997) {
+                Assert.assertEquals(1, storageFile.readBlock(i * BLOCK_SIZE, readBuffer, 0, 1));
+                Assert.assertEquals((byte) (i * 7), readBuffer[0]);
+            }
+            storageFile.releaseLock();
+        }
+    }
+}
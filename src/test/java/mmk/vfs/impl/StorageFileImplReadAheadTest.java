@@ -0,0 +1,141 @@
+package mmk.vfs.impl;
+
+import mmk.vfs.locks.LockType;
+import mmk.vfs.storage.InMemoryBlockStorageManager;
+import mmk.vfs.storage.blocks.StorageBlock;
+import mmk.vfs.storage.file.StorageFile;
+import mmk.vfs.storage.file.StorageFileManager;
+import mmk.vfs.storage.file.StorageFileManagerV1;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+public class StorageFileImplReadAheadTest {
+    private static final int BLOCK_SIZE = 256;
+    private static final int BLOCKS_PER_GROUP = BLOCK_SIZE / 4;
+    private static final int FILE_BLOCKS = 60;
+
+    /**
+     * Storage without prefetch support, which counts reads of data blocks: reads of single blocks and reads of runs.
+     */
+    private static class ReadCountingStorage extends InMemoryBlockStorageManager {
+        private int mBlockReadCount = 0;
+        private int mRunReadCount = 0;
+        private boolean mIsReadingRun = false;
+
+        ReadCountingStorage() {
+            super(BLOCK_SIZE, BLOCK_SIZE);
+        }
+
+        @Override
+        public int readBlocks(int firstBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+            ++mRunReadCount;
+            mIsReadingRun = true;
+            try {
+                return super.readBlocks(firstBlockId, blockCount, firstBlockOffset, buffer);
+            } finally {
+                mIsReadingRun = false;
+            }
+        }
+
+        @Override
+        public StorageBlock getStorageBlock(int blockId) throws IOException {
+            StorageBlock storageBlock = super.getStorageBlock(blockId);
+            if (blockId % BLOCKS_PER_GROUP == 0) {
+                return storageBlock;
+            }
+            return new StorageBlock() {
+                @Override
+                public void claim(LockType lockType) throws InterruptedIOException {
+                    storageBlock.claim(lockType);
+                }
+
+                @Override
+                public void release() {
+                    storageBlock.release();
+                }
+
+                @Override
+                public int read(int blockOffset, byte[] buffer, int bufferOffset, int length) throws IOException {
+                    if (!mIsReadingRun) {
+                        ++mBlockReadCount;
+                    }
+                    return storageBlock.read(blockOffset, buffer, bufferOffset, length);
+                }
+
+                @Override
+                public void write(int blockOffset, byte[] buffer, int bufferOffset, int length) throws IOException {
+                    storageBlock.write(blockOffset, buffer, bufferOffset, length);
+                }
+
+                @Override
+                public void close() {
+                    storageBlock.close();
+                }
+
+                @Override
+                public void ensureCapacity() throws IOException {
+                    storageBlock.ensureCapacity();
+                }
+            };
+        }
+    }
+
+    private static byte getExpectedByte(int fileOffset) {
+        return (byte) (fileOffset * 13 + fileOffset / BLOCK_SIZE);
+    }
+
+    @Test
+    public void testSequentialReadsAheadWithoutBlockCache() throws IOException {
+        ReadCountingStorage storage = new ReadCountingStorage();
+        StorageFileManager manager = new StorageFileManagerV1(storage);
+        byte[] contents = new byte[FILE_BLOCKS * BLOCK_SIZE];
+        for (int i = 0; i < contents.length; ++i) {
+            contents[i] = getExpectedByte(i);
+        }
+        int fileId;
+        try (StorageFile storageFile = manager.createNewFile()) {
+            fileId = storageFile.getStorageStartIdx();
+            storageFile.writeBlock(0, contents, 0, contents.length);
+        }
+
+        storage.mBlockReadCount = 0;
+        storage.mRunReadCount = 0;
+        int readCount = 0;
+        try (StorageFile storageFile = manager.getStorageFile(fileId)) {
+            byte[] readBuffer = new byte[BLOCK_SIZE / 4];
+            for (int offset = 0; offset < contents.length; offset += readBuffer.length) {
+                Assert.assertEquals(readBuffer.length, storageFile.readBlock(offset, readBuffer, 0, readBuffer.length));
+                for (int i = 0; i < readBuffer.length; ++i) {
+                    Assert.assertEquals("Byte at offset " + (offset + i) + " must match", getExpectedByte(offset + i), readBuffer[i]);
+                }
+                ++readCount;
+            }
+        }
+        Assert.assertTrue("Sequential reads must be served from blocks read ahead in runs",
+                          storage.mBlockReadCount + storage.mRunReadCount < readCount / 4);
+        manager.close();
+    }
+
+    @Test
+    public void testWriteDropsBlocksReadAhead() throws IOException {
+        StorageFileManager manager = new StorageFileManagerV1(new ReadCountingStorage());
+        byte[] contents = new byte[FILE_BLOCKS * BLOCK_SIZE];
+        try (StorageFile storageFile = manager.createNewFile()) {
+            storageFile.writeBlock(0, contents, 0, contents.length);
+
+            byte[] readBuffer = new byte[BLOCK_SIZE / 4];
+            for (int offset = 0; offset < 8 * BLOCK_SIZE; offset += readBuffer.length) {
+                storageFile.readBlock(offset, readBuffer, 0, readBuffer.length);
+            }
+            // following blocks are read ahead by now
+            storageFile.writeBlock(10 * BLOCK_SIZE, new byte[]{42}, 0, 1);
+            Assert.assertEquals(1, storageFile.readBlock(10 * BLOCK_SIZE, readBuffer, 0, 1));
+            Assert.assertEquals("Read must see bytes written after they were read ahead", 42, readBuffer[0]);
+        }
+        manager.close();
+    }
+}
@@ -0,0 +1,139 @@
+package mmk.vfs.memory;
+
+import mmk.vfs.FileOpenMode;
+import mmk.vfs.VFSFile;
+import mmk.vfs.VirtualFileSystem;
+import mmk.vfs.storage.blocks.OffHeapBlockStorageManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class InMemoryVirtualFileSystemTest {
+    private static final int BLOCK_SIZE = 256;
+
+    private File getNewSnapshotFile() throws IOException {
+        File snapshotFile = File.createTempFile("snapshot", ".img");
+        snapshotFile.deleteOnExit();
+        return snapshotFile;
+    }
+
+    private byte[] createContents(int length) {
+        byte[] contents = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            contents[i] = (byte) (i * 7);
+        }
+        return contents;
+    }
+
+    private void writeFile(VirtualFileSystem vfs, String path, byte[] contents) throws IOException {
+        vfs.createFile(path);
+        try (VFSFile file = vfs.openFile(path, FileOpenMode.READ_WRITE)) {
+            file.write(contents, 0, contents.length);
+        }
+    }
+
+    private byte[] readFile(VirtualFileSystem vfs, String path) throws IOException {
+        try (VFSFile file = vfs.openFile(path, FileOpenMode.READ)) {
+            byte[] readBuffer = new byte[1000];
+            ByteArrayOutputStream readAssembler = new ByteArrayOutputStream();
+            int read;
+            while ((read = file.read(readBuffer, 0, readBuffer.length)) != -1) {
+                readAssembler.write(readBuffer, 0, read);
+            }
+            return readAssembler.toByteArray();
+        }
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        byte[] contents = createContents(50 * BLOCK_SIZE + 3);
+        try (VirtualFileSystem vfs = InMemoryVirtualFileSystem.create(BLOCK_SIZE)) {
+            writeFile(vfs, "file", contents);
+            Assert.assertArrayEquals(contents, readFile(vfs, "file"));
+        }
+    }
+
+    @Test
+    public void testSnapshotAndLoad() throws IOException {
+        File snapshotFile = getNewSnapshotFile();
+        byte[] contents = createContents(100 * BLOCK_SIZE + 11);
+
+        OffHeapBlockStorageManager storage = InMemoryVirtualFileSystem.createStorage(BLOCK_SIZE);
+        try (VirtualFileSystem vfs = InMemoryVirtualFileSystem.open(storage)) {
+            vfs.createDir("dir");
+            writeFile(vfs, "dir/file", contents);
+            storage.writeSnapshot(snapshotFile);
+
+            // changes after snapshot must not be visible in loaded image
+            writeFile(vfs, "later", contents);
+        }
+
+        OffHeapBlockStorageManager loaded = OffHeapBlockStorageManager.loadSnapshot(snapshotFile);
+        Assert.assertEquals(BLOCK_SIZE, loaded.getBlockSize());
+        try (VirtualFileSystem vfs = InMemoryVirtualFileSystem.open(loaded)) {
+            Assert.assertTrue(vfs.exists("dir/file"));
+            Assert.assertFalse(vfs.exists("later"));
+            Assert.assertArrayEquals(contents, readFile(vfs, "dir/file"));
+
+            // loaded storage must stay writable
+            writeFile(vfs, "another", contents);
+            Assert.assertArrayEquals(contents, readFile(vfs, "another"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testLoadTruncatedSnapshot() throws IOException {
+        File snapshotFile = getNewSnapshotFile();
+        OffHeapBlockStorageManager storage = InMemoryVirtualFileSystem.createStorage(BLOCK_SIZE);
+        try (VirtualFileSystem vfs = InMemoryVirtualFileSystem.open(storage)) {
+            writeFile(vfs, "file", createContents(10 * BLOCK_SIZE));
+            storage.writeSnapshot(snapshotFile);
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+        OffHeapBlockStorageManager.loadSnapshot(snapshotFile);
+    }
+
+    @Test
+    public void testSnapshotWaitsForOpenWriter() throws Exception {
+        File snapshotFile = getNewSnapshotFile();
+        byte[] contents = createContents(40 * BLOCK_SIZE + 5);
+
+        OffHeapBlockStorageManager storage = InMemoryVirtualFileSystem.createStorage(BLOCK_SIZE);
+        try (VirtualFileSystem vfs = InMemoryVirtualFileSystem.open(storage)) {
+            vfs.createFile("file");
+            AtomicReference<IOException> snapshotException = new AtomicReference<>();
+            Thread snapshotThread;
+            try (VFSFile file = vfs.openFile("file", FileOpenMode.READ_WRITE)) {
+                file.write(contents, 0, contents.length / 2);
+
+                snapshotThread = new Thread(() -> {
+                    try {
+                        InMemoryVirtualFileSystem.writeSnapshot(vfs, storage, snapshotFile);
+                    } catch (IOException e) {
+                        snapshotException.set(e);
+                    }
+                });
+                snapshotThread.start();
+                snapshotThread.join(200);
+                Assert.assertTrue("Snapshot must wait until file opened for write is closed", snapshotThread.isAlive());
+
+                file.write(contents, contents.length / 2, contents.length - contents.length / 2);
+            }
+            snapshotThread.join(5000);
+            Assert.assertFalse(snapshotThread.isAlive());
+            Assert.assertNull(snapshotException.get());
+        }
+
+        try (VirtualFileSystem vfs = InMemoryVirtualFileSystem.open(OffHeapBlockStorageManager.loadSnapshot(snapshotFile))) {
+            Assert.assertArrayEquals("Image must contain whole write", contents, readFile(vfs, "file"));
+        }
+    }
+}
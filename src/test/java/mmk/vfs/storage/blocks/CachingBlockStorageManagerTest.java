@@ -0,0 +1,326 @@
+package mmk.vfs.storage.blocks;
+
+import mmk.vfs.FileOpenMode;
+import mmk.vfs.VFSFile;
+import mmk.vfs.VirtualFileSystem;
+import mmk.vfs.directories.DirectoryHandlerFactoryV1;
+import mmk.vfs.impl.VirtualFileSystemImpl;
+import mmk.vfs.locks.LockType;
+import mmk.vfs.storage.InMemoryBlockStorageManager;
+import mmk.vfs.storage.file.StorageFileManagerV1;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CachingBlockStorageManagerTest {
+    private static final int BLOCK_SIZE = 256;
+
+    /**
+     * Storage, which fails multi-block writes (used by flush of dirty pages) while flagged.
+     */
+    private static class FailingStorage extends InMemoryBlockStorageManager {
+        private volatile boolean mFailWrites = false;
+        private volatile boolean mIsClosed = false;
+        private final AtomicInteger mFailedWriteCount = new AtomicInteger();
+
+        FailingStorage() {
+            super(BLOCK_SIZE, BLOCK_SIZE);
+        }
+
+        @Override
+        public void writeBlocks(int firstBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+            if (mFailWrites) {
+                mFailedWriteCount.incrementAndGet();
+                throw new IOException("Device is not accessible");
+            }
+            super.writeBlocks(firstBlockId, blockCount, firstBlockOffset, buffer);
+        }
+
+        @Override
+        public void close() {
+            mIsClosed = true;
+            super.close();
+        }
+    }
+
+    private CachingBlockStorageManager createStorage(int cachedBlocks) {
+        return new CachingBlockStorageManager(new InMemoryBlockStorageManager(BLOCK_SIZE, BLOCK_SIZE), (long) cachedBlocks * BLOCK_SIZE);
+    }
+
+    private void writeBlock(BlockStorageManager storage, int blockId, byte value) throws IOException {
+        byte[] bytes = new byte[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            bytes[i] = (byte) (value + i);
+        }
+        try (StorageBlock block = storage.getStorageBlock(blockId)) {
+            block.claim(LockType.WRITE_LOCK);
+            block.ensureCapacity();
+            block.write(0, bytes, 0, BLOCK_SIZE);
+        }
+    }
+
+    private byte readByte(BlockStorageManager storage, int blockId, int blockOffset) throws IOException {
+        byte[] bytes = new byte[1];
+        try (StorageBlock block = storage.getStorageBlock(blockId)) {
+            block.claim(LockType.READ_LOCK);
+            Assert.assertEquals("Single byte must be read", 1, block.read(blockOffset, bytes, 0, 1));
+        }
+        return bytes[0];
+    }
+
+    @Test
+    public void testHitsAndMisses() throws IOException {
+        try (CachingBlockStorageManager storage = createStorage(4)) {
+            writeBlock(storage, 0, (byte) 10);
+
+            Assert.assertEquals("Read must return written byte", (byte) 15, readByte(storage, 0, 5));
+            Assert.assertEquals("First read of block must miss", 1, storage.getMissCount());
+            Assert.assertEquals("Read must return written byte", (byte) 17, readByte(storage, 0, 7));
+            Assert.assertEquals("Second read of block must hit", 1, storage.getHitCount());
+        }
+    }
+
+    @Test
+    public void testCapacityIsBounded() throws IOException {
+        int cachedBlocks = 4;
+        try (CachingBlockStorageManager storage = createStorage(cachedBlocks)) {
+            for (int blockId = 0; blockId < cachedBlocks * 3; ++blockId) {
+                writeBlock(storage, blockId, (byte) blockId);
+            }
+            for (int round = 0; round < 2; ++round) {
+                for (int blockId = 0; blockId < cachedBlocks * 3; ++blockId) {
+                    Assert.assertEquals("Read must return written byte", (byte) (blockId + 3), readByte(storage, blockId, 3));
+                }
+            }
+            // cyclic scan over three times more blocks than cache holds can't be served from cache
+            Assert.assertEquals("Every read of cyclic scan must miss", cachedBlocks * 3 * 2, storage.getMissCount());
+
+            long missesBefore = storage.getMissCount();
+            for (int i = 0; i < 10; ++i) {
+                readByte(storage, 1, 0);
+            }
+            Assert.assertEquals("Repeated reads of same block must miss at most once", missesBefore + 1, storage.getMissCount());
+        }
+    }
+
+    @Test
+    public void testWritesUpdateCachedPages() throws IOException {
+        try (CachingBlockStorageManager storage = createStorage(4)) {
+            writeBlock(storage, 2, (byte) 0);
+            Assert.assertEquals("Read must return written byte", (byte) 9, readByte(storage, 2, 9));
+
+            try (StorageBlock block = storage.getStorageBlock(2)) {
+                block.claim(LockType.WRITE_LOCK);
+                block.write(9, new byte[]{42}, 0, 1);
+            }
+            Assert.assertEquals("Read after write must return new contents", (byte) 42, readByte(storage, 2, 9));
+            Assert.assertEquals("Cached page must be updated, not reloaded", 1, storage.getMissCount());
+        }
+    }
+
+    @Test
+    public void testVFSOverSmallCache() throws IOException {
+        int bytesToWrite = 50 * BLOCK_SIZE;
+        byte[] byteSequence = new byte[bytesToWrite];
+        for (int i = 0; i < bytesToWrite; ++i) {
+            byteSequence[i] = (byte) (i * 13);
+        }
+
+        CachingBlockStorageManager storage = createStorage(8);
+        try (VirtualFileSystem vfs = new VirtualFileSystemImpl(new StorageFileManagerV1(storage), new DirectoryHandlerFactoryV1())) {
+            for (int f = 0; f < 3; ++f) {
+                vfs.createFile("file" + f);
+                try (VFSFile file = vfs.openFile("file" + f, FileOpenMode.READ_WRITE)) {
+                    file.write(byteSequence, 0, bytesToWrite);
+                }
+            }
+            for (int f = 0; f < 3; ++f) {
+                try (VFSFile file = vfs.openFile("file" + f, FileOpenMode.READ)) {
+                    byte[] readBytes = new byte[bytesToWrite];
+                    int totalRead = 0;
+                    int read;
+                    while ((read = file.read(readBytes, totalRead, bytesToWrite - totalRead)) > 0) {
+                        totalRead += read;
+                    }
+                    Assert.assertArrayEquals("File contents in read must match bytes in write", byteSequence, readBytes);
+                }
+            }
+            Assert.assertTrue("BAT and directory reads must be served from cache", storage.getHitCount() > 0);
+        }
+    }
+
+    private void awaitPrefetchCount(CachingBlockStorageManager storage, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (storage.getPrefetchCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testPrefetchedBlocksAreHits() throws Exception {
+        try (CachingBlockStorageManager storage = createStorage(16)) {
+            for (int blockId = 0; blockId < 8; ++blockId) {
+                writeBlock(storage, blockId, (byte) blockId);
+            }
+            Assert.assertTrue("Caching storage must support prefetch", storage.prefetch(2, 4));
+            awaitPrefetchCount(storage, 4);
+            Assert.assertEquals("All hinted blocks must be prefetched", 4, storage.getPrefetchCount());
+
+            for (int blockId = 2; blockId < 6; ++blockId) {
+                Assert.assertEquals("Read must return written byte", (byte) (blockId + 1), readByte(storage, blockId, 1));
+            }
+            Assert.assertEquals("Reads of prefetched blocks must not miss", 0, storage.getMissCount());
+            Assert.assertEquals("Reads of prefetched blocks must hit", 4, storage.getHitCount());
+        }
+    }
+
+    @Test
+    public void testSequentialFileReadIsPrefetched() throws Exception {
+        int bytesToWrite = 40 * BLOCK_SIZE;
+        byte[] byteSequence = new byte[bytesToWrite];
+        for (int i = 0; i < bytesToWrite; ++i) {
+            byteSequence[i] = (byte) (i * 7);
+        }
+
+        CachingBlockStorageManager storage = createStorage(128);
+        try (VirtualFileSystem vfs = new VirtualFileSystemImpl(new StorageFileManagerV1(storage), new DirectoryHandlerFactoryV1())) {
+            vfs.createFile("file");
+            try (VFSFile file = vfs.openFile("file", FileOpenMode.READ_WRITE)) {
+                file.write(byteSequence, 0, bytesToWrite);
+            }
+            try (VFSFile file = vfs.openFile("file", FileOpenMode.READ)) {
+                // reads smaller than block, so sequence is detected by reads continuing where previous ended
+                byte[] readBytes = new byte[bytesToWrite];
+                int totalRead = 0;
+                int read;
+                while ((read = file.read(readBytes, totalRead, Math.min(100, bytesToWrite - totalRead))) > 0) {
+                    totalRead += read;
+                }
+                Assert.assertArrayEquals("File contents in read must match bytes in write", byteSequence, readBytes);
+            }
+            awaitPrefetchCount(storage, 1);
+            Assert.assertTrue("Sequential read must prefetch following blocks", storage.getPrefetchCount() > 0);
+        }
+    }
+
+    @Test
+    public void testWriteBackDefersWrites() throws IOException {
+        InMemoryBlockStorageManager underlyingStorage = new InMemoryBlockStorageManager(BLOCK_SIZE, BLOCK_SIZE);
+        try (CachingBlockStorageManager storage = new CachingBlockStorageManager(underlyingStorage, 16 * BLOCK_SIZE, 8 * BLOCK_SIZE)) {
+            writeBlock(storage, 0, (byte) 0);
+            for (int i = 0; i < 10; ++i) {
+                try (StorageBlock block = storage.getStorageBlock(0)) {
+                    block.claim(LockType.WRITE_LOCK);
+                    block.write(3, new byte[]{(byte) (100 + i)}, 0, 1);
+                }
+            }
+            Assert.assertEquals("Overwrites of same block must keep single dirty page", 1, storage.getDirtyBlockCount());
+            Assert.assertEquals("Read must return last written byte", (byte) 109, readByte(storage, 0, 3));
+            Assert.assertEquals("Underlying storage must not be written before flush", (byte) 0, readByte(underlyingStorage, 0, 0));
+
+            storage.sync();
+            Assert.assertEquals("Sync must flush all dirty pages", 0, storage.getDirtyBlockCount());
+            Assert.assertEquals("Flushed page must be written to underlying storage", (byte) 109, readByte(underlyingStorage, 0, 3));
+            Assert.assertEquals("Flushed page must be written to underlying storage", (byte) 4, readByte(underlyingStorage, 0, 4));
+        }
+    }
+
+    @Test
+    public void testWriteBackDirtyLimit() throws IOException {
+        int dirtyLimitBlocks = 4;
+        InMemoryBlockStorageManager underlyingStorage = new InMemoryBlockStorageManager(BLOCK_SIZE, BLOCK_SIZE);
+        try (CachingBlockStorageManager storage = new CachingBlockStorageManager(underlyingStorage, 8 * BLOCK_SIZE, dirtyLimitBlocks * BLOCK_SIZE)) {
+            for (int blockId = 0; blockId < 40; ++blockId) {
+                writeBlock(storage, blockId, (byte) blockId);
+                Assert.assertTrue("Dirty pages must not exceed limit", storage.getDirtyBlockCount() <= dirtyLimitBlocks);
+            }
+            for (int blockId = 0; blockId < 40; ++blockId) {
+                Assert.assertEquals("Read must return written byte", (byte) (blockId + 5), readByte(storage, blockId, 5));
+            }
+
+            storage.sync();
+            for (int blockId = 0; blockId < 40; ++blockId) {
+                Assert.assertEquals("Every block must reach underlying storage", (byte) (blockId + 5), readByte(underlyingStorage, blockId, 5));
+            }
+        }
+    }
+
+    @Test
+    public void testVFSOverWriteBackCache() throws IOException {
+        int bytesToWrite = 30 * BLOCK_SIZE;
+        byte[] byteSequence = new byte[bytesToWrite];
+        for (int i = 0; i < bytesToWrite; ++i) {
+            byteSequence[i] = (byte) (i * 11);
+        }
+
+        CachingBlockStorageManager storage = new CachingBlockStorageManager(new InMemoryBlockStorageManager(BLOCK_SIZE, BLOCK_SIZE), 16 * BLOCK_SIZE, 8 * BLOCK_SIZE);
+        try (VirtualFileSystem vfs = new VirtualFileSystemImpl(new StorageFileManagerV1(storage), new DirectoryHandlerFactoryV1())) {
+            vfs.createFile("file");
+            try (VFSFile file = vfs.openFile("file", FileOpenMode.READ_WRITE)) {
+                // small writes repeatedly modify same blocks
+                for (int offset = 0; offset < bytesToWrite; offset += 10) {
+                    file.write(byteSequence, offset, Math.min(10, bytesToWrite - offset));
+                }
+            }
+            vfs.sync();
+            Assert.assertEquals("Sync must flush all dirty pages", 0, storage.getDirtyBlockCount());
+            try (VFSFile file = vfs.openFile("file", FileOpenMode.READ)) {
+                byte[] readBytes = new byte[bytesToWrite];
+                int totalRead = 0;
+                int read;
+                while ((read = file.read(readBytes, totalRead, bytesToWrite - totalRead)) > 0) {
+                    totalRead += read;
+                }
+                Assert.assertArrayEquals("File contents in read must match bytes in write", byteSequence, readBytes);
+            }
+        }
+    }
+
+    @Test
+    public void testBackgroundFlushFailureIsReportedBySync() throws Exception {
+        FailingStorage underlyingStorage = new FailingStorage();
+        try (CachingBlockStorageManager storage = new CachingBlockStorageManager(underlyingStorage, 16 * BLOCK_SIZE, 4 * BLOCK_SIZE)) {
+            underlyingStorage.mFailWrites = true;
+            for (int blockId = 0; blockId < 2; ++blockId) {
+                writeBlock(storage, blockId, (byte) blockId);
+            }
+            for (int i = 0; i < 100 && underlyingStorage.mFailedWriteCount.get() == 0; ++i) {
+                Thread.sleep(20);
+            }
+            Assert.assertEquals("Failed flush must not be retried in background", 1, underlyingStorage.mFailedWriteCount.get());
+            Assert.assertEquals("Pages which were not written must stay dirty", 2, storage.getDirtyBlockCount());
+
+            underlyingStorage.mFailWrites = false;
+            try {
+                storage.sync();
+                Assert.fail("Sync must report failure of background flush");
+            } catch (IOException e) {
+                Assert.assertEquals("Device is not accessible", e.getCause().getMessage());
+            }
+            Assert.assertEquals("Sync must flush pages background flush failed to write", 0, storage.getDirtyBlockCount());
+            storage.sync();
+            Assert.assertEquals((byte) 6, readByte(underlyingStorage, 1, 5));
+        }
+    }
+
+    @Test
+    public void testFailedCloseKeepsDirtyPages() throws IOException {
+        FailingStorage underlyingStorage = new FailingStorage();
+        CachingBlockStorageManager storage = new CachingBlockStorageManager(underlyingStorage, 16 * BLOCK_SIZE, 8 * BLOCK_SIZE);
+        writeBlock(storage, 0, (byte) 0);
+        underlyingStorage.mFailWrites = true;
+        storage.close();
+        Assert.assertEquals("Dirty page must not be dropped when final flush fails", 1, storage.getDirtyBlockCount());
+        Assert.assertFalse("Underlying storage must stay opened when final flush fails", underlyingStorage.mIsClosed);
+
+        underlyingStorage.mFailWrites = false;
+        storage.sync();
+        Assert.assertEquals(0, storage.getDirtyBlockCount());
+        Assert.assertEquals((byte) 5, readByte(underlyingStorage, 0, 5));
+        storage.close();
+        Assert.assertTrue(underlyingStorage.mIsClosed);
+    }
+}
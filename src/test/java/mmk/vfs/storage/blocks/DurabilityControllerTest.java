@@ -0,0 +1,104 @@
+package mmk.vfs.storage.blocks;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class DurabilityControllerTest {
+    @Test
+    public void testAlwaysForcesEveryWrite() throws IOException {
+        AtomicInteger syncCount = new AtomicInteger();
+        DurabilityController controller = new DurabilityController(DurabilityPolicy.ALWAYS, syncCount::incrementAndGet);
+        for (int i = 0; i < 10; ++i) {
+            controller.onWrite();
+        }
+        Assert.assertEquals("Every write must be forced", 10, syncCount.get());
+        controller.close();
+    }
+
+    @Test
+    public void testOnCloseForcesOnlyOnSyncAndClose() throws IOException {
+        AtomicInteger syncCount = new AtomicInteger();
+        DurabilityController controller = new DurabilityController(DurabilityPolicy.ON_CLOSE, syncCount::incrementAndGet);
+        for (int i = 0; i < 10; ++i) {
+            controller.onWrite();
+        }
+        Assert.assertEquals("Writes must not be forced before close", 0, syncCount.get());
+        controller.sync();
+        Assert.assertEquals("Explicit sync must force writes", 1, syncCount.get());
+        controller.sync();
+        Assert.assertEquals("Sync without new writes must not force storage again", 1, syncCount.get());
+        controller.onWrite();
+        controller.close();
+        Assert.assertEquals("Close must force remaining writes", 2, syncCount.get());
+    }
+
+    @Test
+    public void testPeriodicForcesInBackground() throws Exception {
+        AtomicInteger syncCount = new AtomicInteger();
+        DurabilityController controller = new DurabilityController(DurabilityPolicy.periodic(10, TimeUnit.MILLISECONDS), syncCount::incrementAndGet);
+        controller.onWrite();
+        Assert.assertEquals("Write must not be forced immediately", 0, syncCount.get());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (syncCount.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals("Write must be forced by periodic task", 1, syncCount.get());
+        controller.close();
+    }
+
+    @Test
+    public void testGroupCommitSharesForces() throws Exception {
+        int threadCount = 8;
+        int writesPerThread = 200;
+
+        AtomicInteger completedWrites = new AtomicInteger();
+        AtomicInteger syncCount = new AtomicInteger();
+        AtomicInteger syncedWrites = new AtomicInteger();
+        DurabilityController controller = new DurabilityController(DurabilityPolicy.GROUP_COMMIT, () -> {
+            int coveredWrites = completedWrites.get();
+            syncCount.incrementAndGet();
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ignored) {
+            }
+            syncedWrites.accumulateAndGet(coveredWrites, Math::max);
+        });
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; ++t) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < writesPerThread; ++i) {
+                        int writeNumber = completedWrites.incrementAndGet();
+                        controller.onWrite();
+                        Assert.assertTrue("Write must be forced before onWrite returns", syncedWrites.get() >= writeNumber);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        controller.close();
+
+        if (failure.get() != null) {
+            throw new AssertionError("Writer thread failed", failure.get());
+        }
+        System.out.println("Group commit: " + (threadCount * writesPerThread) + " writes, " + syncCount.get() + " forces");
+        Assert.assertTrue("Concurrent writers must share forces", syncCount.get() < threadCount * writesPerThread);
+    }
+}
@@ -0,0 +1,88 @@
+package mmk.vfs.storage.blocks;
+
+import mmk.vfs.locks.LockType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class ExtentGrowthPolicyTest {
+    private static final int BLOCK_SIZE = 256;
+
+    private File getNewStorageFile() throws IOException {
+        File storageFile = File.createTempFile("growth", ".vfs");
+        storageFile.deleteOnExit();
+        return storageFile;
+    }
+
+    private FileBlockStorageManager createStorage(File storageFile, ExtentGrowthPolicy growthPolicy) throws IOException {
+        FileChannel fileChannel = FileChannel.open(storageFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new FileBlockStorageManager(fileChannel, 0, BLOCK_SIZE, DurabilityPolicy.ON_CLOSE, growthPolicy);
+    }
+
+    private void writeBlock(BlockStorageManager storageManager, int blockId) throws IOException {
+        try (StorageBlock block = storageManager.getStorageBlock(blockId)) {
+            block.claim(LockType.WRITE_LOCK);
+            block.ensureCapacity();
+            block.write(0, new byte[]{(byte) (blockId + 1)}, 0, 1);
+        }
+    }
+
+    @Test
+    public void testExtendedSizes() {
+        Assert.assertEquals(300, ExtentGrowthPolicy.EXACT.getExtendedSize(100, 300));
+        Assert.assertEquals(1100, ExtentGrowthPolicy.fixedChunk(1000).getExtendedSize(100, 300));
+        Assert.assertEquals(5000, ExtentGrowthPolicy.fixedChunk(1000).getExtendedSize(100, 5000));
+        Assert.assertEquals(1500, ExtentGrowthPolicy.percentage(50).getExtendedSize(1000, 1200));
+        Assert.assertEquals(300, ExtentGrowthPolicy.percentage(50).getExtendedSize(0, 300));
+    }
+
+    @Test
+    public void testExactGrowth() throws IOException {
+        File storageFile = getNewStorageFile();
+        try (FileBlockStorageManager storageManager = createStorage(storageFile, ExtentGrowthPolicy.EXACT)) {
+            writeBlock(storageManager, 0);
+            Assert.assertEquals(BLOCK_SIZE, storageFile.length());
+            writeBlock(storageManager, 2);
+            Assert.assertEquals(3 * BLOCK_SIZE, storageFile.length());
+        }
+    }
+
+    @Test
+    public void testChunkGrowthIsTrimmedOnClose() throws IOException {
+        File storageFile = getNewStorageFile();
+        int chunk = 16 * BLOCK_SIZE;
+        try (FileBlockStorageManager storageManager = createStorage(storageFile, ExtentGrowthPolicy.fixedChunk(chunk))) {
+            writeBlock(storageManager, 0);
+            Assert.assertEquals("File must be extended by whole chunk", chunk, storageFile.length());
+            Assert.assertEquals(BLOCK_SIZE, storageManager.getHighWaterMark());
+
+            for (int blockId = 1; blockId < 16; ++blockId) {
+                writeBlock(storageManager, blockId);
+            }
+            Assert.assertEquals("Blocks inside chunk must not extend file", chunk, storageFile.length());
+
+            writeBlock(storageManager, 16);
+            Assert.assertEquals(2 * chunk, storageFile.length());
+            Assert.assertEquals(17 * BLOCK_SIZE, storageManager.getHighWaterMark());
+        }
+        Assert.assertEquals("Preallocated tail must be trimmed on close", 17 * BLOCK_SIZE, storageFile.length());
+
+        try (FileBlockStorageManager storageManager = createStorage(storageFile, ExtentGrowthPolicy.percentage(100))) {
+            for (int blockId = 0; blockId < 17; ++blockId) {
+                try (StorageBlock block = storageManager.getStorageBlock(blockId)) {
+                    block.claim(LockType.READ_LOCK);
+                    byte[] read = new byte[1];
+                    Assert.assertEquals(1, block.readFully(0, read, 0, 1));
+                    Assert.assertEquals((byte) (blockId + 1), read[0]);
+                }
+            }
+            writeBlock(storageManager, 17);
+            Assert.assertEquals("File must be doubled", 34 * BLOCK_SIZE, storageFile.length());
+        }
+        Assert.assertEquals(18 * BLOCK_SIZE, storageFile.length());
+    }
+}
@@ -0,0 +1,117 @@
+package mmk.vfs.storage.blocks;
+
+import mmk.vfs.exceptions.ObjectClosedException;
+import mmk.vfs.locks.LockType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class FileBlockStorageManagerHandlePoolTest {
+    private static final int BLOCK_SIZE = 64;
+
+    private FileBlockStorageManager createStorage() throws IOException {
+        File storageFile = File.createTempFile("handles", ".vfs");
+        storageFile.deleteOnExit();
+        FileChannel fileChannel = FileChannel.open(storageFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new FileBlockStorageManager(fileChannel, 0, BLOCK_SIZE);
+    }
+
+    @Test
+    public void testClosedHandleIsReused() throws IOException {
+        try (FileBlockStorageManager storageManager = createStorage()) {
+            StorageBlock first = storageManager.getStorageBlock(1);
+            first.close();
+            StorageBlock second = storageManager.getStorageBlock(2);
+            Assert.assertSame("Closed handle must be reused for next block", first, second);
+            second.close();
+        }
+    }
+
+    @Test
+    public void testReusedHandleAccessesNewBlock() throws IOException {
+        try (FileBlockStorageManager storageManager = createStorage()) {
+            for (int blockId = 0; blockId < 4; ++blockId) {
+                try (StorageBlock block = storageManager.getStorageBlock(blockId)) {
+                    block.claim(LockType.WRITE_LOCK);
+                    block.ensureCapacity();
+                    block.write(0, new byte[]{(byte) blockId}, 0, 1);
+                }
+            }
+            for (int blockId = 3; blockId >= 0; --blockId) {
+                try (StorageBlock block = storageManager.getStorageBlock(blockId)) {
+                    block.claim(LockType.READ_LOCK);
+                    byte[] read = new byte[1];
+                    Assert.assertEquals(1, block.readFully(0, read, 0, 1));
+                    Assert.assertEquals((byte) blockId, read[0]);
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosedHandleCanNotBeClaimed() throws IOException {
+        try (FileBlockStorageManager storageManager = createStorage()) {
+            StorageBlock block = storageManager.getStorageBlock(1);
+            block.close();
+            block.claim(LockType.READ_LOCK);
+        }
+    }
+
+    @Test
+    public void testReusedHandleKeepsLockExclusive() throws Exception {
+        try (FileBlockStorageManager storageManager = createStorage()) {
+            // make pooled handle remember block 1, then hold write lock on block 1 through another handle
+            storageManager.getStorageBlock(1).close();
+            StorageBlock writer = storageManager.getStorageBlock(1);
+            writer.claim(LockType.WRITE_LOCK);
+
+            AtomicBoolean readClaimed = new AtomicBoolean(false);
+            Thread reader = new Thread(() -> {
+                try (StorageBlock block = storageManager.getStorageBlock(1)) {
+                    block.claim(LockType.READ_LOCK);
+                    readClaimed.set(true);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            reader.start();
+            reader.join(200);
+            Assert.assertFalse("Read lock must wait for write lock release", readClaimed.get());
+
+            writer.close();
+            reader.join(5000);
+            Assert.assertTrue("Read lock must be claimed after write lock release", readClaimed.get());
+        }
+    }
+
+    @Test(expected = ObjectClosedException.class)
+    public void testNoHandlesAfterClose() throws IOException {
+        FileBlockStorageManager storageManager = createStorage();
+        storageManager.getStorageBlock(1).close();
+        storageManager.close();
+        storageManager.getStorageBlock(1);
+    }
+
+    @Test
+    public void testClosedStorageIsNotRetainedByPooledHandles() throws Exception {
+        FileBlockStorageManager storageManager = createStorage();
+        for (int blockId = 0; blockId < 4; ++blockId) {
+            storageManager.getStorageBlock(blockId).close();
+        }
+        storageManager.close();
+        WeakReference<FileBlockStorageManager> storageReference = new WeakReference<>(storageManager);
+        storageManager = null;
+
+        for (int i = 0; i < 50 && storageReference.get() != null; ++i) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        Assert.assertNull("Closed storage must not be retained", storageReference.get());
+    }
+}
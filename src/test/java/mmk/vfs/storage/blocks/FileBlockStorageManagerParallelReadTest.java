@@ -0,0 +1,144 @@
+package mmk.vfs.storage.blocks;
+
+import mmk.vfs.locks.LockType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class FileBlockStorageManagerParallelReadTest {
+    private static final int BLOCK_SIZE = 256;
+    private static final int BLOCK_COUNT = 1024;
+    private static final int READS_PER_THREAD = 20000;
+    private static final int MEASUREMENT_ROUNDS = 3;
+    // timing on shared machines is noisy, positional reads must not be clearly slower than serialized ones
+    private static final double THROUGHPUT_TOLERANCE = 0.75;
+
+    private File getNewStorageFile() throws IOException {
+        File storageFile = File.createTempFile("parallel", ".vfs");
+        storageFile.deleteOnExit();
+        return storageFile;
+    }
+
+    private static byte getExpectedByte(int blockId, int blockOffset) {
+        return (byte) (blockId * 31 + blockOffset);
+    }
+
+    private FileBlockStorageManager createFilledStorage(File storageFile) throws IOException {
+        FileChannel fileChannel = FileChannel.open(storageFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileBlockStorageManager storageManager = new FileBlockStorageManager(fileChannel, 0, BLOCK_SIZE);
+
+        byte[] blockBytes = new byte[BLOCK_SIZE];
+        for (int blockId = 0; blockId < BLOCK_COUNT; ++blockId) {
+            for (int i = 0; i < BLOCK_SIZE; ++i) {
+                blockBytes[i] = getExpectedByte(blockId, i);
+            }
+            try (StorageBlock block = storageManager.getStorageBlock(blockId)) {
+                block.claim(LockType.WRITE_LOCK);
+                block.ensureCapacity();
+                block.write(0, blockBytes, 0, BLOCK_SIZE);
+            }
+        }
+        return storageManager;
+    }
+
+    /**
+     * Read random blocks from several threads at once and check their contents.
+     *
+     * @param storageManager storage to read from
+     * @param threadCount    count of reading threads
+     * @param sharedMonitor  if not null, every read is serialized through this monitor, emulating single channel lock
+     * @return reads per second across all threads
+     */
+    private double readInParallel(BlockStorageManager storageManager, int threadCount, Object sharedMonitor) throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; ++t) {
+            long seed = t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                byte[] readBuffer = new byte[BLOCK_SIZE];
+                try {
+                    for (int i = 0; i < READS_PER_THREAD; ++i) {
+                        int blockId = random.nextInt(BLOCK_COUNT);
+                        try (StorageBlock block = storageManager.getStorageBlock(blockId)) {
+                            block.claim(LockType.READ_LOCK);
+                            int read;
+                            if (sharedMonitor != null) {
+                                synchronized (sharedMonitor) {
+                                    read = block.readFully(0, readBuffer, 0, BLOCK_SIZE);
+                                }
+                            }
+                            else {
+                                read = block.readFully(0, readBuffer, 0, BLOCK_SIZE);
+                            }
+                            Assert.assertEquals("Whole block must be read", BLOCK_SIZE, read);
+                            for (int j = 0; j < BLOCK_SIZE; j += 17) {
+                                Assert.assertEquals("Block contents must match written bytes", getExpectedByte(blockId, j), readBuffer[j]);
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+
+        long startTime = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+
+        if (failure.get() != null) {
+            throw new AssertionError("Reader thread failed", failure.get());
+        }
+        return (double) threadCount * READS_PER_THREAD * 1_000_000_000L / elapsedNanos;
+    }
+
+    private double measureBestThroughput(BlockStorageManager storageManager, int threadCount, boolean serialized) throws Exception {
+        double best = 0;
+        for (int round = 0; round < MEASUREMENT_ROUNDS; ++round) {
+            best = Math.max(best, readInParallel(storageManager, threadCount, serialized ? new Object() : null));
+        }
+        return best;
+    }
+
+    @Test
+    public void testParallelReadsReturnBlockContents() throws Exception {
+        int threadCount = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+        try (FileBlockStorageManager storageManager = createFilledStorage(getNewStorageFile())) {
+            readInParallel(storageManager, threadCount, null);
+        }
+    }
+
+    @Test
+    public void testParallelReadThroughputIsNotBelowSerialized() throws Exception {
+        int threadCount = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+        try (FileBlockStorageManager storageManager = createFilledStorage(getNewStorageFile())) {
+            // warm up page cache and JIT so both measurements are comparable
+            readInParallel(storageManager, threadCount, null);
+
+            double serialized = measureBestThroughput(storageManager, threadCount, true);
+            double parallel = measureBestThroughput(storageManager, threadCount, false);
+
+            System.out.println(String.format(Locale.ROOT, "Block reads with %d threads: single channel lock %.0f/s, positional I/O %.0f/s (x%.2f)",
+                                             threadCount, serialized, parallel, parallel / serialized));
+            Assert.assertTrue("Positional reads must not be slower than reads serialized by channel lock",
+                              parallel >= serialized * THROUGHPUT_TOLERANCE);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package mmk.vfs.storage.blocks;
+
+import mmk.vfs.locks.LockType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Tests of block storages over sparse files larger than 4 GB, blocks there must not alias blocks at the file start.
+ */
+public class LargeContainerBlockStorageTest {
+    private static final int BLOCK_SIZE = 256;
+    private static final int DATA_START_OFFSET = 512;
+    // 2^32 / BLOCK_SIZE + 1, with 32-bit offsets this block would overwrite block 1
+    private static final int FAR_BLOCK_ID = (1 << 24) + 1;
+
+    private File createStorageFile() throws IOException {
+        File storageFile = File.createTempFile("large", ".vfs");
+        storageFile.deleteOnExit();
+        return storageFile;
+    }
+
+    private FileChannel openChannel(File storageFile) throws IOException {
+        return FileChannel.open(storageFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static byte[] getBlockContents(int seed) {
+        byte[] contents = new byte[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            contents[i] = (byte) (i * seed + 1);
+        }
+        return contents;
+    }
+
+    private void writeBlock(BlockStorageManager storage, int blockId, byte[] contents) throws IOException {
+        try (StorageBlock block = storage.getStorageBlock(blockId)) {
+            block.claim(LockType.WRITE_LOCK);
+            block.ensureCapacity();
+            block.write(0, contents, 0, contents.length);
+        }
+    }
+
+    private byte[] readBlock(BlockStorageManager storage, int blockId) throws IOException {
+        byte[] contents = new byte[BLOCK_SIZE];
+        try (StorageBlock block = storage.getStorageBlock(blockId)) {
+            block.claim(LockType.READ_LOCK);
+            Assert.assertEquals("Whole block must be read", BLOCK_SIZE, block.readFully(0, contents, 0, BLOCK_SIZE));
+        }
+        return contents;
+    }
+
+    private void checkFarBlocks(BlockStorageManager storage, File storageFile) throws IOException {
+        writeBlock(storage, 1, getBlockContents(3));
+        writeBlock(storage, FAR_BLOCK_ID, getBlockContents(7));
+
+        Assert.assertArrayEquals("Near block must not be overwritten by far block", getBlockContents(3), readBlock(storage, 1));
+        Assert.assertArrayEquals("Far block must keep its contents", getBlockContents(7), readBlock(storage, FAR_BLOCK_ID));
+
+        ByteBuffer run = ByteBuffer.allocate(BLOCK_SIZE * 2);
+        Assert.assertTrue("Run read past far block must read it", storage.readBlocks(FAR_BLOCK_ID, 2, 0, run) >= BLOCK_SIZE);
+        byte[] runContents = new byte[BLOCK_SIZE];
+        run.flip();
+        run.get(runContents);
+        Assert.assertArrayEquals("Run read must read far block", getBlockContents(7), runContents);
+        storage.sync();
+
+        long farBlockFileOffset = DATA_START_OFFSET + (long) FAR_BLOCK_ID * BLOCK_SIZE;
+        Assert.assertEquals("File must end at far block", farBlockFileOffset + BLOCK_SIZE, storageFile.length());
+        try (FileChannel fileChannel = FileChannel.open(storageFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer rawContents = ByteBuffer.allocate(BLOCK_SIZE);
+            while (rawContents.hasRemaining() && fileChannel.read(rawContents, farBlockFileOffset + rawContents.position()) > 0) {
+            }
+            Assert.assertArrayEquals("Far block must be stored at 64-bit offset", getBlockContents(7), rawContents.array());
+        }
+    }
+
+    @Test
+    public void testFileChannelStorage() throws IOException {
+        File storageFile = createStorageFile();
+        try (FileBlockStorageManager storage = new FileBlockStorageManager(openChannel(storageFile), DATA_START_OFFSET, BLOCK_SIZE, DurabilityPolicy.ON_CLOSE)) {
+            checkFarBlocks(storage, storageFile);
+        } finally {
+            Assert.assertTrue(storageFile.delete());
+        }
+    }
+
+    @Test
+    public void testMemoryMappedStorage() throws IOException {
+        File storageFile = createStorageFile();
+        try (MappedBlockStorageManager storage = new MappedBlockStorageManager(openChannel(storageFile), DATA_START_OFFSET, BLOCK_SIZE, BLOCK_SIZE * 16, DurabilityPolicy.ON_CLOSE)) {
+            writeBlock(storage, 1, getBlockContents(3));
+            writeBlock(storage, FAR_BLOCK_ID, getBlockContents(7));
+            Assert.assertArrayEquals("Near block must not be overwritten by far block", getBlockContents(3), readBlock(storage, 1));
+            Assert.assertArrayEquals("Far block must keep its contents", getBlockContents(7), readBlock(storage, FAR_BLOCK_ID));
+        } finally {
+            Assert.assertTrue(storageFile.delete());
+        }
+    }
+
+    @Test
+    public void testAsyncStorage() throws IOException {
+        File storageFile = createStorageFile();
+        AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(storageFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try (AsyncFileBlockStorageManager storage = new AsyncFileBlockStorageManager(fileChannel, DATA_START_OFFSET, BLOCK_SIZE, 4, DurabilityPolicy.ON_CLOSE)) {
+            checkFarBlocks(storage, storageFile);
+        } finally {
+            Assert.assertTrue(storageFile.delete());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeBlockIndex() throws IOException {
+        File storageFile = createStorageFile();
+        try (FileBlockStorageManager storage = new FileBlockStorageManager(openChannel(storageFile), DATA_START_OFFSET, BLOCK_SIZE)) {
+            storage.getStorageBlock(-2);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package mmk.vfs.storage.file;
+
+import mmk.vfs.locks.LockType;
+import mmk.vfs.storage.InMemoryBlockStorageManager;
+import mmk.vfs.storage.blocks.StorageBlock;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class StorageFileManagerV1AllocationTest {
+    private static final int BLOCK_SIZE = 64;
+    private static final int BLOCKS_PER_GROUP = BLOCK_SIZE / 4;
+
+    private int allocate(StorageFileManager manager) throws IOException {
+        try (StorageFile storageFile = manager.createNewFile()) {
+            return storageFile.getStorageStartIdx();
+        }
+    }
+
+    @Test
+    public void testAllocatedBlocksAreUniqueDataBlocks() throws IOException {
+        StorageFileManager manager = new StorageFileManagerV1(new InMemoryBlockStorageManager(BLOCK_SIZE, BLOCK_SIZE));
+        Set<Integer> allocated = new HashSet<>();
+        allocated.add(manager.getRootDirectoryStorageIndex());
+        for (int i = 0; i < 5 * BLOCKS_PER_GROUP; ++i) {
+            int blockId = allocate(manager);
+            Assert.assertNotEquals("BAT block must never be allocated", 0, blockId % BLOCKS_PER_GROUP);
+            Assert.assertTrue("Block must not be allocated twice", allocated.add(blockId));
+        }
+        manager.close();
+    }
+
+    @Test
+    public void testFreedBlocksAreReused() throws IOException {
+        StorageFileManager manager = new StorageFileManagerV1(new InMemoryBlockStorageManager(BLOCK_SIZE, BLOCK_SIZE));
+        int lastBlockId = 0;
+        for (int i = 0; i < 3 * BLOCKS_PER_GROUP; ++i) {
+            lastBlockId = allocate(manager);
+        }
+
+        manager.freeStorage(BLOCKS_PER_GROUP + 3);
+        manager.freeStorage(2);
+        Assert.assertEquals(2, allocate(manager));
+        Assert.assertEquals(BLOCKS_PER_GROUP + 3, allocate(manager));
+        Assert.assertTrue("New blocks are allocated after previously used ones", allocate(manager) > lastBlockId);
+        manager.close();
+    }
+
+    @Test
+    public void testFreeBlocksAreFoundAfterReopen() throws IOException {
+        InMemoryBlockStorageManager storage = new InMemoryBlockStorageManager(BLOCK_SIZE, 7);
+        StorageFileManager manager = new StorageFileManagerV1(storage);
+        for (int i = 0; i < 4 * BLOCKS_PER_GROUP; ++i) {
+            allocate(manager);
+        }
+        int freedBlockId = 2 * BLOCKS_PER_GROUP + 5;
+        manager.freeStorage(freedBlockId);
+
+        // second manager over same storage has to rebuild free block map from BAT
+        StorageFileManager reopened = new StorageFileManagerV1(storage);
+        Assert.assertEquals(freedBlockId, allocate(reopened));
+        reopened.close();
+    }
+
+    @Test
+    public void testFreedChainOfExtendedFile() throws IOException {
+        StorageFileManager manager = new StorageFileManagerV1(new InMemoryBlockStorageManager(BLOCK_SIZE, BLOCK_SIZE));
+        byte[] contents = new byte[BLOCK_SIZE * 2 * BLOCKS_PER_GROUP];
+        int fileId;
+        try (StorageFile storageFile = manager.createNewFile()) {
+            fileId = storageFile.getStorageStartIdx();
+            storageFile.claimLock(LockType.WRITE_LOCK);
+            storageFile.writeBlock(0, contents, 0, contents.length);
+            storageFile.releaseLock();
+        }
+        manager.freeStorage(fileId);
+
+        Set<Integer> allocated = new HashSet<>();
+        for (int i = 0; i < 2 * BLOCKS_PER_GROUP; ++i) {
+            int blockId = allocate(manager);
+            Assert.assertTrue("Freed chain must be reused before new groups", blockId < 3 * BLOCKS_PER_GROUP);
+            Assert.assertTrue(allocated.add(blockId));
+        }
+        manager.close();
+    }
+
+    @Test
+    public void testLargeWriteTakesAdjacentBlocks() throws IOException {
+        StorageFileManager manager = new StorageFileManagerV1(new InMemoryBlockStorageManager(BLOCK_SIZE, BLOCK_SIZE));
+        for (int i = 0; i < 2 * BLOCKS_PER_GROUP; ++i) {
+            allocate(manager);
+        }
+        // single block holes must not be used for blocks of large write, while longer run is available
+        manager.freeStorage(3);
+        manager.freeStorage(5);
+        manager.freeStorage(7);
+
+        byte[] contents = new byte[BLOCK_SIZE * 4];
+        for (int i = 0; i < contents.length; ++i) {
+            contents[i] = (byte) (i * 3);
+        }
+        int fileId;
+        try (StorageFile storageFile = manager.createNewFile()) {
+            fileId = storageFile.getStorageStartIdx();
+            storageFile.claimLock(LockType.WRITE_LOCK);
+            storageFile.writeBlock(0, contents, 0, contents.length);
+            storageFile.releaseLock();
+        }
+        Assert.assertEquals(3, fileId);
+        Assert.assertEquals(5, allocate(manager));
+        Assert.assertEquals(7, allocate(manager));
+
+        byte[] readContents = new byte[contents.length];
+        try (StorageFile storageFile = manager.getStorageFile(fileId)) {
+            storageFile.claimLock(LockType.READ_LOCK);
+            Assert.assertEquals(contents.length, storageFile.readBlock(0, readContents, 0, readContents.length));
+            storageFile.releaseLock();
+        }
+        Assert.assertArrayEquals(contents, readContents);
+        manager.close();
+    }
+
+    @Test
+    public void testExtensionStaysNearFileTail() throws IOException {
+        StorageFileManagerV1 manager = new StorageFileManagerV1(new InMemoryBlockStorageManager(BLOCK_SIZE, BLOCK_SIZE));
+        for (int i = 0; i < 3 * BLOCKS_PER_GROUP; ++i) {
+            allocate(manager);
+        }
+        // single block files fill groups 0, 1 and 2 and first blocks of group 3
+        int fileId = 3 * BLOCKS_PER_GROUP + 2;
+        manager.freeStorage(5);
+        manager.freeStorage(6);
+
+        byte[] contents = new byte[BLOCK_SIZE * 3];
+        try (StorageFile storageFile = manager.getStorageFile(fileId)) {
+            storageFile.claimLock(LockType.WRITE_LOCK);
+            storageFile.writeBlock(0, contents, 0, contents.length);
+            storageFile.releaseLock();
+        }
+        Assert.assertEquals("Blocks following file tail are used, not holes at the start of container", 2, manager.getFragmentCount(fileId));
+        Assert.assertEquals(5, allocate(manager));
+        Assert.assertEquals(6, allocate(manager));
+
+        // contiguous file has single fragment
+        int contiguousFileId;
+        try (StorageFile storageFile = manager.createNewFile()) {
+            contiguousFileId = storageFile.getStorageStartIdx();
+            storageFile.claimLock(LockType.WRITE_LOCK);
+            storageFile.writeBlock(0, contents, 0, contents.length);
+            storageFile.releaseLock();
+        }
+        Assert.assertEquals(1, manager.getFragmentCount(contiguousFileId));
+        manager.close();
+    }
+
+    @Test
+    public void testConcurrentWritersGetDistinctBlocks() throws Exception {
+        StorageFileManager manager = new StorageFileManagerV1(new InMemoryBlockStorageManager(BLOCK_SIZE, BLOCK_SIZE));
+        int writerCount = 8;
+        int appendCount = 50;
+        int[] fileIds = new int[writerCount];
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] writers = new Thread[writerCount];
+        for (int writer = 0; writer < writerCount; ++writer) {
+            int writerIndex = writer;
+            writers[writer] = new Thread(() -> {
+                try (StorageFile storageFile = manager.createNewFile()) {
+                    fileIds[writerIndex] = storageFile.getStorageStartIdx();
+                    storageFile.claimLock(LockType.WRITE_LOCK);
+                    for (int i = 0; i < appendCount; ++i) {
+                        byte[] contents = new byte[BLOCK_SIZE];
+                        Arrays.fill(contents, (byte) (writerIndex * appendCount + i));
+                        storageFile.writeBlock(i * BLOCK_SIZE, contents, 0, contents.length);
+                    }
+                    storageFile.releaseLock();
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            writers[writer].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        Assert.assertNull(failure.get());
+
+        // every block must keep contents of its own writer
+        for (int writer = 0; writer < writerCount; ++writer) {
+            try (StorageFile storageFile = manager.getStorageFile(fileIds[writer])) {
+                storageFile.claimLock(LockType.READ_LOCK);
+                Assert.assertEquals(appendCount * BLOCK_SIZE, storageFile.getCurrentCapacity());
+                byte[] contents = new byte[BLOCK_SIZE];
+                for (int i = 0; i < appendCount; ++i) {
+                    Assert.assertEquals(BLOCK_SIZE, storageFile.readBlock(i * BLOCK_SIZE, contents, 0, contents.length));
+                    for (byte value : contents) {
+                        Assert.assertEquals((byte) (writer * appendCount + i), value);
+                    }
+                }
+                storageFile.releaseLock();
+            }
+        }
+        manager.close();
+    }
+
+    @Test
+    public void testFilesWrittenInParallelUseOwnHomeGroups() throws IOException {
+        StorageFileManagerV1 manager = new StorageFileManagerV1(new InMemoryBlockStorageManager(BLOCK_SIZE, BLOCK_SIZE),
+                                                                BlockAllocationMode.FILE_HOME_GROUPS);
+        int appendCount = BLOCKS_PER_GROUP / 2;
+        byte[] contents = new byte[BLOCK_SIZE];
+        int firstFileId;
+        int secondFileId;
+        try (StorageFile firstFile = manager.createNewFile(); StorageFile secondFile = manager.createNewFile()) {
+            firstFileId = firstFile.getStorageStartIdx();
+            secondFileId = secondFile.getStorageStartIdx();
+            Assert.assertNotEquals("Opened files must not share home group", firstFileId / BLOCKS_PER_GROUP, secondFileId / BLOCKS_PER_GROUP);
+
+            firstFile.claimLock(LockType.WRITE_LOCK);
+            secondFile.claimLock(LockType.WRITE_LOCK);
+            for (int i = 1; i < appendCount; ++i) {
+                firstFile.writeBlock(i * BLOCK_SIZE, contents, 0, contents.length);
+                secondFile.writeBlock(i * BLOCK_SIZE, contents, 0, contents.length);
+            }
+            firstFile.releaseLock();
+            secondFile.releaseLock();
+        }
+        Assert.assertEquals("Interleaved appends must not interleave blocks", 1, manager.getFragmentCount(firstFileId));
+        Assert.assertEquals("Interleaved appends must not interleave blocks", 1, manager.getFragmentCount(secondFileId));
+
+        // groups are released with last handle of file, so their free blocks are used by following files
+        Assert.assertEquals(firstFileId + appendCount, allocate(manager));
+        manager.close();
+    }
+
+    @Test
+    public void testAllocationDoesNotWaitForGroupLoad() throws Exception {
+        int loadedGroupIndex = 3;
+        CountDownLatch loadStarted = new CountDownLatch(1);
+        CountDownLatch loadReleased = new CountDownLatch(1);
+        InMemoryBlockStorageManager storage = new InMemoryBlockStorageManager(BLOCK_SIZE, BLOCK_SIZE) {
+            @Override
+            public StorageBlock getStorageBlock(int blockId) throws IOException {
+                if (blockId == loadedGroupIndex * BLOCKS_PER_GROUP && Thread.currentThread().getName().equals("loader")) {
+                    loadStarted.countDown();
+                    try {
+                        loadReleased.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return super.getStorageBlock(blockId);
+            }
+        };
+        StorageFileManager manager = new StorageFileManagerV1(storage);
+        // fill all groups loaded so far, root directory takes one block of first group
+        for (int i = 0; i < loadedGroupIndex * (BLOCKS_PER_GROUP - 1) - 1; ++i) {
+            allocate(manager);
+        }
+        int freedBlockId = BLOCKS_PER_GROUP + 3;
+
+        AtomicReference<Integer> loaderBlockId = new AtomicReference<>();
+        Thread loader = new Thread(() -> {
+            try {
+                loaderBlockId.set(allocate(manager));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "loader");
+        loader.start();
+        Assert.assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+
+        AtomicReference<Integer> allocatedBlockId = new AtomicReference<>();
+        Thread allocator = new Thread(() -> {
+            try {
+                manager.freeStorage(freedBlockId);
+                allocatedBlockId.set(allocate(manager));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        try {
+            allocator.start();
+            allocator.join(5000);
+            Assert.assertEquals("Allocation in known group must not wait for group load", Integer.valueOf(freedBlockId), allocatedBlockId.get());
+        } finally {
+            loadReleased.countDown();
+        }
+        loader.join(5000);
+        Assert.assertEquals(Integer.valueOf(loadedGroupIndex * BLOCKS_PER_GROUP + 1), loaderBlockId.get());
+        manager.close();
+    }
+}
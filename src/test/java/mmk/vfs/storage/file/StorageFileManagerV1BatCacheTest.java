@@ -0,0 +1,157 @@
+package mmk.vfs.storage.file;
+
+import mmk.vfs.locks.LockType;
+import mmk.vfs.storage.InMemoryBlockStorageManager;
+import mmk.vfs.storage.blocks.StorageBlock;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StorageFileManagerV1BatCacheTest {
+    private static final int BLOCK_SIZE = 64;
+    private static final int BLOCKS_PER_GROUP = BLOCK_SIZE / 4;
+
+    private static class BatCountingStorage extends InMemoryBlockStorageManager {
+        private final AtomicInteger mBatAccessCount = new AtomicInteger();
+
+        BatCountingStorage() {
+            super(BLOCK_SIZE, BLOCK_SIZE);
+        }
+
+        @Override
+        public StorageBlock getStorageBlock(int blockId) throws IOException {
+            if (blockId % BLOCKS_PER_GROUP == 0) {
+                mBatAccessCount.incrementAndGet();
+            }
+            return super.getStorageBlock(blockId);
+        }
+    }
+
+    private static byte[] getByteSequence(int length, int seed) {
+        byte[] byteSequence = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            byteSequence[i] = (byte) (i * seed);
+        }
+        return byteSequence;
+    }
+
+    private int writeNewFile(StorageFileManager manager, byte[] contents) throws IOException {
+        try (StorageFile storageFile = manager.createNewFile()) {
+            storageFile.claimLock(LockType.WRITE_LOCK);
+            storageFile.writeBlock(0, contents, 0, contents.length);
+            storageFile.releaseLock();
+            return storageFile.getStorageStartIdx();
+        }
+    }
+
+    private byte[] readFile(StorageFileManager manager, int fileId, int length) throws IOException {
+        byte[] contents = new byte[length];
+        try (StorageFile storageFile = manager.getStorageFile(fileId)) {
+            storageFile.claimLock(LockType.READ_LOCK);
+            int offset = 0;
+            while (offset < length) {
+                // small reads cross block boundaries one by one, following chain every time
+                int read = storageFile.readBlock(offset, contents, offset, Math.min(BLOCK_SIZE / 2, length - offset));
+                Assert.assertTrue(read > 0);
+                offset += read;
+            }
+            Assert.assertEquals(length, storageFile.getCurrentCapacity());
+            storageFile.releaseLock();
+        }
+        return contents;
+    }
+
+    @Test
+    public void testChainWalkDoesNotReadBat() throws IOException {
+        BatCountingStorage storage = new BatCountingStorage();
+        byte[] contents = getByteSequence(3 * BLOCKS_PER_GROUP * BLOCK_SIZE, 7);
+        int fileId = writeNewFile(new StorageFileManagerV1(storage), contents);
+
+        StorageFileManager manager = new StorageFileManagerV1(storage);
+        Assert.assertArrayEquals(contents, readFile(manager, fileId, contents.length));
+
+        storage.mBatAccessCount.set(0);
+        Assert.assertArrayEquals(contents, readFile(manager, fileId, contents.length));
+        Assert.assertEquals("Chain walk must use cached BAT entries", 0, storage.mBatAccessCount.get());
+        manager.close();
+    }
+
+    @Test
+    public void testCachedChainFollowsReusedBlocks() throws IOException {
+        StorageFileManager manager = new StorageFileManagerV1(new BatCountingStorage());
+        byte[] firstContents = getByteSequence(2 * BLOCKS_PER_GROUP * BLOCK_SIZE, 3);
+        int firstFileId = writeNewFile(manager, firstContents);
+        Assert.assertArrayEquals(firstContents, readFile(manager, firstFileId, firstContents.length));
+        manager.freeStorage(firstFileId);
+
+        byte[] secondContents = getByteSequence(BLOCKS_PER_GROUP * BLOCK_SIZE, 5);
+        byte[] thirdContents = getByteSequence(BLOCKS_PER_GROUP * BLOCK_SIZE, 11);
+        int secondFileId = writeNewFile(manager, secondContents);
+        int thirdFileId = writeNewFile(manager, thirdContents);
+        Assert.assertArrayEquals(secondContents, readFile(manager, secondFileId, secondContents.length));
+        Assert.assertArrayEquals(thirdContents, readFile(manager, thirdFileId, thirdContents.length));
+        manager.close();
+    }
+
+    @Test
+    public void testChainWalkDoesNotWaitForBatLoadOfOtherGroup() throws Exception {
+        CountDownLatch loadStarted = new CountDownLatch(1);
+        CountDownLatch loadReleased = new CountDownLatch(1);
+        BatCountingStorage storage = new BatCountingStorage() {
+            @Override
+            public StorageBlock getStorageBlock(int blockId) throws IOException {
+                if (blockId % BLOCKS_PER_GROUP == 0 && Thread.currentThread().getName().equals("loader")) {
+                    loadStarted.countDown();
+                    try {
+                        loadReleased.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return super.getStorageBlock(blockId);
+            }
+        };
+        byte[] firstContents = getByteSequence(2 * BLOCKS_PER_GROUP * BLOCK_SIZE, 3);
+        byte[] secondContents = getByteSequence(3 * BLOCKS_PER_GROUP * BLOCK_SIZE, 5);
+        StorageFileManager writer = new StorageFileManagerV1(storage);
+        int firstFileId = writeNewFile(writer, firstContents);
+        int secondFileId = writeNewFile(writer, secondContents);
+
+        StorageFileManager manager = new StorageFileManagerV1(storage);
+        Assert.assertArrayEquals(firstContents, readFile(manager, firstFileId, firstContents.length));
+
+        // BAT of groups used only by second file is not loaded yet, its load is held until first file is read again
+        Thread loader = new Thread(() -> {
+            try {
+                readFile(manager, secondFileId, secondContents.length);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "loader");
+        loader.start();
+        AtomicBoolean isRead = new AtomicBoolean();
+        try {
+            Assert.assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+            Thread reader = new Thread(() -> {
+                try {
+                    isRead.set(Arrays.equals(firstContents, readFile(manager, firstFileId, firstContents.length)));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            reader.start();
+            reader.join(5000);
+            Assert.assertTrue("Chain walk in loaded groups must not wait for BAT load of other group", isRead.get());
+        } finally {
+            loadReleased.countDown();
+        }
+        loader.join(5000);
+        manager.close();
+    }
+}
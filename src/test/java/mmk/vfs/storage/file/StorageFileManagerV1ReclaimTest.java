@@ -0,0 +1,168 @@
+package mmk.vfs.storage.file;
+
+import mmk.vfs.locks.LockType;
+import mmk.vfs.storage.InMemoryBlockStorageManager;
+import mmk.vfs.storage.blocks.StorageBlock;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class StorageFileManagerV1ReclaimTest {
+    private static final int BLOCK_SIZE = 64;
+    private static final int BLOCKS_PER_GROUP = BLOCK_SIZE / 4;
+
+    /**
+     * Storage, which keeps its contents after close, so it can be opened again, and can refuse access to first BAT
+     * from reclaimer thread.
+     */
+    private static class ReopenableStorage extends InMemoryBlockStorageManager {
+        private volatile boolean mBlockReclaimer = false;
+        private final CountDownLatch mReclaimerBlocked = new CountDownLatch(1);
+        private volatile boolean mDelayReclaimer = false;
+        private final CountDownLatch mReclaimerReleased = new CountDownLatch(1);
+
+        ReopenableStorage() {
+            super(BLOCK_SIZE, BLOCK_SIZE);
+        }
+
+        @Override
+        public StorageBlock getStorageBlock(int blockId) throws IOException {
+            if (mBlockReclaimer && blockId == 0 && Thread.currentThread().getName().equals("VFS reclaimer")) {
+                mReclaimerBlocked.countDown();
+                throw new IOException("Storage is not accessible");
+            }
+            if (mDelayReclaimer && blockId == 0 && Thread.currentThread().getName().equals("VFS reclaimer")) {
+                mReclaimerBlocked.countDown();
+                try {
+                    mReclaimerReleased.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Waiting interrupted", e);
+                }
+            }
+            return super.getStorageBlock(blockId);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private int writeNewFile(StorageFileManager manager, int blockCount) throws IOException {
+        byte[] contents = new byte[blockCount * BLOCK_SIZE];
+        try (StorageFile storageFile = manager.createNewFile()) {
+            storageFile.claimLock(LockType.WRITE_LOCK);
+            storageFile.writeBlock(0, contents, 0, contents.length);
+            storageFile.releaseLock();
+            return storageFile.getStorageStartIdx();
+        }
+    }
+
+    private void assertFreedBlocksAreReused(StorageFileManager manager, int blockCount, int usedBlocksEnd) throws IOException {
+        Set<Integer> allocated = new HashSet<>();
+        for (int i = 0; i < blockCount; ++i) {
+            try (StorageFile storageFile = manager.createNewFile()) {
+                int blockId = storageFile.getStorageStartIdx();
+                Assert.assertTrue("Reclaimed blocks must be reused before new groups", blockId < usedBlocksEnd);
+                Assert.assertTrue(allocated.add(blockId));
+            }
+        }
+    }
+
+    @Test
+    public void testScheduledFilesAreReclaimed() throws IOException {
+        StorageFileManagerV1 manager = new StorageFileManagerV1(new InMemoryBlockStorageManager(BLOCK_SIZE, BLOCK_SIZE));
+        int firstFileId = writeNewFile(manager, 2 * BLOCKS_PER_GROUP);
+        int secondFileId = writeNewFile(manager, BLOCKS_PER_GROUP);
+        int keptFileId = writeNewFile(manager, 1);
+
+        manager.scheduleFreeStorage(firstFileId);
+        manager.scheduleFreeStorage(secondFileId);
+        manager.awaitPendingReclamation();
+
+        assertFreedBlocksAreReused(manager, 3 * BLOCKS_PER_GROUP, keptFileId);
+        manager.close();
+    }
+
+    @Test
+    public void testReclamationResumesAfterReopen() throws Exception {
+        ReopenableStorage storage = new ReopenableStorage();
+        StorageFileManagerV1 manager = new StorageFileManagerV1(storage);
+        int fileId = writeNewFile(manager, 2 * BLOCKS_PER_GROUP);
+        int secondFileId = writeNewFile(manager, BLOCKS_PER_GROUP);
+        int keptFileId = writeNewFile(manager, 1);
+
+        storage.mBlockReclaimer = true;
+        manager.scheduleFreeStorage(fileId);
+        manager.scheduleFreeStorage(secondFileId);
+        Assert.assertTrue(storage.mReclaimerBlocked.await(5, TimeUnit.SECONDS));
+        manager.close();
+        storage.mBlockReclaimer = false;
+
+        // chain pending reclamation is stored in BAT, so reopened manager frees it
+        StorageFileManagerV1 reopened = new StorageFileManagerV1(storage);
+        reopened.awaitPendingReclamation();
+        assertFreedBlocksAreReused(reopened, 3 * BLOCKS_PER_GROUP, keptFileId);
+        reopened.close();
+    }
+
+    @Test
+    public void testReclamationFailureIsSurfaced() throws IOException {
+        ReopenableStorage storage = new ReopenableStorage();
+        StorageFileManagerV1 manager = new StorageFileManagerV1(storage);
+        int fileId = writeNewFile(manager, 2 * BLOCKS_PER_GROUP);
+        int secondFileId = writeNewFile(manager, 1);
+        int keptFileId = writeNewFile(manager, 1);
+
+        storage.mBlockReclaimer = true;
+        manager.scheduleFreeStorage(fileId);
+        try {
+            manager.awaitPendingReclamation();
+            Assert.fail("Failure of reclaimer must be surfaced");
+        } catch (IOException e) {
+            Assert.assertEquals("Storage is not accessible", e.getCause().getMessage());
+        }
+
+        // next scheduled chain restarts reclaimer, which frees both chains
+        storage.mBlockReclaimer = false;
+        manager.scheduleFreeStorage(secondFileId);
+        manager.awaitPendingReclamation();
+        assertFreedBlocksAreReused(manager, 2 * BLOCKS_PER_GROUP + 1, keptFileId);
+        manager.close();
+    }
+
+    @Test
+    public void testSchedulingDoesNotWaitForReclaimerIO() throws Exception {
+        ReopenableStorage storage = new ReopenableStorage();
+        StorageFileManagerV1 manager = new StorageFileManagerV1(storage);
+        int fileId = writeNewFile(manager, 2 * BLOCKS_PER_GROUP);
+        int secondFileId = writeNewFile(manager, BLOCKS_PER_GROUP);
+        int keptFileId = writeNewFile(manager, 1);
+
+        storage.mDelayReclaimer = true;
+        manager.scheduleFreeStorage(fileId);
+        Assert.assertTrue(storage.mReclaimerBlocked.await(5, TimeUnit.SECONDS));
+
+        Thread scheduler = new Thread(() -> {
+            try {
+                manager.scheduleFreeStorage(secondFileId);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        scheduler.start();
+        scheduler.join(5000);
+        boolean isScheduled = !scheduler.isAlive();
+        storage.mReclaimerReleased.countDown();
+        scheduler.join();
+        Assert.assertTrue("Scheduling must not wait for BAT access of reclaimer", isScheduled);
+
+        manager.awaitPendingReclamation();
+        assertFreedBlocksAreReused(manager, 3 * BLOCKS_PER_GROUP, keptFileId);
+        manager.close();
+    }
+}
@@ -0,0 +1,143 @@
+package mmk.vfs.storage.file;
+
+import mmk.vfs.locks.LockType;
+import mmk.vfs.storage.InMemoryBlockStorageManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class StorageFileManagerV2Test {
+    private static final int BLOCK_SIZE = 256;
+
+    private static byte[] getByteSequence(int length, int seed) {
+        byte[] byteSequence = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            byteSequence[i] = (byte) (i * seed);
+        }
+        return byteSequence;
+    }
+
+    private void write(StorageFile storageFile, int fileOffset, byte[] contents) throws IOException {
+        storageFile.claimLock(LockType.WRITE_LOCK);
+        storageFile.writeBlock(fileOffset, contents, 0, contents.length);
+        storageFile.releaseLock();
+    }
+
+    /**
+     * Storage, which remembers count of blocks of last multi-block access, as file storage locks each of them.
+     */
+    private static class BlockCountingStorage extends InMemoryBlockStorageManager {
+        private int mLastBlockCount = 0;
+
+        BlockCountingStorage(int blockSize, int initialBlockCount) {
+            super(blockSize, initialBlockCount);
+        }
+
+        @Override
+        public int readBlocks(int firstBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+            mLastBlockCount = blockCount;
+            return super.readBlocks(firstBlockId, blockCount, firstBlockOffset, buffer);
+        }
+
+        @Override
+        public void writeBlocks(int firstBlockId, int blockCount, int firstBlockOffset, ByteBuffer buffer) throws IOException {
+            mLastBlockCount = blockCount;
+            super.writeBlocks(firstBlockId, blockCount, firstBlockOffset, buffer);
+        }
+    }
+
+    private int getExtentCount(StorageFile storageFile) {
+        return ((ExtentStorageFile) storageFile).getExtents().getExtentCount();
+    }
+
+    @Test
+    public void testLargeWriteIsSingleExtent() throws IOException {
+        StorageFileManager manager = new StorageFileManagerV2(new InMemoryBlockStorageManager(BLOCK_SIZE, BLOCK_SIZE));
+        try (StorageFile storageFile = manager.createNewFile()) {
+            byte[] contents = getByteSequence(100 * BLOCK_SIZE, 3);
+            write(storageFile, 0, contents);
+            Assert.assertEquals(1, getExtentCount(storageFile));
+            Assert.assertEquals(contents.length, storageFile.getCurrentCapacity());
+
+            // small appends grow last extent in place
+            for (int i = 0; i < 20; ++i) {
+                write(storageFile, contents.length + i * BLOCK_SIZE, getByteSequence(BLOCK_SIZE, i));
+            }
+            Assert.assertEquals(1, getExtentCount(storageFile));
+        }
+        manager.close();
+    }
+
+    @Test
+    public void testInterleavedGrowthAndReopen() throws IOException {
+        InMemoryBlockStorageManager storage = new InMemoryBlockStorageManager(BLOCK_SIZE, 100);
+        StorageFileManager manager = new StorageFileManagerV2(storage);
+        StorageFile first = manager.createNewFile();
+        StorageFile second = manager.createNewFile();
+        byte[] firstContents = getByteSequence(200 * BLOCK_SIZE, 7);
+        byte[] secondContents = getByteSequence(200 * BLOCK_SIZE, 11);
+        // single blocks are appended in turns, so every block of file is separate extent,
+        // which needs several inode blocks to be stored
+        for (int i = 0; i < 200; ++i) {
+            byte[] block = new byte[BLOCK_SIZE];
+            System.arraycopy(firstContents, i * BLOCK_SIZE, block, 0, BLOCK_SIZE);
+            write(first, i * BLOCK_SIZE, block);
+            System.arraycopy(secondContents, i * BLOCK_SIZE, block, 0, BLOCK_SIZE);
+            write(second, i * BLOCK_SIZE, block);
+        }
+        Assert.assertTrue(getExtentCount(first) > (BLOCK_SIZE - 8) / 8);
+        int firstId = first.getStorageStartIdx();
+        int secondId = second.getStorageStartIdx();
+        first.close();
+        second.close();
+
+        StorageFileManager reopened = new StorageFileManagerV2(storage);
+        try (StorageFile storageFile = reopened.getStorageFile(firstId)) {
+            byte[] read = new byte[firstContents.length];
+            storageFile.claimLock(LockType.READ_LOCK);
+            int offset = 0;
+            int chunk;
+            while (offset < read.length && (chunk = storageFile.readBlock(offset, read, offset, read.length - offset)) > 0) {
+                offset += chunk;
+            }
+            Assert.assertEquals(-1, storageFile.readBlock(read.length, new byte[1], 0, 1));
+            storageFile.releaseLock();
+            Assert.assertArrayEquals(firstContents, read);
+        }
+
+        reopened.freeStorage(secondId);
+        try (StorageFile storageFile = reopened.createNewFile()) {
+            write(storageFile, 0, getByteSequence(100 * BLOCK_SIZE, 5));
+            Assert.assertTrue("Freed blocks must be reused", storageFile.getStorageStartIdx() <= 400);
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void testSmallAccessInsideLongExtentTouchesOnlyItsBlocks() throws IOException {
+        BlockCountingStorage storage = new BlockCountingStorage(BLOCK_SIZE, BLOCK_SIZE);
+        StorageFileManager manager = new StorageFileManagerV2(storage);
+        try (StorageFile storageFile = manager.createNewFile()) {
+            byte[] contents = getByteSequence(100 * BLOCK_SIZE, 3);
+            write(storageFile, 0, contents);
+            Assert.assertEquals(1, getExtentCount(storageFile));
+
+            storageFile.claimLock(LockType.READ_LOCK);
+            byte[] read = new byte[BLOCK_SIZE];
+            Assert.assertEquals(1, storageFile.readBlock(50 * BLOCK_SIZE + 10, read, 0, 1));
+            Assert.assertEquals(1, storage.mLastBlockCount);
+            Assert.assertEquals(contents[50 * BLOCK_SIZE + 10], read[0]);
+
+            // unaligned read of one block spans two blocks
+            Assert.assertEquals(BLOCK_SIZE, storageFile.readBlock(50 * BLOCK_SIZE + 10, read, 0, BLOCK_SIZE));
+            Assert.assertEquals(2, storage.mLastBlockCount);
+            storageFile.releaseLock();
+
+            write(storageFile, 20 * BLOCK_SIZE + 5, new byte[]{42});
+            Assert.assertEquals(1, storage.mLastBlockCount);
+        }
+        manager.close();
+    }
+}